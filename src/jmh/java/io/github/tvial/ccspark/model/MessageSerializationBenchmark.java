@@ -0,0 +1,120 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.tvial.ccspark.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+// Hand-written encoding of the messages, against default Java serialization of the same fields.
+// The sizes are compared in ModelTests.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MessageSerializationBenchmark {
+    // Same fields as ExecutorUsageMetrics, with the default serialization
+    public static class SerializableUsageMetrics implements Serializable {
+        public String executorId;
+        public long sequence;
+        public double load;
+        public double energy_Wh;
+        public long intervalMillis;
+        public CoreUsageSummary cores;
+        public StageUsage[] stages;
+        public long pluginCpuNanos;
+        public long processCpuNanos;
+    }
+
+    private ExecutorUsageMetrics externalizable;
+    private SerializableUsageMetrics serializable;
+    private byte[] externalizableBytes;
+    private byte[] serializableBytes;
+
+    private static byte[] encode(Object object) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(object);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static Object decode(byte[] bytes) throws IOException, ClassNotFoundException {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+        try {
+            return in.readObject();
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        externalizable = new ExecutorUsageMetrics(0.5, 0.001, 1000L);
+        externalizable.executorId = "12";
+        externalizable.sequence = 42L;
+
+        serializable = new SerializableUsageMetrics();
+        serializable.executorId = "12";
+        serializable.sequence = 42L;
+        serializable.load = 0.5;
+        serializable.energy_Wh = 0.001;
+        serializable.intervalMillis = 1000L;
+
+        externalizableBytes = encode(externalizable);
+        serializableBytes = encode(serializable);
+    }
+
+    @Benchmark
+    public byte[] encodeExternalizable() throws IOException {
+        return encode(externalizable);
+    }
+
+    @Benchmark
+    public byte[] encodeSerializable() throws IOException {
+        return encode(serializable);
+    }
+
+    @Benchmark
+    public Object decodeExternalizable() throws IOException, ClassNotFoundException {
+        return decode(externalizableBytes);
+    }
+
+    @Benchmark
+    public Object decodeSerializable() throws IOException, ClassNotFoundException {
+        return decode(serializableBytes);
+    }
+}
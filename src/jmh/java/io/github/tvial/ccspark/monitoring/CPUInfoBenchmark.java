@@ -0,0 +1,57 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.tvial.ccspark.monitoring;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+// Lookups are memoized by the database, so this is the cost of every lookup but the first one
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CPUInfoBenchmark {
+    private CPUInfo cpuInfo = new CPUInfo("src/test/resources/proc_cpuinfo.txt");
+
+    @Benchmark
+    public Optional<Double> exactModel() {
+        return cpuInfo.getTDP("Intel(R) Core(TM) i7-8550U CPU @ 1.80GHz");
+    }
+
+    @Benchmark
+    public Optional<Double> fuzzyModel() {
+        return cpuInfo.getTDP("Intel(R) Xeon(R) Platinum 8375C CPU @ 2.90GHz");
+    }
+
+    @Benchmark
+    public Optional<Double> modelFromCPUInfo() {
+        return cpuInfo.getTDP();
+    }
+}
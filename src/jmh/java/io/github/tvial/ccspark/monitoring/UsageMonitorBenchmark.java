@@ -0,0 +1,104 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.tvial.ccspark.monitoring;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.github.tvial.ccspark.model.CPUScheduling;
+import io.github.tvial.ccspark.model.CoreSchedulings;
+import io.github.tvial.ccspark.model.ExecutorUsageMetrics;
+import io.github.tvial.ccspark.model.ProcessScheduling;
+import io.github.tvial.ccspark.model.Sample;
+
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class UsageMonitorBenchmark {
+    final static int CORES = 64;
+
+    private UsageMonitor monitor;
+    private Sample before;
+    private Sample after;
+    private Sample beforeWithCores;
+    private Sample afterWithCores;
+    private Sample beforeWithEnergy;
+    private Sample afterWithEnergy;
+
+    private static Sample sample(long timestampMillis, long cpuTime, long processTime) {
+        return new Sample(
+            timestampMillis,
+            new CPUScheduling(cpuTime, cpuTime / 10, cpuTime / 5),
+            new ProcessScheduling(processTime, processTime / 10, 0L, 0L)
+        );
+    }
+
+    private static Sample withCores(Sample sample, long busyTime) {
+        sample.cores = new CoreSchedulings(CORES);
+        for (int i = 0; i < CORES; i++) {
+            sample.cores.add(i, busyTime * (i + 1), 1000L * (CORES - i));
+        }
+        return sample;
+    }
+
+    private static Sample withEnergy(Sample sample, long energyMicroJoules) {
+        sample.packageEnergyMicroJoules = energyMicroJoules;
+        sample.dramEnergyMicroJoules = energyMicroJoules / 10;
+        return sample;
+    }
+
+    @Setup
+    public void setUp() {
+        monitor = new UsageMonitor(null, usage -> {}, 150.0);
+
+        before = sample(10000L, 100000L, 20000L);
+        after = sample(11000L, 110000L, 25000L);
+        beforeWithCores = withCores(sample(10000L, 100000L, 20000L), 100L);
+        afterWithCores = withCores(sample(11000L, 110000L, 25000L), 150L);
+        beforeWithEnergy = withEnergy(sample(10000L, 100000L, 20000L), 1000000L);
+        afterWithEnergy = withEnergy(sample(11000L, 110000L, 25000L), 1100000L);
+    }
+
+    @Benchmark
+    public ExecutorUsageMetrics estimatedEnergy() {
+        return monitor.computeUsageMetrics(before, after);
+    }
+
+    @Benchmark
+    public ExecutorUsageMetrics estimatedEnergyPerCore() {
+        return monitor.computeUsageMetrics(beforeWithCores, afterWithCores);
+    }
+
+    @Benchmark
+    public ExecutorUsageMetrics measuredEnergy() {
+        return monitor.computeUsageMetrics(beforeWithEnergy, afterWithEnergy);
+    }
+}
@@ -0,0 +1,76 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.tvial.ccspark.monitoring;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.github.tvial.ccspark.model.Sample;
+import io.github.tvial.ccspark.sampling.SampleRecording;
+
+
+// Replays one million samples, i.e. about 11 days of one executor sampled every second
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class UsageReplayBenchmark {
+    final static int SAMPLES = 1000000;
+
+    private UsageReplay replay;
+    private long[] values;
+
+    @Setup
+    public void setUp() {
+        replay = new UsageReplay(150.0, UsageMonitor.DEFAULT_MEMORY_POWER_PER_GB);
+        values = new long[SAMPLES * SampleRecording.FIELDS];
+
+        for (int i = 0; i < SAMPLES; i++) {
+            int offset = i * SampleRecording.FIELDS;
+            values[offset] = 1000L * i;
+            values[offset + 1] = 800L * i;
+            values[offset + 2] = 10L * i;
+            values[offset + 3] = 190L * i;
+            values[offset + 4] = 40L * i + (i % 7);
+            values[offset + 5] = 10L * i;
+            values[offset + 9] = Sample.UNKNOWN_ENERGY;
+            values[offset + 10] = Sample.UNKNOWN_ENERGY;
+            values[offset + 11] = (1L << 30) + 4096L * (i % 100);
+            values[offset + 12] = 0L;
+            values[offset + 13] = 64L << 30;
+            values[offset + 14] = Sample.UNKNOWN_FREQUENCY;
+            values[offset + 15] = Sample.UNKNOWN_FREQUENCY;
+        }
+    }
+
+    @Benchmark
+    public UsageReplay.Result replayMillionSamples() {
+        return replay.replay("benchmark", values);
+    }
+}
@@ -0,0 +1,90 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.tvial.ccspark.plugin;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.github.tvial.ccspark.model.ExecutorUsageMetrics;
+
+
+// Messages received concurrently by the driver, each sending thread playing one executor. Receiving only
+// queues them, the aggregation thread keeps up or drops them.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DriverReceiveBenchmark {
+    @State(Scope.Benchmark)
+    public static class Driver {
+        CCSparkDriverPlugin plugin = new CCSparkDriverPlugin();
+        AtomicInteger executorCount = new AtomicInteger();
+
+        @Setup
+        public void setUp() {
+            plugin.startAggregation();
+        }
+
+        @TearDown
+        public void tearDown() {
+            plugin.stopAggregation();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Executor {
+        ExecutorUsageMetrics message;
+
+        @Setup
+        public void setUp(Driver driver) {
+            message = new ExecutorUsageMetrics(0.5, 0.001, 1000L);
+            message.executorId = String.valueOf(driver.executorCount.incrementAndGet());
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Object oneSender(Driver driver, Executor executor) {
+        return driver.plugin.receive(executor.message);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Object fourSenders(Driver driver, Executor executor) {
+        return driver.plugin.receive(executor.message);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public Object sixteenSenders(Driver driver, Executor executor) {
+        return driver.plugin.receive(executor.message);
+    }
+}
@@ -0,0 +1,114 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.tvial.ccspark.sampling;
+
+import static java.nio.file.Files.newBufferedReader;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.github.tvial.ccspark.model.CPUScheduling;
+import io.github.tvial.ccspark.model.CoreSchedulings;
+
+
+// Parsing of the whole of /proc/stat, on generated files with more or less cores
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CPUSchedulingsBenchmark {
+    @Param({ "8", "64", "256" })
+    public int cores;
+
+    private Path path;
+    private ProcFileSystemSampleProvider provider;
+    private ProcFileReader reader;
+    private CPUScheduling scheduling = new CPUScheduling(0L, 0L, 0L);
+    private CoreSchedulings coreSchedulings = new CoreSchedulings(DirectProcFileSystemSampleProvider.CORES_CAPACITY);
+
+    static String procStat(int cores) {
+        StringBuilder builder = new StringBuilder();
+
+        builder.append(String.format("cpu  %d 1244708 5143147 19856921 55954 0 151608 0 0 0\n", 1987937L * cores));
+        for (int i = 0; i < cores; i++) {
+            builder.append(String.format("cpu%d 1987937 146781 643300 18714253 42940 0 9523 0 0 0\n", i));
+        }
+        builder.append("intr 739237011 0 91714 0 0 0 0 0 0 0 819558 0 0 11448 0\n");
+        builder.append("ctxt 1712555752\n");
+        builder.append("btime 1709757460\n");
+        builder.append("processes 268133\n");
+        builder.append("procs_running 1\n");
+        builder.append("procs_blocked 0\n");
+        builder.append("softirq 477633965 74387427 35944801 340 17578884 1525378 182 1132005 220539445 48604 126476899\n");
+
+        return builder.toString();
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        path = Files.createTempFile("proc_stat", ".txt");
+        Files.write(path, procStat(cores).getBytes(StandardCharsets.US_ASCII));
+
+        provider = new ProcFileSystemSampleProvider(path.toString(), null);
+        reader = new ProcFileReader(path.toString(), DirectProcFileSystemSampleProvider.CPU_FULL_CAPACITY);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        reader.close();
+        Files.delete(path);
+    }
+
+    @Benchmark
+    public CPUScheduling[] streamParser() throws IOException {
+        BufferedReader bufferedReader = newBufferedReader(path);
+
+        try {
+            return provider.getCPUSchedulings(bufferedReader);
+        }
+        finally {
+            bufferedReader.close();
+        }
+    }
+
+    @Benchmark
+    public CoreSchedulings directParser() throws IOException {
+        reader.read();
+        DirectProcFileSystemSampleProvider.parseCPUScheduling(reader, scheduling);
+        DirectProcFileSystemSampleProvider.parseCoreSchedulings(reader, coreSchedulings);
+        return coreSchedulings;
+    }
+}
@@ -0,0 +1,78 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.tvial.ccspark.sampling;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.github.tvial.ccspark.model.Sample;
+
+
+// One sampling tick, with both parsers, on the live /proc and on the test fixtures
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SampleProviderBenchmark {
+    @Param({ "stream", "direct", "direct-per-core" })
+    public String parser;
+
+    @Param({ "proc", "fixtures" })
+    public String source;
+
+    private ProcFileSystemSampleProvider provider;
+
+    @Setup
+    public void setUp() {
+        boolean fixtures = "fixtures".equals(source);
+        String cpuPath = fixtures ? "src/test/resources/proc_stat.txt" : "/proc/stat";
+        String processPath = fixtures ? "src/test/resources/proc_pid_stat.txt" : null;
+
+        if ("stream".equals(parser)) {
+            provider = fixtures ? new ProcFileSystemSampleProvider(cpuPath, processPath) : new ProcFileSystemSampleProvider();
+        }
+        else {
+            boolean perCore = "direct-per-core".equals(parser);
+            provider = fixtures ? new DirectProcFileSystemSampleProvider(cpuPath, processPath, perCore) : new DirectProcFileSystemSampleProvider(perCore);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        provider.close();
+    }
+
+    @Benchmark
+    public Sample sample() throws IOException {
+        return provider.sample();
+    }
+}
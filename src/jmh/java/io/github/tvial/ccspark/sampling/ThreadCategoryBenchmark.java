@@ -0,0 +1,100 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.tvial.ccspark.sampling;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.github.tvial.ccspark.model.Sample;
+
+
+// Walk of the threads of an executor, on generated task directories and on the live JVM
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ThreadCategoryBenchmark {
+    final static String[] THREAD_NAMES = { "Executor task l", "GC Thread#0", "C2 CompilerThre", "shuffle-client-", "java" };
+
+    @Param({ "self", "100", "500" })
+    public String threads;
+
+    private Path taskPath;
+    private ThreadCategorySampleProvider provider;
+
+    @Setup
+    public void setUp() throws IOException {
+        DirectProcFileSystemSampleProvider delegate = new DirectProcFileSystemSampleProvider(
+            "src/test/resources/proc_stat.txt", "src/test/resources/proc_pid_stat.txt"
+        );
+
+        if ("self".equals(threads)) {
+            provider = new ThreadCategorySampleProvider(delegate);
+            return;
+        }
+
+        taskPath = Files.createTempDirectory("task");
+        for (int tid = 0; tid < Integer.valueOf(threads); tid++) {
+            String name = THREAD_NAMES[tid % THREAD_NAMES.length];
+            Path thread = Files.createDirectory(taskPath.resolve(String.valueOf(tid)));
+            Files.write(thread.resolve("comm"), (name + "\n").getBytes(StandardCharsets.UTF_8));
+            Files.write(thread.resolve("stat"), String.format(
+                "%d (%s) S 1 1 1 0 -1 4194368 100 0 0 0 %d %d 0 0 20 0 50 0 100 0 0\n", tid, name, 1000 + tid, 100 + tid
+            ).getBytes(StandardCharsets.UTF_8));
+        }
+        provider = new ThreadCategorySampleProvider(delegate, taskPath.toString());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        provider.close();
+
+        if (taskPath != null) {
+            for (File thread : taskPath.toFile().listFiles()) {
+                for (File file : thread.listFiles()) {
+                    file.delete();
+                }
+                thread.delete();
+            }
+            Files.delete(taskPath);
+        }
+    }
+
+    @Benchmark
+    public Sample sample() throws IOException {
+        return provider.sample();
+    }
+}
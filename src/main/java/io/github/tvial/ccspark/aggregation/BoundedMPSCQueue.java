@@ -0,0 +1,104 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+
+package io.github.tvial.ccspark.aggregation;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+
+// Bounded queue for many producers and a single consumer, without locks. Producers claim a slot by moving
+// the tail forward, then publish their element in it; offering to a full queue fails at once and counts a drop.
+// The consumer takes elements in order, and stops at a claimed slot that is not published yet.
+public class BoundedMPSCQueue<T> {
+    private final AtomicReferenceArray<T> slots;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong(0L);
+    // Only moved by the consumer
+    private final AtomicLong head = new AtomicLong(0L);
+    private final LongAdder dropped = new LongAdder();
+
+    // The capacity is rounded up to a power of two
+    public BoundedMPSCQueue(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException(String.format("Invalid queue capacity: %d", capacity));
+        }
+
+        int roundedCapacity = Integer.highestOneBit(capacity);
+        if (roundedCapacity < capacity) {
+            roundedCapacity <<= 1;
+        }
+        slots = new AtomicReferenceArray<T>(roundedCapacity);
+        mask = roundedCapacity - 1;
+    }
+
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    // Returns false if the queue is full
+    public boolean offer(T element) {
+        if (element == null) {
+            throw new NullPointerException();
+        }
+
+        long t;
+        do {
+            t = tail.get();
+            if (t - head.get() > mask) {
+                dropped.increment();
+                return false;
+            }
+        } while (!tail.compareAndSet(t, t + 1));
+
+        slots.lazySet((int)(t & mask), element);
+        return true;
+    }
+
+    // Consumer side only. Returns the number of elements handed to the consumer, at most maxElements.
+    public int drain(Consumer<T> consumer, int maxElements) {
+        long h = head.get();
+        int count = 0;
+
+        while (count < maxElements) {
+            int index = (int)(h & mask);
+            T element = slots.get(index);
+            if (element == null) {
+                break;
+            }
+
+            // Freed before consuming, so that a consumer throwing does not leave the queue inconsistent
+            slots.lazySet(index, null);
+            head.lazySet(++h);
+            count++;
+            consumer.accept(element);
+        }
+
+        return count;
+    }
+
+    // Elements waiting for the consumer, including the ones being published
+    public int size() {
+        return (int)Math.max(0L, tail.get() - head.get());
+    }
+
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+}
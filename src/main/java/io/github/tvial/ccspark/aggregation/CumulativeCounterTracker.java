@@ -0,0 +1,97 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.tvial.ccspark.aggregation;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.github.tvial.ccspark.model.ExecutorUsageMetrics;
+
+
+// Turns the cumulative counters sent by the executors back into increments since the previous message of
+// the same executor. Messages that were already seen, or overtaken by a later one, are rejected. Lost
+// messages are only counted, as the next one carries what they missed. Only their total energy is recovered
+// though: their breakdown (memory, stages, thread categories) is lost, and its energy counted apart.
+public class CumulativeCounterTracker {
+    static class Counters {
+        long sequence;
+        double energy_Wh;
+        long pluginCpuNanos;
+        long processCpuNanos;
+    }
+
+    private ConcurrentHashMap<String, Counters> counters = new ConcurrentHashMap<String, Counters>();
+    private LongAdder duplicates = new LongAdder();
+    private LongAdder gaps = new LongAdder();
+    private DoubleAdder recoveredEnergy = new DoubleAdder();
+
+    // Returns false if the message must be ignored. Otherwise, its increments are set from the counters.
+    public boolean toIncrements(ExecutorUsageMetrics metrics) {
+        if (!metrics.hasCumulativeCounters) {
+            // Increments only: nothing to check against
+            return true;
+        }
+
+        String executorId = metrics.executorId == null ? EnergyAggregator.UNKNOWN_EXECUTOR_ID : metrics.executorId;
+        Counters executorCounters = counters.get(executorId);
+        if (executorCounters == null) {
+            executorCounters = counters.computeIfAbsent(executorId, id -> new Counters());
+        }
+
+        synchronized (executorCounters) {
+            if (metrics.sequence != 0L && metrics.sequence <= executorCounters.sequence) {
+                duplicates.increment();
+                return false;
+            }
+            boolean gap = metrics.sequence > executorCounters.sequence + 1;
+            if (gap) {
+                gaps.add(metrics.sequence - executorCounters.sequence - 1);
+            }
+
+            // Before the increments replace it, the energy is the one of this message alone
+            double ownEnergy_Wh = metrics.energy_Wh;
+            metrics.energy_Wh = Math.max(0.0, metrics.cumulativeEnergy_Wh - executorCounters.energy_Wh);
+            if (gap && metrics.energy_Wh > ownEnergy_Wh) {
+                recoveredEnergy.add(metrics.energy_Wh - ownEnergy_Wh);
+            }
+            metrics.pluginCpuNanos = Math.max(0L, metrics.cumulativePluginCpuNanos - executorCounters.pluginCpuNanos);
+            metrics.processCpuNanos = Math.max(0L, metrics.cumulativeProcessCpuNanos - executorCounters.processCpuNanos);
+
+            executorCounters.sequence = Math.max(executorCounters.sequence, metrics.sequence);
+            executorCounters.energy_Wh = Math.max(executorCounters.energy_Wh, metrics.cumulativeEnergy_Wh);
+            executorCounters.pluginCpuNanos = Math.max(executorCounters.pluginCpuNanos, metrics.cumulativePluginCpuNanos);
+            executorCounters.processCpuNanos = Math.max(executorCounters.processCpuNanos, metrics.cumulativeProcessCpuNanos);
+        }
+
+        return true;
+    }
+
+    public long getDuplicateCount() {
+        return duplicates.sum();
+    }
+
+    // Messages never received
+    public long getGapCount() {
+        return gaps.sum();
+    }
+
+    // Energy of the messages never received, made up for by the next ones, but without any breakdown
+    public double getRecoveredEnergy() {
+        return recoveredEnergy.sum();
+    }
+}
@@ -0,0 +1,80 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.tvial.ccspark.aggregation;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+
+public class EnergyAggregator {
+    final static String UNKNOWN_EXECUTOR_ID = "unknown";
+
+    private ConcurrentHashMap<String, DoubleAdder> energyByExecutor;
+    private LongAdder messageCount;
+
+    public EnergyAggregator() {
+        this.energyByExecutor = new ConcurrentHashMap<String, DoubleAdder>();
+        this.messageCount = new LongAdder();
+    }
+
+    public void add(String executorId, double energy_Wh) {
+        getSlot(executorId == null ? UNKNOWN_EXECUTOR_ID : executorId).add(energy_Wh);
+        messageCount.increment();
+    }
+
+    public double getTotalEnergy() {
+        double total = 0.0;
+
+        for (DoubleAdder slot : energyByExecutor.values()) {
+            total += slot.sum();
+        }
+
+        return total;
+    }
+
+    public Map<String, Double> getEnergyByExecutor() {
+        Map<String, Double> energies = new HashMap<String, Double>();
+
+        for (Map.Entry<String, DoubleAdder> entry : energyByExecutor.entrySet()) {
+            energies.put(entry.getKey(), entry.getValue().sum());
+        }
+
+        return energies;
+    }
+
+    public int getExecutorCount() {
+        return energyByExecutor.size();
+    }
+
+    public long getMessageCount() {
+        return messageCount.sum();
+    }
+
+    private DoubleAdder getSlot(String executorId) {
+        // A plain lookup first: computeIfAbsent locks the bin even when the key is present on Java 8
+        DoubleAdder slot = energyByExecutor.get(executorId);
+
+        if (slot == null) {
+            slot = energyByExecutor.computeIfAbsent(executorId, id -> new DoubleAdder());
+        }
+
+        return slot;
+    }
+}
@@ -0,0 +1,176 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package io.github.tvial.ccspark.aggregation;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAdder;
+
+import io.github.tvial.ccspark.model.StageUsage;
+
+
+// Credits each SQL execution with the energy of the stages of its jobs, as measured on the executors, so that
+// a query is charged for its own tasks whenever its readings arrive. Energy spent outside of the stages of
+// any execution (idle executors, plain RDD jobs, readings lost with their breakdown) is kept apart. Only the
+// heaviest ended executions are kept, so that the report stays bounded in long-lived applications (Thrift
+// server, notebooks), but not before their late readings had a chance to arrive.
+public class SQLExecutionEnergyAggregator {
+    public final static int DEFAULT_MAX_ENDED_EXECUTIONS = 1000;
+    // Readings come up to a batch after the end of their tasks, and may wait in the ingestion queue
+    public final static long DEFAULT_LATE_READINGS_MILLIS = 60000L;
+
+    // Running and ended executions
+    private ConcurrentHashMap<Long, SQLExecutionUsage> executions;
+    private ConcurrentHashMap<Integer, SQLExecutionUsage> stageExecutions;
+    // Guarded by this
+    private HashMap<Long, List<Integer>> executionStages;
+    private int endedCount;
+    private int maxEndedExecutions;
+    private long lateReadingsMillis;
+    private DoubleAdder unattributed;
+
+    public SQLExecutionEnergyAggregator(int maxEndedExecutions, long lateReadingsMillis) {
+        this.executions = new ConcurrentHashMap<Long, SQLExecutionUsage>();
+        this.stageExecutions = new ConcurrentHashMap<Integer, SQLExecutionUsage>();
+        this.executionStages = new HashMap<Long, List<Integer>>();
+        this.endedCount = 0;
+        this.maxEndedExecutions = maxEndedExecutions;
+        this.lateReadingsMillis = lateReadingsMillis;
+        this.unattributed = new DoubleAdder();
+    }
+
+    public SQLExecutionEnergyAggregator(int maxEndedExecutions) {
+        this(maxEndedExecutions, DEFAULT_LATE_READINGS_MILLIS);
+    }
+
+    public SQLExecutionEnergyAggregator() {
+        this(DEFAULT_MAX_ENDED_EXECUTIONS);
+    }
+
+    public void executionStarted(long executionId, String description, long startMillis) {
+        executions.putIfAbsent(executionId, new SQLExecutionUsage(executionId, description, startMillis));
+    }
+
+    // A stage reused by a later execution (e.g. a cached shuffle) stays with the first one
+    public synchronized void jobStarted(long executionId, int[] stageIds) {
+        SQLExecutionUsage usage = executions.get(executionId);
+        if (usage == null) {
+            return;
+        }
+
+        List<Integer> stages = executionStages.computeIfAbsent(executionId, id -> new ArrayList<Integer>());
+        for (int stageId : stageIds) {
+            if (stageExecutions.putIfAbsent(stageId, usage) == null) {
+                stages.add(stageId);
+            }
+        }
+    }
+
+    public synchronized void executionEnded(long executionId, long endMillis) {
+        SQLExecutionUsage usage = executions.get(executionId);
+        if (usage == null) {
+            return;
+        }
+
+        synchronized (usage) {
+            if (usage.endMillis != SQLExecutionUsage.RUNNING) {
+                return;
+            }
+            usage.endMillis = endMillis;
+        }
+        endedCount++;
+        dropLightestEnded(endMillis);
+    }
+
+    // Only when an execution ends, so the linear scan is fine. Executions that ended recently may still
+    // receive energy, so they are not candidates yet.
+    private void dropLightestEnded(long nowMillis) {
+        while (endedCount > maxEndedExecutions) {
+            SQLExecutionUsage lightest = null;
+            for (SQLExecutionUsage usage : executions.values()) {
+                synchronized (usage) {
+                    if (usage.endMillis != SQLExecutionUsage.RUNNING && usage.endMillis <= nowMillis - lateReadingsMillis
+                        && (lightest == null || usage.energy_Wh < lightest.energy_Wh)) {
+                        lightest = usage;
+                    }
+                }
+            }
+            if (lightest == null) {
+                return;
+            }
+
+            executions.remove(lightest.executionId);
+            List<Integer> stages = executionStages.remove(lightest.executionId);
+            if (stages != null) {
+                for (int stageId : stages) {
+                    stageExecutions.remove(stageId, lightest);
+                }
+            }
+            endedCount--;
+        }
+    }
+
+    // The energy of the stages of an execution goes to it, the rest of the reading is kept apart
+    public void add(StageUsage[] stages, double energy_Wh) {
+        double attributed = 0.0;
+
+        if (stages != null) {
+            for (StageUsage stage : stages) {
+                SQLExecutionUsage usage = stageExecutions.get(stage.stageId);
+                if (usage != null) {
+                    synchronized (usage) {
+                        usage.energy_Wh += stage.energy_Wh;
+                    }
+                    attributed += stage.energy_Wh;
+                }
+            }
+        }
+
+        unattributed.add(Math.max(0.0, energy_Wh - attributed));
+    }
+
+    public int getActiveCount() {
+        int count = 0;
+        for (SQLExecutionUsage usage : executions.values()) {
+            synchronized (usage) {
+                if (usage.endMillis == SQLExecutionUsage.RUNNING) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    public double getUnattributedEnergy() {
+        return unattributed.sum();
+    }
+
+    // Running and ended executions, sorted by decreasing energy
+    public List<SQLExecutionUsage> getExecutionUsages() {
+        List<SQLExecutionUsage> usages = new ArrayList<SQLExecutionUsage>();
+
+        for (SQLExecutionUsage usage : executions.values()) {
+            synchronized (usage) {
+                usages.add(usage.copy());
+            }
+        }
+
+        usages.sort((a, b) -> Double.compare(b.energy_Wh, a.energy_Wh));
+        return usages;
+    }
+}
@@ -0,0 +1,59 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package io.github.tvial.ccspark.aggregation;
+
+
+// Energy of one Spark SQL execution (a query), while it runs and once it has ended
+public class SQLExecutionUsage {
+    public final static long RUNNING = -1L;
+
+    public long executionId;
+    public String description;
+    public long startMillis;
+    public long endMillis;
+    public double energy_Wh;
+
+    public SQLExecutionUsage(long executionId, String description, long startMillis) {
+        this.executionId = executionId;
+        this.description = description;
+        this.startMillis = startMillis;
+        this.endMillis = RUNNING;
+        this.energy_Wh = 0.0;
+    }
+
+    public long getDurationMillis(long nowMillis) {
+        return (endMillis == RUNNING ? nowMillis : endMillis) - startMillis;
+    }
+
+    public SQLExecutionUsage copy() {
+        SQLExecutionUsage copy = new SQLExecutionUsage(executionId, description, startMillis);
+        copy.endMillis = endMillis;
+        copy.energy_Wh = energy_Wh;
+        return copy;
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder()
+            .append("<execution: ").append(executionId)
+            .append(", description: ").append(description)
+            .append(", start: ").append(startMillis)
+            .append(", end: ").append(endMillis)
+            .append(", energy: ").append(energy_Wh).append(" Wh")
+            .append(">")
+            .toString();
+    }
+}
@@ -0,0 +1,116 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.tvial.ccspark.aggregation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.github.tvial.ccspark.model.StageUsage;
+
+
+// Totals per stage attempt, over all executors. Only the heaviest stages that are not running are kept, so
+// that the report stays bounded in long-lived applications. Readings may arrive after the end of their stage,
+// so a stage is only dropped once enough heavier ones have ended.
+public class StageEnergyAggregator {
+    public final static int DEFAULT_MAX_ENDED_STAGES = 1000;
+
+    private ConcurrentHashMap<Long, StageUsage> stages;
+    // As told by the listener bus. Stages never reported as running can be dropped as well.
+    private Set<Long> running;
+    private int maxEndedStages;
+
+    public StageEnergyAggregator(int maxEndedStages) {
+        this.stages = new ConcurrentHashMap<Long, StageUsage>();
+        this.running = ConcurrentHashMap.newKeySet();
+        this.maxEndedStages = maxEndedStages;
+    }
+
+    public StageEnergyAggregator() {
+        this(DEFAULT_MAX_ENDED_STAGES);
+    }
+
+    private static long key(int stageId, int stageAttempt) {
+        return ((long)stageId << 32) | stageAttempt;
+    }
+
+    public void stageStarted(int stageId, int stageAttempt) {
+        running.add(key(stageId, stageAttempt));
+    }
+
+    public void stageEnded(int stageId, int stageAttempt) {
+        running.remove(key(stageId, stageAttempt));
+        dropLightestEnded();
+    }
+
+    public void add(StageUsage[] usages) {
+        for (StageUsage usage : usages) {
+            long key = key(usage.stageId, usage.stageAttempt);
+            StageUsage total = stages.get(key);
+            boolean added = total == null;
+
+            if (added) {
+                total = stages.computeIfAbsent(key, k -> new StageUsage(usage.stageId, usage.stageAttempt));
+            }
+
+            synchronized (total) {
+                total.add(usage);
+            }
+            // Once its energy is known, so that it competes fairly
+            if (added) {
+                dropLightestEnded();
+            }
+        }
+    }
+
+    // Only when a stage ends or appears, so the linear scan is fine
+    private synchronized void dropLightestEnded() {
+        while (stages.size() - running.size() > maxEndedStages) {
+            Map.Entry<Long, StageUsage> lightest = null;
+            for (Map.Entry<Long, StageUsage> entry : stages.entrySet()) {
+                if (!running.contains(entry.getKey())
+                    && (lightest == null || entry.getValue().energy_Wh < lightest.getValue().energy_Wh)) {
+                    lightest = entry;
+                }
+            }
+            if (lightest == null) {
+                return;
+            }
+            stages.remove(lightest.getKey());
+        }
+    }
+
+    public int getStageCount() {
+        return stages.size();
+    }
+
+    // Sorted by decreasing energy
+    public List<StageUsage> getStageUsages() {
+        List<StageUsage> usages = new ArrayList<StageUsage>();
+
+        for (StageUsage total : stages.values()) {
+            synchronized (total) {
+                usages.add(total.copy());
+            }
+        }
+
+        usages.sort((a, b) -> Double.compare(b.energy_Wh, a.energy_Wh));
+        return usages;
+    }
+}
@@ -0,0 +1,37 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.tvial.ccspark.aggregation;
+
+import io.github.tvial.ccspark.model.ThreadCategoryUsage;
+
+
+// Totals per thread category, over all executors
+public class ThreadCategoryAggregator {
+    private ThreadCategoryUsage total;
+
+    public ThreadCategoryAggregator() {
+        this.total = new ThreadCategoryUsage();
+    }
+
+    public synchronized void add(ThreadCategoryUsage usage) {
+        total.add(usage);
+    }
+
+    public synchronized ThreadCategoryUsage getTotal() {
+        return total.copy();
+    }
+}
@@ -0,0 +1,243 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.tvial.ccspark.aggregation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+// Recent load and energy of each executor, in fixed-size rings of primitive arrays. Points falling out of
+// the finest ring are folded into the buckets of a coarser one, and so on, so that the memory used per
+// executor is constant whatever the lifetime of the application. With the default tiers, an executor
+// takes about 11 KB, and 24 hours are covered.
+public class UsageHistory {
+    final static int[] TIER_CAPACITIES = { 360, 240, 96 };
+    final static int[] TIER_BUCKET_SECONDS = { 0, 60, 900 };
+
+    // Timestamp, load, energy and count, per point
+    final static int BYTES_PER_POINT = 16;
+
+    static class Ring {
+        final int bucketSeconds;
+        final int[] timestamps;
+        final float[] loads;
+        final float[] energies;
+        final int[] counts;
+        int start;
+        int size;
+
+        Ring(int capacity, int bucketSeconds) {
+            this.bucketSeconds = bucketSeconds;
+            this.timestamps = new int[capacity];
+            this.loads = new float[capacity];
+            this.energies = new float[capacity];
+            this.counts = new int[capacity];
+            this.start = 0;
+            this.size = 0;
+        }
+
+        int index(int i) {
+            return (start + i) % timestamps.length;
+        }
+    }
+
+    static class ExecutorHistory {
+        final Ring[] tiers;
+        volatile long lastUpdateMillis;
+
+        ExecutorHistory() {
+            tiers = new Ring[TIER_CAPACITIES.length];
+            for (int i = 0; i < tiers.length; i++) {
+                tiers[i] = new Ring(TIER_CAPACITIES[i], TIER_BUCKET_SECONDS[i]);
+            }
+        }
+
+        synchronized void add(int timestamp, float load, float energy, int count) {
+            add(0, timestamp, load, energy, count);
+        }
+
+        private void add(int tier, int timestamp, float load, float energy, int count) {
+            Ring ring = tiers[tier];
+
+            if (ring.bucketSeconds > 0) {
+                timestamp -= Math.floorMod(timestamp, ring.bucketSeconds);
+
+                // Same bucket as the latest one: merge into it
+                if (ring.size > 0) {
+                    int last = ring.index(ring.size - 1);
+                    if (ring.timestamps[last] == timestamp) {
+                        int merged = ring.counts[last] + count;
+                        ring.loads[last] = (ring.loads[last] * ring.counts[last] + load * count) / merged;
+                        ring.energies[last] += energy;
+                        ring.counts[last] = merged;
+                        return;
+                    }
+                }
+            }
+
+            if (ring.size == ring.timestamps.length) {
+                // Full: the oldest point moves to the next tier, or is dropped from the last one
+                int oldest = ring.start;
+                if (tier + 1 < tiers.length) {
+                    add(tier + 1, ring.timestamps[oldest], ring.loads[oldest], ring.energies[oldest], ring.counts[oldest]);
+                }
+                ring.start = (ring.start + 1) % ring.timestamps.length;
+                ring.size--;
+            }
+
+            int index = ring.index(ring.size);
+            ring.timestamps[index] = timestamp;
+            ring.loads[index] = load;
+            ring.energies[index] = energy;
+            ring.counts[index] = count;
+            ring.size++;
+        }
+
+        // Oldest first, coarser tiers first
+        synchronized void collect(int from, int to, List<UsagePoint> points, long baseMillis) {
+            for (int tier = tiers.length - 1; tier >= 0; tier--) {
+                Ring ring = tiers[tier];
+                for (int i = 0; i < ring.size; i++) {
+                    int index = ring.index(i);
+                    int timestamp = ring.timestamps[index];
+                    if (timestamp >= from && timestamp < to) {
+                        points.add(new UsagePoint(baseMillis + 1000L * timestamp, ring.loads[index], ring.energies[index]));
+                    }
+                }
+            }
+        }
+    }
+
+    private long baseMillis;
+    private int maxExecutors;
+    private ConcurrentHashMap<String, ExecutorHistory> histories;
+
+    public UsageHistory(long maxBytes) {
+        this(maxBytes, System.currentTimeMillis());
+    }
+
+    UsageHistory(long maxBytes, long baseMillis) {
+        this.baseMillis = baseMillis;
+        this.maxExecutors = (int)Math.max(1L, maxBytes / getBytesPerExecutor());
+        this.histories = new ConcurrentHashMap<String, ExecutorHistory>();
+    }
+
+    public static long getBytesPerExecutor() {
+        long points = 0L;
+        for (int capacity : TIER_CAPACITIES) {
+            points += capacity;
+        }
+        return points * BYTES_PER_POINT;
+    }
+
+    public int getMaxExecutors() {
+        return maxExecutors;
+    }
+
+    public void add(String executorId, long timestampMillis, double load, double energy_Wh) {
+        if (executorId == null) {
+            executorId = EnergyAggregator.UNKNOWN_EXECUTOR_ID;
+        }
+        ExecutorHistory history = histories.get(executorId);
+
+        if (history == null) {
+            if (histories.size() >= maxExecutors) {
+                evictLeastRecentlyUpdated();
+            }
+            history = histories.computeIfAbsent(executorId, id -> new ExecutorHistory());
+        }
+
+        history.lastUpdateMillis = timestampMillis;
+        history.add(toSeconds(timestampMillis), (float)load, (float)energy_Wh, 1);
+    }
+
+    public List<UsagePoint> getSeries(String executorId, long fromMillis, long toMillis) {
+        List<UsagePoint> points = new ArrayList<UsagePoint>();
+        ExecutorHistory history = histories.get(executorId);
+
+        if (history != null) {
+            history.collect(toSeconds(fromMillis), toSeconds(toMillis), points, baseMillis);
+        }
+
+        return points;
+    }
+
+    // Cluster-wide series, in buckets of the given width: energies are summed, and so are the mean loads
+    // of the executors in each bucket
+    public List<UsagePoint> getClusterSeries(long fromMillis, long toMillis, long bucketMillis) {
+        int bucketCount = (int)Math.max(1L, (toMillis - fromMillis + bucketMillis - 1) / bucketMillis);
+        double[] energies = new double[bucketCount];
+        double[] loads = new double[bucketCount];
+        double[] executorLoads = new double[bucketCount];
+        int[] executorCounts = new int[bucketCount];
+
+        List<UsagePoint> points = new ArrayList<UsagePoint>();
+        for (ExecutorHistory history : histories.values()) {
+            points.clear();
+            history.collect(toSeconds(fromMillis), toSeconds(toMillis), points, baseMillis);
+
+            Arrays.fill(executorLoads, 0.0);
+            Arrays.fill(executorCounts, 0);
+            for (UsagePoint point : points) {
+                int bucket = (int)((point.timestampMillis - fromMillis) / bucketMillis);
+                if (bucket < 0 || bucket >= bucketCount) {
+                    continue;
+                }
+                energies[bucket] += point.energy_Wh;
+                executorLoads[bucket] += point.load;
+                executorCounts[bucket]++;
+            }
+
+            for (int bucket = 0; bucket < bucketCount; bucket++) {
+                if (executorCounts[bucket] > 0) {
+                    loads[bucket] += executorLoads[bucket] / executorCounts[bucket];
+                }
+            }
+        }
+
+        List<UsagePoint> series = new ArrayList<UsagePoint>(bucketCount);
+        for (int bucket = 0; bucket < bucketCount; bucket++) {
+            series.add(new UsagePoint(fromMillis + bucket * bucketMillis, loads[bucket], energies[bucket]));
+        }
+        return series;
+    }
+
+    public int getExecutorCount() {
+        return histories.size();
+    }
+
+    private int toSeconds(long timestampMillis) {
+        return (int)Math.floorDiv(timestampMillis - baseMillis, 1000L);
+    }
+
+    private void evictLeastRecentlyUpdated() {
+        Map.Entry<String, ExecutorHistory> oldest = null;
+
+        for (Map.Entry<String, ExecutorHistory> entry : histories.entrySet()) {
+            if (oldest == null || entry.getValue().lastUpdateMillis < oldest.getValue().lastUpdateMillis) {
+                oldest = entry;
+            }
+        }
+
+        if (oldest != null) {
+            histories.remove(oldest.getKey(), oldest.getValue());
+        }
+    }
+}
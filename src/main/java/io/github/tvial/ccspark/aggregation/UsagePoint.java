@@ -0,0 +1,40 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.tvial.ccspark.aggregation;
+
+
+public class UsagePoint {
+    public long timestampMillis;
+    public double load;
+    public double energy_Wh;
+
+    public UsagePoint(long timestampMillis, double load, double energy_Wh) {
+        this.timestampMillis = timestampMillis;
+        this.load = load;
+        this.energy_Wh = energy_Wh;
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder()
+            .append("<timestamp: ").append(timestampMillis)
+            .append(", load: ").append(load)
+            .append(", energy: ").append(energy_Wh).append(" Wh")
+            .append(">")
+            .toString();
+    }
+}
@@ -0,0 +1,274 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package io.github.tvial.ccspark.journal;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+// Append-only journal of the readings received by the driver, so that they outlive the application. Readings
+// are queued without waiting, and written by a single thread into memory-mapped segments of fixed-size
+// records. Each segment starts with a header holding its record count and time range, updated after each
+// record, so that a segment is readable even if the driver dies. A small index lists the time range of
+// each finished segment, for range scans.
+public class EnergyJournal implements Closeable {
+    final static Logger logger = LoggerFactory.getLogger(EnergyJournal.class);
+
+    final static int MAGIC = 0x43434a31;
+    final static int HEADER_BYTES = 32;
+    final static int RECORD_BYTES = 32;
+    final static int INDEX_ENTRY_BYTES = 24;
+    final static String INDEX_FILE = "index.ccj";
+    final static String SEGMENT_PREFIX = "segment-";
+    final static String SEGMENT_SUFFIX = ".ccj";
+
+    // Header: magic, record size, record count, first and last timestamps
+    final static int COUNT_OFFSET = 8;
+    final static int FIRST_TIMESTAMP_OFFSET = 16;
+    final static int LAST_TIMESTAMP_OFFSET = 24;
+
+    // 32 MB per segment
+    public final static int DEFAULT_SEGMENT_RECORDS = 1 << 20;
+    public final static int DEFAULT_QUEUE_CAPACITY = 1 << 16;
+    final static long POLL_MILLIS = 100L;
+
+    private File directory;
+    private int segmentRecords;
+    private ArrayBlockingQueue<JournalRecord> queue;
+    private Thread writer;
+    private volatile boolean closed;
+    private LongAdder dropped;
+    private AtomicLong written;
+
+    // Only touched by the writer thread
+    private FileChannel index;
+    private ByteBuffer indexEntry;
+    private MappedByteBuffer segment;
+    private int segmentNumber;
+    private int segmentCount;
+    private long firstTimestampMillis;
+    private long lastTimestampMillis;
+
+    public EnergyJournal(String directory, int segmentRecords, int queueCapacity) throws IOException {
+        this.directory = new File(directory);
+        if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+            throw new IOException(String.format("Cannot create journal directory %s", directory));
+        }
+
+        this.segmentRecords = segmentRecords;
+        this.queue = new ArrayBlockingQueue<JournalRecord>(queueCapacity);
+        this.closed = false;
+        this.dropped = new LongAdder();
+        this.written = new AtomicLong(0L);
+
+        this.index = FileChannel.open(
+            new File(this.directory, INDEX_FILE).toPath(),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND
+        );
+        this.indexEntry = ByteBuffer.allocate(INDEX_ENTRY_BYTES);
+        this.segment = null;
+        // Segments of earlier runs in the same directory are kept
+        this.segmentNumber = lastSegmentNumber(this.directory);
+        this.segmentCount = 0;
+        this.lastTimestampMillis = Long.MIN_VALUE;
+
+        this.writer = new Thread(this::write, "Energy journal");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    public EnergyJournal(String directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_RECORDS, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    static String segmentName(int number) {
+        return String.format("%s%06d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX);
+    }
+
+    static int segmentNumber(String name) {
+        if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        }
+        catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static int lastSegmentNumber(File directory) {
+        int last = -1;
+        String[] names = directory.list();
+        if (names != null) {
+            for (String name : names) {
+                last = Math.max(last, segmentNumber(name));
+            }
+        }
+        return last;
+    }
+
+    // Never waits: when the writer cannot keep up, or is closed, the reading is dropped and counted
+    public boolean append(long timestampMillis, String executorId, double load, double energy_Wh, double memoryEnergy_Wh) {
+        if (closed) {
+            dropped.increment();
+            return false;
+        }
+
+        JournalRecord record = new JournalRecord(timestampMillis, executorId, load, energy_Wh, memoryEnergy_Wh);
+        if (!queue.offer(record)) {
+            dropped.increment();
+            return false;
+        }
+
+        // Closed in the meantime: the writer may have stopped before taking it. If it is still queued, it never
+        // will be written.
+        if (closed && queue.remove(record)) {
+            dropped.increment();
+            return false;
+        }
+        return true;
+    }
+
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    public long getWrittenCount() {
+        return written.get();
+    }
+
+    private void write() {
+        try {
+            while (!closed || !queue.isEmpty()) {
+                JournalRecord record;
+                try {
+                    record = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                catch (InterruptedException e) {
+                    closed = true;
+                    continue;
+                }
+
+                if (record != null) {
+                    writeRecord(record);
+                }
+            }
+            finishSegment();
+        }
+        catch (IOException e) {
+            logger.warn(String.format("Cannot write energy journal in %s, reason: %s", directory, e.getMessage()));
+            closed = true;
+            dropped.add(queue.drainTo(new ArrayList<JournalRecord>()));
+        }
+    }
+
+    private void writeRecord(JournalRecord record) throws IOException {
+        if (segment == null || segmentCount == segmentRecords) {
+            finishSegment();
+            startSegment();
+        }
+
+        // Timestamps never go backwards, so that a segment can be searched by time
+        long timestampMillis = Math.max(record.timestampMillis, lastTimestampMillis);
+        int position = HEADER_BYTES + segmentCount * RECORD_BYTES;
+
+        segment.putLong(position, timestampMillis);
+        segment.putInt(position + 8, JournalRecord.encodeExecutorId(record.executorId));
+        segment.putFloat(position + 12, (float)record.load);
+        segment.putDouble(position + 16, record.energy_Wh);
+        segment.putDouble(position + 24, record.memoryEnergy_Wh);
+
+        if (segmentCount == 0) {
+            firstTimestampMillis = timestampMillis;
+            segment.putLong(FIRST_TIMESTAMP_OFFSET, timestampMillis);
+        }
+        segment.putLong(LAST_TIMESTAMP_OFFSET, timestampMillis);
+        // Last, so that a partly written record is never counted
+        segmentCount++;
+        segment.putLong(COUNT_OFFSET, segmentCount);
+
+        lastTimestampMillis = timestampMillis;
+        written.incrementAndGet();
+    }
+
+    private void startSegment() throws IOException {
+        segmentNumber++;
+        segmentCount = 0;
+
+        File file = new File(directory, segmentName(segmentNumber));
+        RandomAccessFile segmentFile = new RandomAccessFile(file, "rw");
+        try {
+            // The mapping stays valid once the file is closed
+            segment = segmentFile.getChannel().map(
+                FileChannel.MapMode.READ_WRITE, 0L, HEADER_BYTES + (long)segmentRecords * RECORD_BYTES
+            );
+        }
+        finally {
+            segmentFile.close();
+        }
+
+        segment.putInt(0, MAGIC);
+        segment.putInt(4, RECORD_BYTES);
+        segment.putLong(COUNT_OFFSET, 0L);
+    }
+
+    private void finishSegment() throws IOException {
+        if (segment == null) {
+            return;
+        }
+
+        segment.force();
+        if (segmentCount > 0) {
+            indexEntry.clear();
+            indexEntry.putInt(segmentNumber).putInt(segmentCount).putLong(firstTimestampMillis).putLong(lastTimestampMillis);
+            indexEntry.flip();
+            while (indexEntry.hasRemaining()) {
+                index.write(indexEntry);
+            }
+        }
+        segment = null;
+    }
+
+    // Writes what is still queued, then stops the writer
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        try {
+            writer.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            index.close();
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package io.github.tvial.ccspark.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+
+// Reads the records of a journal within a time range, oldest first. The index is used to skip segments
+// outside the range; segments missing from it (the last one of a run that did not end cleanly) are read
+// from their header. Usage: EnergyJournalReader <directory> [<from ms> <to ms>], which prints CSV rows.
+public class EnergyJournalReader {
+    final static String CSV_HEADER = "timestamp_ms,executor_id,load,energy_wh,memory_energy_wh";
+
+    private File directory;
+
+    public EnergyJournalReader(String directory) {
+        this.directory = new File(directory);
+    }
+
+    // Time range of each finished segment, from the index
+    private Map<Integer, long[]> readIndex() throws IOException {
+        Map<Integer, long[]> ranges = new HashMap<Integer, long[]>();
+        File indexFile = new File(directory, EnergyJournal.INDEX_FILE);
+        if (!indexFile.exists()) {
+            return ranges;
+        }
+
+        ByteBuffer index = ByteBuffer.wrap(Files.readAllBytes(indexFile.toPath()));
+        while (index.remaining() >= EnergyJournal.INDEX_ENTRY_BYTES) {
+            int number = index.getInt();
+            index.getInt();
+            ranges.put(number, new long[] { index.getLong(), index.getLong() });
+        }
+        return ranges;
+    }
+
+    private int[] listSegments() throws IOException {
+        String[] names = directory.list();
+        if (names == null) {
+            throw new IOException(String.format("Cannot list journal directory %s", directory));
+        }
+
+        int[] numbers = new int[names.length];
+        int count = 0;
+        for (String name : names) {
+            int number = EnergyJournal.segmentNumber(name);
+            if (number >= 0) {
+                numbers[count++] = number;
+            }
+        }
+
+        numbers = Arrays.copyOf(numbers, count);
+        Arrays.sort(numbers);
+        return numbers;
+    }
+
+    // Reads the records with fromMillis <= timestamp < toMillis, returns their number
+    public long read(long fromMillis, long toMillis, Consumer<JournalRecord> consumer) throws IOException {
+        Map<Integer, long[]> ranges = readIndex();
+        long count = 0L;
+
+        for (int number : listSegments()) {
+            long[] range = ranges.get(number);
+            if (range != null && (range[1] < fromMillis || range[0] >= toMillis)) {
+                continue;
+            }
+            count += readSegment(new File(directory, EnergyJournal.segmentName(number)), fromMillis, toMillis, consumer);
+        }
+
+        return count;
+    }
+
+    public long read(Consumer<JournalRecord> consumer) throws IOException {
+        return read(Long.MIN_VALUE, Long.MAX_VALUE, consumer);
+    }
+
+    private static long readSegment(File file, long fromMillis, long toMillis, Consumer<JournalRecord> consumer) throws IOException {
+        MappedByteBuffer segment;
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            segment = channel.map(FileChannel.MapMode.READ_ONLY, 0L, channel.size());
+        }
+        finally {
+            channel.close();
+        }
+
+        if (segment.capacity() < EnergyJournal.HEADER_BYTES || segment.getInt(0) != EnergyJournal.MAGIC) {
+            throw new IOException(String.format("%s is not a journal segment", file));
+        }
+
+        int recordBytes = segment.getInt(4);
+        long capacity = (segment.capacity() - EnergyJournal.HEADER_BYTES) / recordBytes;
+        int count = (int)Math.min(segment.getLong(EnergyJournal.COUNT_OFFSET), capacity);
+        if (count == 0
+                || segment.getLong(EnergyJournal.LAST_TIMESTAMP_OFFSET) < fromMillis
+                || segment.getLong(EnergyJournal.FIRST_TIMESTAMP_OFFSET) >= toMillis) {
+            return 0L;
+        }
+
+        // Timestamps are non-decreasing within a segment: find the first record in range
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (timestampAt(segment, recordBytes, middle) < fromMillis) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+
+        long read = 0L;
+        for (int i = low; i < count; i++) {
+            int position = EnergyJournal.HEADER_BYTES + i * recordBytes;
+            long timestampMillis = segment.getLong(position);
+            if (timestampMillis >= toMillis) {
+                break;
+            }
+
+            consumer.accept(new JournalRecord(
+                timestampMillis,
+                JournalRecord.decodeExecutorId(segment.getInt(position + 8)),
+                segment.getFloat(position + 12),
+                segment.getDouble(position + 16),
+                segment.getDouble(position + 24)
+            ));
+            read++;
+        }
+        return read;
+    }
+
+    private static long timestampAt(ByteBuffer segment, int recordBytes, int index) {
+        return segment.getLong(EnergyJournal.HEADER_BYTES + index * recordBytes);
+    }
+
+    // One row per record, with plain columns, ready for Spark or Parquet conversion
+    public long writeCSV(long fromMillis, long toMillis, PrintStream out) throws IOException {
+        out.println(CSV_HEADER);
+        StringBuilder row = new StringBuilder();
+        return read(fromMillis, toMillis, record -> {
+            row.setLength(0);
+            row.append(record.timestampMillis).append(',')
+                .append(record.executorId).append(',')
+                .append(record.load).append(',')
+                .append(record.energy_Wh).append(',')
+                .append(record.memoryEnergy_Wh);
+            out.println(row);
+        });
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1 && args.length != 3) {
+            System.err.println("Usage: EnergyJournalReader <directory> [<from ms> <to ms>]");
+            System.exit(1);
+        }
+
+        EnergyJournalReader reader = new EnergyJournalReader(args[0]);
+        long fromMillis = args.length == 3 ? Long.valueOf(args[1]) : Long.MIN_VALUE;
+        long toMillis = args.length == 3 ? Long.valueOf(args[2]) : Long.MAX_VALUE;
+        reader.writeCSV(fromMillis, toMillis, System.out);
+        System.out.flush();
+    }
+}
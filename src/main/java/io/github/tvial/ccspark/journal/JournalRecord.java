@@ -0,0 +1,80 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package io.github.tvial.ccspark.journal;
+
+
+// One reading received by the driver, as stored in the journal
+public class JournalRecord {
+    // Executor IDs are stored as numbers, with these for the others
+    final static int UNKNOWN_EXECUTOR = -1;
+    final static int DRIVER_EXECUTOR = -2;
+    final static String UNKNOWN_EXECUTOR_ID = "unknown";
+    final static String DRIVER_EXECUTOR_ID = "driver";
+
+    public long timestampMillis;
+    public String executorId;
+    public double load;
+    public double energy_Wh;
+    public double memoryEnergy_Wh;
+
+    public JournalRecord(long timestampMillis, String executorId, double load, double energy_Wh, double memoryEnergy_Wh) {
+        this.timestampMillis = timestampMillis;
+        this.executorId = executorId;
+        this.load = load;
+        this.energy_Wh = energy_Wh;
+        this.memoryEnergy_Wh = memoryEnergy_Wh;
+    }
+
+    static int encodeExecutorId(String executorId) {
+        if (executorId == null) {
+            return UNKNOWN_EXECUTOR;
+        }
+        if (DRIVER_EXECUTOR_ID.equals(executorId)) {
+            return DRIVER_EXECUTOR;
+        }
+
+        try {
+            int number = Integer.parseInt(executorId);
+            return number >= 0 ? number : UNKNOWN_EXECUTOR;
+        }
+        catch (NumberFormatException e) {
+            return UNKNOWN_EXECUTOR;
+        }
+    }
+
+    static String decodeExecutorId(int executor) {
+        switch (executor) {
+            case UNKNOWN_EXECUTOR:
+                return UNKNOWN_EXECUTOR_ID;
+            case DRIVER_EXECUTOR:
+                return DRIVER_EXECUTOR_ID;
+            default:
+                return Integer.toString(executor);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder()
+            .append("<timestamp: ").append(timestampMillis)
+            .append(", executor: ").append(executorId)
+            .append(", load: ").append(load)
+            .append(", energy: ").append(energy_Wh).append(" Wh")
+            .append(", memory: ").append(memoryEnergy_Wh).append(" Wh")
+            .append(">")
+            .toString();
+    }
+}
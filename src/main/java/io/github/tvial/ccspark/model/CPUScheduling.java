@@ -48,6 +48,14 @@ public class CPUScheduling {
         );
     }
 
+    // Same as minus(other).total(), without the intermediate object
+    public long totalSince(CPUScheduling other) {
+        return
+            wrapUnsigned(userTime - other.userTime) +
+            wrapUnsigned(nicedTime - other.nicedTime) +
+            wrapUnsigned(systemTime - other.systemTime);
+    }
+
     private long wrapUnsigned(long value) {
         return value < 0 ? value + 4294967295L : value;
     }
@@ -0,0 +1,60 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.tvial.ccspark.model;
+
+import java.util.Arrays;
+
+// Scheduling of each core, in flat arrays so that they can be refilled without allocating
+public class CoreSchedulings {
+    public int count;
+    public int[] coreIds;
+    public long[] busyTimes;
+    public long[] idleTimes;
+
+    public CoreSchedulings(int capacity) {
+        this.count = 0;
+        this.coreIds = new int[capacity];
+        this.busyTimes = new long[capacity];
+        this.idleTimes = new long[capacity];
+    }
+
+    public void clear() {
+        count = 0;
+    }
+
+    public void add(int coreId, long busyTime, long idleTime) {
+        if (count == coreIds.length) {
+            int capacity = Math.max(1, 2 * count);
+            coreIds = Arrays.copyOf(coreIds, capacity);
+            busyTimes = Arrays.copyOf(busyTimes, capacity);
+            idleTimes = Arrays.copyOf(idleTimes, capacity);
+        }
+
+        coreIds[count] = coreId;
+        busyTimes[count] = busyTime;
+        idleTimes[count] = idleTime;
+        count++;
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder()
+            .append("<cores: ").append(count)
+            .append(">")
+            .toString();
+    }
+}
@@ -0,0 +1,62 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.tvial.ccspark.model;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+
+
+public class CoreUsageSummary implements Serializable {
+    public int coreCount;
+    public int busiestCore;
+    public double busiestCoreLoad;
+    public int idleCoreCount;
+    public double imbalance;
+
+    public CoreUsageSummary(int coreCount, int busiestCore, double busiestCoreLoad, int idleCoreCount, double imbalance) {
+        this.coreCount = coreCount;
+        this.busiestCore = busiestCore;
+        this.busiestCoreLoad = busiestCoreLoad;
+        this.idleCoreCount = idleCoreCount;
+        this.imbalance = imbalance;
+    }
+
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeInt(coreCount);
+        out.writeInt(busiestCore);
+        out.writeDouble(busiestCoreLoad);
+        out.writeInt(idleCoreCount);
+        out.writeDouble(imbalance);
+    }
+
+    public static CoreUsageSummary readFrom(DataInput in) throws IOException {
+        return new CoreUsageSummary(in.readInt(), in.readInt(), in.readDouble(), in.readInt(), in.readDouble());
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder()
+            .append("<cores: ").append(coreCount)
+            .append(", busiest: ").append(busiestCore).append(" (").append(busiestCoreLoad).append(")")
+            .append(", idle: ").append(idleCoreCount)
+            .append(", imbalance: ").append(imbalance)
+            .append(">")
+            .toString();
+    }
+}
@@ -16,23 +16,222 @@
 
 package io.github.tvial.ccspark.model;
 
-import java.io.Serializable;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 
 
-public class ExecutorUsageMetrics implements Serializable {
+// Sent by the executors for every reading or batch of readings. The encoding is written by hand, so that
+// messages do not carry field descriptors: a version byte, flags for the optional parts, the fixed fields,
+// then the optional parts in the order of their flags. A new optional part gets the next flag and goes last,
+// so that older readers stop before it, and Java serialization skips what they leave unread. Any other change
+// to the layout bumps the version, and readers reject versions other than theirs.
+public class ExecutorUsageMetrics implements Externalizable {
+    private static final long serialVersionUID = 1L;
+
+    // 2: the count of readings moved among the fixed fields, 3: the end time of the interval added to them
+    final static byte VERSION = 3;
+
+    final static int HAS_EXECUTOR_ID = 1;
+    final static int HAS_CORES = 2;
+    final static int HAS_STAGES = 4;
+    final static int HAS_CPU_TIMES = 8;
+    final static int HAS_CUMULATIVE_COUNTERS = 16;
+    final static int HAS_THREADS = 32;
+    final static int HAS_MEMORY = 64;
+
+    public String executorId;
+    // Stamped when sent to the driver, starting at 1
+    public long sequence;
     public double load;
     public double energy_Wh;
+    public long intervalMillis;
+    // Wall-clock time at the end of the interval, on the executor, or 0 if unknown
+    public long endMillis;
+    public CoreUsageSummary cores;
+    public StageUsage[] stages;
+    public ThreadCategoryUsage threads;
+    // Part of the energy that goes to the memory of the executor, already included in energy_Wh
+    public double memoryEnergy_Wh;
+    // Memory footprint at the end of the interval, in bytes, or Sample.UNKNOWN_MEMORY
+    public long rssBytes;
+    public long swapBytes;
+    // CPU time of the monitoring thread and of the whole executor process over the interval
+    public long pluginCpuNanos;
+    public long processCpuNanos;
+    // Totals since the executor started, so that the driver does not lose anything when messages are lost
+    public boolean hasCumulativeCounters;
+    public double cumulativeEnergy_Wh;
+    public long cumulativePluginCpuNanos;
+    public long cumulativeProcessCpuNanos;
 
-    public ExecutorUsageMetrics(double load, double energy_Wh) {
+    public ExecutorUsageMetrics(double load, double energy_Wh, long intervalMillis) {
+        this.sequence = 0L;
         this.load = load;
         this.energy_Wh = energy_Wh;
+        this.intervalMillis = intervalMillis;
+        this.endMillis = 0L;
+        this.cores = null;
+        this.stages = null;
+        this.threads = null;
+        this.memoryEnergy_Wh = 0.0;
+        this.rssBytes = Sample.UNKNOWN_MEMORY;
+        this.swapBytes = Sample.UNKNOWN_MEMORY;
+        this.pluginCpuNanos = 0L;
+        this.processCpuNanos = 0L;
+        this.hasCumulativeCounters = false;
+        this.cumulativeEnergy_Wh = 0.0;
+        this.cumulativePluginCpuNanos = 0L;
+        this.cumulativeProcessCpuNanos = 0L;
+    }
+
+    public void setCumulativeCounters(double energy_Wh, long pluginCpuNanos, long processCpuNanos) {
+        hasCumulativeCounters = true;
+        cumulativeEnergy_Wh = energy_Wh;
+        cumulativePluginCpuNanos = pluginCpuNanos;
+        cumulativeProcessCpuNanos = processCpuNanos;
+    }
+
+    public ExecutorUsageMetrics(double load, double energy_Wh) {
+        this(load, energy_Wh, 0L);
+    }
+
+    // For deserialization only
+    public ExecutorUsageMetrics() {
+        this(0.0, 0.0, 0L);
+    }
+
+    // Number of readings merged into the message
+    public int getCount() {
+        return 1;
+    }
+
+    protected void setCount(int count) {
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        int flags = 0;
+        if (executorId != null) {
+            flags |= HAS_EXECUTOR_ID;
+        }
+        if (cores != null) {
+            flags |= HAS_CORES;
+        }
+        if (stages != null) {
+            flags |= HAS_STAGES;
+        }
+        if (pluginCpuNanos != 0L || processCpuNanos != 0L) {
+            flags |= HAS_CPU_TIMES;
+        }
+        if (hasCumulativeCounters) {
+            flags |= HAS_CUMULATIVE_COUNTERS;
+        }
+        if (threads != null) {
+            flags |= HAS_THREADS;
+        }
+        if (rssBytes != Sample.UNKNOWN_MEMORY) {
+            flags |= HAS_MEMORY;
+        }
+
+        out.writeByte(VERSION);
+        out.writeByte(flags);
+        out.writeLong(sequence);
+        out.writeDouble(load);
+        out.writeDouble(energy_Wh);
+        out.writeLong(intervalMillis);
+        out.writeLong(endMillis);
+        out.writeInt(getCount());
+
+        if (executorId != null) {
+            out.writeUTF(executorId);
+        }
+        if (cores != null) {
+            cores.writeTo(out);
+        }
+        if (stages != null) {
+            out.writeInt(stages.length);
+            for (StageUsage stage : stages) {
+                stage.writeTo(out);
+            }
+        }
+        if ((flags & HAS_CPU_TIMES) != 0) {
+            out.writeLong(pluginCpuNanos);
+            out.writeLong(processCpuNanos);
+        }
+        if (hasCumulativeCounters) {
+            out.writeDouble(cumulativeEnergy_Wh);
+            out.writeLong(cumulativePluginCpuNanos);
+            out.writeLong(cumulativeProcessCpuNanos);
+        }
+        if (threads != null) {
+            threads.writeTo(out);
+        }
+        if (rssBytes != Sample.UNKNOWN_MEMORY) {
+            out.writeDouble(memoryEnergy_Wh);
+            out.writeLong(rssBytes);
+            out.writeLong(swapBytes);
+        }
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        byte version = in.readByte();
+        // The executors and the driver run the same build, so there is no need to read older layouts
+        if (version != VERSION) {
+            throw new InvalidClassException(
+                ExecutorUsageMetrics.class.getName(), String.format("Unsupported version %d, expected %d", version, VERSION)
+            );
+        }
+
+        int flags = in.readUnsignedByte();
+        sequence = in.readLong();
+        load = in.readDouble();
+        energy_Wh = in.readDouble();
+        intervalMillis = in.readLong();
+        endMillis = in.readLong();
+        setCount(in.readInt());
+
+        executorId = (flags & HAS_EXECUTOR_ID) != 0 ? in.readUTF() : null;
+        cores = (flags & HAS_CORES) != 0 ? CoreUsageSummary.readFrom(in) : null;
+        if ((flags & HAS_STAGES) != 0) {
+            stages = new StageUsage[in.readInt()];
+            for (int i = 0; i < stages.length; i++) {
+                stages[i] = StageUsage.readFrom(in);
+            }
+        }
+        else {
+            stages = null;
+        }
+        if ((flags & HAS_CPU_TIMES) != 0) {
+            pluginCpuNanos = in.readLong();
+            processCpuNanos = in.readLong();
+        }
+        if ((flags & HAS_CUMULATIVE_COUNTERS) != 0) {
+            setCumulativeCounters(in.readDouble(), in.readLong(), in.readLong());
+        }
+        threads = (flags & HAS_THREADS) != 0 ? ThreadCategoryUsage.readFrom(in) : null;
+        if ((flags & HAS_MEMORY) != 0) {
+            memoryEnergy_Wh = in.readDouble();
+            rssBytes = in.readLong();
+            swapBytes = in.readLong();
+        }
     }
 
     @Override
     public String toString() {
         return new StringBuilder()
-            .append("<load: ").append(load)
+            .append("<executor: ").append(executorId)
+            .append(", sequence: ").append(sequence)
+            .append(", load: ").append(load)
             .append(", energy: ").append(energy_Wh).append(" Wh")
+            .append(", cores: ").append(cores)
+            .append(", stages: ").append(stages == null ? 0 : stages.length)
+            .append(", threads: ").append(threads)
+            .append(", memory: ").append(memoryEnergy_Wh).append(" Wh")
+            .append(", RSS: ").append(rssBytes)
             .append(">")
             .toString();
     }
@@ -0,0 +1,128 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.tvial.ccspark.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+// Readings of one executor merged together: energies are summed, loads are averaged over time
+public class ExecutorUsageMetricsBatch extends ExecutorUsageMetrics {
+    public int count;
+
+    public ExecutorUsageMetricsBatch() {
+        super(0.0, 0.0, 0L);
+        this.count = 0;
+    }
+
+    public void merge(ExecutorUsageMetrics metrics) {
+        long mergedInterval = intervalMillis + metrics.intervalMillis;
+
+        if (mergedInterval > 0) {
+            load = (load * intervalMillis + metrics.load * metrics.intervalMillis) / mergedInterval;
+        }
+        else {
+            load = (load * count + metrics.load) / (count + 1);
+        }
+
+        energy_Wh += metrics.energy_Wh;
+        memoryEnergy_Wh += metrics.memoryEnergy_Wh;
+        if (metrics.rssBytes != Sample.UNKNOWN_MEMORY) {
+            // Like per-core figures, the footprint is a snapshot
+            rssBytes = metrics.rssBytes;
+            swapBytes = metrics.swapBytes;
+        }
+        pluginCpuNanos += metrics.pluginCpuNanos;
+        processCpuNanos += metrics.processCpuNanos;
+        if (metrics.cores != null) {
+            // Per-core figures are a snapshot, the latest one is the most relevant
+            cores = metrics.cores;
+        }
+        if (metrics.stages != null) {
+            stages = mergeStages(stages, metrics.stages);
+        }
+        if (metrics.threads != null) {
+            if (threads == null) {
+                threads = metrics.threads.copy();
+            }
+            else {
+                threads.add(metrics.threads);
+            }
+        }
+        if (metrics.hasCumulativeCounters) {
+            setCumulativeCounters(metrics.cumulativeEnergy_Wh, metrics.cumulativePluginCpuNanos, metrics.cumulativeProcessCpuNanos);
+        }
+        intervalMillis = mergedInterval;
+        endMillis = Math.max(endMillis, metrics.endMillis);
+        count++;
+    }
+
+    // There are only a handful of stages running at the same time, so linear lookups are fine
+    private static StageUsage[] mergeStages(StageUsage[] stages, StageUsage[] newStages) {
+        List<StageUsage> merged = stages == null
+            ? new ArrayList<StageUsage>()
+            : new ArrayList<StageUsage>(Arrays.asList(stages));
+
+        for (StageUsage newStage : newStages) {
+            StageUsage existing = null;
+            for (StageUsage stage : merged) {
+                if (stage.stageId == newStage.stageId && stage.stageAttempt == newStage.stageAttempt) {
+                    existing = stage;
+                    break;
+                }
+            }
+
+            if (existing != null) {
+                existing.add(newStage);
+            }
+            else {
+                // Copied, so that merging never modifies the original readings
+                merged.add(newStage.copy());
+            }
+        }
+
+        return merged.toArray(new StageUsage[0]);
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    @Override
+    public int getCount() {
+        return count;
+    }
+
+    @Override
+    protected void setCount(int count) {
+        this.count = count;
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder()
+            .append("<executor: ").append(executorId)
+            .append(", sequence: ").append(sequence)
+            .append(", count: ").append(count)
+            .append(", load: ").append(load)
+            .append(", energy: ").append(energy_Wh).append(" Wh")
+            .append(", interval: ").append(intervalMillis).append(" ms")
+            .append(">")
+            .toString();
+    }
+}
@@ -22,12 +22,16 @@ public class ProcessScheduling {
     public long systemTime;
     public long childrenUserTime;
     public long childrenSystemTime;
+    // Live descendant processes, not reaped yet. Only set when descendants are tracked, and may decrease when
+    // they are reaped, as their time then moves to the children times.
+    public long descendantTime;
 
     public ProcessScheduling(long userTime, long systemTime, long childrenUserTime, long childrenSystemTime) {
         this.userTime = userTime;
         this.systemTime = systemTime;
         this.childrenUserTime = childrenUserTime;
         this.childrenSystemTime = childrenSystemTime;
+        this.descendantTime = 0L;
     }
 
     public boolean equals(Object other) {
@@ -36,20 +40,33 @@ public class ProcessScheduling {
             (userTime == otherScheduling.userTime) &&
             (systemTime == otherScheduling.systemTime) &&
             (childrenUserTime == otherScheduling.childrenUserTime) &&
-            (childrenSystemTime == otherScheduling.childrenSystemTime);
+            (childrenSystemTime == otherScheduling.childrenSystemTime) &&
+            (descendantTime == otherScheduling.descendantTime);
     }
 
     public long total() {
-        return userTime + systemTime + childrenUserTime + childrenSystemTime;
+        return userTime + systemTime + childrenUserTime + childrenSystemTime + descendantTime;
     }
 
     public ProcessScheduling minus(ProcessScheduling other) {
-        return new ProcessScheduling(
+        ProcessScheduling difference = new ProcessScheduling(
             wrapUnsigned(userTime - other.userTime),
             wrapUnsigned(systemTime - other.systemTime),
             wrapSigned(childrenUserTime - other.childrenUserTime),
             wrapSigned(childrenSystemTime - other.childrenSystemTime)
         );
+        difference.descendantTime = descendantTime - other.descendantTime;
+        return difference;
+    }
+
+    // Same as minus(other).total(), without the intermediate object
+    public long totalSince(ProcessScheduling other) {
+        return
+            wrapUnsigned(userTime - other.userTime) +
+            wrapUnsigned(systemTime - other.systemTime) +
+            wrapSigned(childrenUserTime - other.childrenUserTime) +
+            wrapSigned(childrenSystemTime - other.childrenSystemTime) +
+            (descendantTime - other.descendantTime);
     }
 
     private long wrapUnsigned(long value) {
@@ -65,6 +82,7 @@ public class ProcessScheduling {
         return new StringBuilder()
             .append("<user: ").append(userTime)
             .append(", system: ").append(systemTime)
+            .append(", descendants: ").append(descendantTime)
             .append(">")
             .toString();
     }
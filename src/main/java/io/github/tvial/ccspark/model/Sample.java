@@ -18,14 +18,40 @@ package io.github.tvial.ccspark.model;
 
 
 public class Sample {
+    public final static long UNKNOWN_ENERGY = -1L;
+    public final static long UNKNOWN_MEMORY = -1L;
+    public final static long UNKNOWN_FREQUENCY = -1L;
+
     public long timestampMillis;
     public CPUScheduling cpu;
     public ProcessScheduling process;
-    
+    public CoreSchedulings cores;
+    // Cumulative energy of the host, measured by RAPL
+    public long packageEnergyMicroJoules;
+    public long dramEnergyMicroJoules;
+    // Cumulative CPU time of the threads of the executor, in clock ticks, indexed by ThreadCategory
+    public long[] threadCpuTimes;
+    // Memory footprint of the executor, and memory of the host, in bytes
+    public long rssBytes;
+    public long swapBytes;
+    public long memTotalBytes;
+    // Mean current frequency of the cores of the host, and the base frequency the TDP is rated at, from cpufreq
+    public long cpuFrequencyKHz;
+    public long baseCpuFrequencyKHz;
+
     public Sample(long timestampMillis, CPUScheduling cpu, ProcessScheduling process) {
         this.timestampMillis = timestampMillis;
         this.cpu = cpu;
         this.process = process;
+        this.cores = null;
+        this.packageEnergyMicroJoules = UNKNOWN_ENERGY;
+        this.dramEnergyMicroJoules = UNKNOWN_ENERGY;
+        this.threadCpuTimes = null;
+        this.rssBytes = UNKNOWN_MEMORY;
+        this.swapBytes = UNKNOWN_MEMORY;
+        this.memTotalBytes = UNKNOWN_MEMORY;
+        this.cpuFrequencyKHz = UNKNOWN_FREQUENCY;
+        this.baseCpuFrequencyKHz = UNKNOWN_FREQUENCY;
     }
 
     @Override
@@ -34,6 +60,12 @@ public class Sample {
             .append("<timestamp: ").append(timestampMillis)
             .append(", CPU: ").append(cpu)
             .append(", process: ").append(process)
+            .append(", cores: ").append(cores)
+            .append(", package: ").append(packageEnergyMicroJoules).append(" uJ")
+            .append(", DRAM: ").append(dramEnergyMicroJoules).append(" uJ")
+            .append(", RSS: ").append(rssBytes)
+            .append(", swap: ").append(swapBytes)
+            .append(", frequency: ").append(cpuFrequencyKHz).append(" kHz")
             .append(">")
             .toString();
     }
@@ -0,0 +1,96 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.tvial.ccspark.model;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+
+
+// Energy and volumes of the tasks of one stage attempt, over some period
+public class StageUsage implements Serializable {
+    public int stageId;
+    public int stageAttempt;
+    public double energy_Wh;
+    public long taskCount;
+    public long recordsRead;
+    public long recordsWritten;
+    public long shuffleBytes;
+
+    public StageUsage(int stageId, int stageAttempt) {
+        this.stageId = stageId;
+        this.stageAttempt = stageAttempt;
+        this.energy_Wh = 0.0;
+        this.taskCount = 0L;
+        this.recordsRead = 0L;
+        this.recordsWritten = 0L;
+        this.shuffleBytes = 0L;
+    }
+
+    public void add(StageUsage other) {
+        energy_Wh += other.energy_Wh;
+        taskCount += other.taskCount;
+        recordsRead += other.recordsRead;
+        recordsWritten += other.recordsWritten;
+        shuffleBytes += other.shuffleBytes;
+    }
+
+    public double getEnergyPerMillionRecords_Wh() {
+        long records = recordsRead + recordsWritten;
+        return records == 0 ? Double.NaN : energy_Wh * 1e6 / records;
+    }
+
+    public StageUsage copy() {
+        StageUsage copy = new StageUsage(stageId, stageAttempt);
+        copy.add(this);
+        return copy;
+    }
+
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeInt(stageId);
+        out.writeInt(stageAttempt);
+        out.writeDouble(energy_Wh);
+        out.writeLong(taskCount);
+        out.writeLong(recordsRead);
+        out.writeLong(recordsWritten);
+        out.writeLong(shuffleBytes);
+    }
+
+    public static StageUsage readFrom(DataInput in) throws IOException {
+        StageUsage stage = new StageUsage(in.readInt(), in.readInt());
+        stage.energy_Wh = in.readDouble();
+        stage.taskCount = in.readLong();
+        stage.recordsRead = in.readLong();
+        stage.recordsWritten = in.readLong();
+        stage.shuffleBytes = in.readLong();
+        return stage;
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder()
+            .append("<stage: ").append(stageId).append(".").append(stageAttempt)
+            .append(", energy: ").append(energy_Wh).append(" Wh")
+            .append(", tasks: ").append(taskCount)
+            .append(", records read: ").append(recordsRead)
+            .append(", records written: ").append(recordsWritten)
+            .append(", shuffle: ").append(shuffleBytes).append(" bytes")
+            .append(">")
+            .toString();
+    }
+}
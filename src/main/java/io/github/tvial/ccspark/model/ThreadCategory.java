@@ -0,0 +1,63 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.tvial.ccspark.model;
+
+
+// What the threads of an executor are busy with, guessed from their names. The kernel truncates names
+// to 15 characters, so only their start is relevant.
+public enum ThreadCategory {
+    TASK,
+    GC,
+    COMPILER,
+    SHUFFLE,
+    OTHER;
+
+    final static String[] TASK_PREFIXES = { "Executor task l" };
+    final static String[] GC_PREFIXES = {
+        "GC Thread", "G1 ", "GC task", "Gang worker", "ParGC", "VM Thread",
+        "ZWorker", "ZDirector", "ZDriver", "Shenandoah", "Concurrent Mark", "CMS "
+    };
+    final static String[] COMPILER_PREFIXES = { "C1 Compiler", "C2 Compiler", "JVMCI" };
+    final static String[] SHUFFLE_PREFIXES = {
+        "shuffle-", "rpc-", "netty-", "dispatcher-", "block-manager", "BlockManager", "external-shuffle"
+    };
+
+    private static boolean startsWithAny(String name, String[] prefixes) {
+        for (String prefix : prefixes) {
+            if (name.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static ThreadCategory fromThreadName(String name) {
+        if (startsWithAny(name, TASK_PREFIXES)) {
+            return TASK;
+        }
+        if (startsWithAny(name, GC_PREFIXES)) {
+            return GC;
+        }
+        if (startsWithAny(name, COMPILER_PREFIXES)) {
+            return COMPILER;
+        }
+        if (startsWithAny(name, SHUFFLE_PREFIXES)) {
+            return SHUFFLE;
+        }
+        return OTHER;
+    }
+}
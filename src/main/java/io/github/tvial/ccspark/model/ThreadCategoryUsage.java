@@ -0,0 +1,95 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.tvial.ccspark.model;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+
+
+// CPU time (in clock ticks) and energy of the threads of an executor, by category, over some period
+public class ThreadCategoryUsage implements Serializable {
+    public long[] cpuTimes;
+    public double[] energies_Wh;
+
+    public ThreadCategoryUsage() {
+        this.cpuTimes = new long[ThreadCategory.values().length];
+        this.energies_Wh = new double[ThreadCategory.values().length];
+    }
+
+    public long getCpuTime(ThreadCategory category) {
+        return cpuTimes[category.ordinal()];
+    }
+
+    public double getEnergy_Wh(ThreadCategory category) {
+        return energies_Wh[category.ordinal()];
+    }
+
+    public void add(ThreadCategoryUsage other) {
+        for (int i = 0; i < cpuTimes.length; i++) {
+            cpuTimes[i] += other.cpuTimes[i];
+            energies_Wh[i] += other.energies_Wh[i];
+        }
+    }
+
+    public ThreadCategoryUsage copy() {
+        ThreadCategoryUsage copy = new ThreadCategoryUsage();
+        copy.add(this);
+        return copy;
+    }
+
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeByte(cpuTimes.length);
+        for (int i = 0; i < cpuTimes.length; i++) {
+            out.writeLong(cpuTimes[i]);
+            out.writeDouble(energies_Wh[i]);
+        }
+    }
+
+    // Categories unknown to this version are skipped
+    public static ThreadCategoryUsage readFrom(DataInput in) throws IOException {
+        ThreadCategoryUsage usage = new ThreadCategoryUsage();
+        int count = in.readByte();
+
+        for (int i = 0; i < count; i++) {
+            long cpuTime = in.readLong();
+            double energy = in.readDouble();
+            if (i < usage.cpuTimes.length) {
+                usage.cpuTimes[i] = cpuTime;
+                usage.energies_Wh[i] = energy;
+            }
+        }
+
+        return usage;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("<");
+        for (ThreadCategory category : ThreadCategory.values()) {
+            if (category.ordinal() > 0) {
+                builder.append(", ");
+            }
+            builder
+                .append(category.name().toLowerCase()).append(": ")
+                .append(cpuTimes[category.ordinal()]).append(" ticks, ")
+                .append(energies_Wh[category.ordinal()]).append(" Wh");
+        }
+        return builder.append(">").toString();
+    }
+}
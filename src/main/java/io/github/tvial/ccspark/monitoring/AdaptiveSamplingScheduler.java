@@ -0,0 +1,147 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.tvial.ccspark.monitoring;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.github.tvial.ccspark.model.ExecutorUsageMetrics;
+
+
+// Runs the usage monitor with a period that doubles (up to a maximum) while the load is stable, and falls
+// back to the minimum when the load changes sharply or tasks start or end. All the scheduling state is
+// only touched from the single scheduler thread.
+public class AdaptiveSamplingScheduler {
+    final Logger logger = LoggerFactory.getLogger(AdaptiveSamplingScheduler.class);
+
+    private UsageMonitor monitor;
+    private long minPeriodMillis;
+    private long maxPeriodMillis;
+    private double loadChangeThreshold;
+
+    private ScheduledThreadPoolExecutor executor;
+    private ScheduledFuture<?> nextRun;
+    private long nextRunMillis;
+    private volatile long periodMillis;
+    private double lastLoad;
+    private AtomicBoolean activity;
+
+    public AdaptiveSamplingScheduler(UsageMonitor monitor, long minPeriodMillis, long maxPeriodMillis, double loadChangeThreshold) {
+        this.monitor = monitor;
+        this.minPeriodMillis = minPeriodMillis;
+        this.maxPeriodMillis = Math.max(minPeriodMillis, maxPeriodMillis);
+        this.loadChangeThreshold = loadChangeThreshold;
+
+        this.executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "Usage monitor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // On shutdown, the pending run is dropped, but the current one completes
+        this.executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        this.nextRun = null;
+        this.periodMillis = minPeriodMillis;
+        this.lastLoad = 0.0;
+        this.activity = new AtomicBoolean(false);
+    }
+
+    public void start() {
+        execute(() -> scheduleNextRun(minPeriodMillis));
+    }
+
+    // Called from task threads, so it only flips a flag, except for the first call within a long period
+    public void notifyActivity() {
+        if (activity.compareAndSet(false, true) && periodMillis > minPeriodMillis) {
+            execute(this::tighten);
+        }
+    }
+
+    // Not interrupting the current run: that would close the files kept open by the sample provider, and
+    // the final run of the plugin would fail. Returns false if the current run is still going on, in which
+    // case the sample provider must not be used by anything else.
+    public boolean shutdown() throws InterruptedException {
+        executor.shutdown();
+        return executor.awaitTermination(maxPeriodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // Tasks may still start or end once the scheduler is shut down
+    private void execute(Runnable runnable) {
+        if (executor.isShutdown()) {
+            return;
+        }
+
+        try {
+            executor.execute(runnable);
+        }
+        catch (RejectedExecutionException e) {
+            // Shut down in the meantime
+        }
+    }
+
+    public long getPeriodMillis() {
+        return periodMillis;
+    }
+
+    long nextPeriod(long period, double previousLoad, double load, boolean activity) {
+        if (activity || Math.abs(load - previousLoad) > loadChangeThreshold) {
+            return minPeriodMillis;
+        }
+        return Math.min(2 * period, maxPeriodMillis);
+    }
+
+    private void run() {
+        try {
+            ExecutorUsageMetrics usage = monitor.sampleAndSendMetrics();
+            double load = usage == null ? lastLoad : usage.load;
+
+            periodMillis = nextPeriod(periodMillis, lastLoad, load, activity.getAndSet(false));
+            lastLoad = load;
+        }
+        catch (Throwable t) {
+            // Unlike with a Timer, the schedule goes on
+            logger.warn(String.format("Usage monitoring failed, reason: %s", t));
+            periodMillis = minPeriodMillis;
+        }
+        finally {
+            scheduleNextRun(periodMillis);
+        }
+    }
+
+    private void tighten() {
+        long tightenedRunMillis = System.currentTimeMillis() + minPeriodMillis;
+
+        if (nextRun != null && tightenedRunMillis < nextRunMillis && nextRun.cancel(false)) {
+            periodMillis = minPeriodMillis;
+            scheduleNextRun(minPeriodMillis);
+        }
+    }
+
+    private void scheduleNextRun(long delayMillis) {
+        if (executor.isShutdown()) {
+            return;
+        }
+
+        nextRunMillis = System.currentTimeMillis() + delayMillis;
+        nextRun = executor.schedule(this::run, delayMillis, TimeUnit.MILLISECONDS);
+    }
+}
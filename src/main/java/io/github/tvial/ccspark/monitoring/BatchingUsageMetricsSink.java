@@ -0,0 +1,89 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.tvial.ccspark.monitoring;
+
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.github.tvial.ccspark.model.ExecutorUsageMetrics;
+import io.github.tvial.ccspark.model.ExecutorUsageMetricsBatch;
+
+
+public class BatchingUsageMetricsSink implements UsageMetricsSink {
+    final Logger logger = LoggerFactory.getLogger(BatchingUsageMetricsSink.class);
+
+    private UsageMetricsSink delegate;
+    private long flushIntervalMillis;
+    private int maxBatchSize;
+    private boolean onlyOnChange;
+
+    private ExecutorUsageMetricsBatch pending;
+    private long lastFlushMillis;
+
+    // With onlyOnChange, batches without any energy or stage are not sent, except by an explicit flush. Since
+    // messages carry cumulative counters, the next batch sent makes up for them.
+    public BatchingUsageMetricsSink(UsageMetricsSink delegate, long flushIntervalMillis, int maxBatchSize, boolean onlyOnChange) {
+        this.delegate = delegate;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.maxBatchSize = maxBatchSize;
+        this.onlyOnChange = onlyOnChange;
+
+        this.pending = new ExecutorUsageMetricsBatch();
+        this.lastFlushMillis = currentTimeMillis();
+    }
+
+    public BatchingUsageMetricsSink(UsageMetricsSink delegate, long flushIntervalMillis, int maxBatchSize) {
+        this(delegate, flushIntervalMillis, maxBatchSize, false);
+    }
+
+    @Override
+    public synchronized void send(ExecutorUsageMetrics metrics) throws IOException {
+        pending.merge(metrics);
+
+        if (pending.count >= maxBatchSize || currentTimeMillis() - lastFlushMillis >= flushIntervalMillis) {
+            if (onlyOnChange && pending.energy_Wh == 0.0 && pending.stages == null) {
+                lastFlushMillis = currentTimeMillis();
+                pending = new ExecutorUsageMetricsBatch();
+                return;
+            }
+            flush();
+        }
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        lastFlushMillis = currentTimeMillis();
+
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug(String.format("Flushing batch %s", pending));
+        }
+
+        // On failure, the batch is kept and will go with the next flush
+        delegate.send(pending);
+        pending = new ExecutorUsageMetricsBatch();
+    }
+
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+}
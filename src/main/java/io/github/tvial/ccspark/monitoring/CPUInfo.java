@@ -19,11 +19,8 @@ package io.github.tvial.ccspark.monitoring;
 import static java.nio.file.Files.newBufferedReader;
 
 import java.io.BufferedReader;
-import java.io.InputStreamReader;
 import java.nio.file.Paths;
 import java.util.Optional;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -32,15 +29,25 @@ import org.slf4j.LoggerFactory;
 public class CPUInfo {
     final Logger logger = LoggerFactory.getLogger(CPUInfo.class);
 
-    final static Pattern[] CPU_MODEL_SIMPLIFICATIONS = {
-        Pattern.compile(" cpu @ [\\d.]+ *ghz"),
-        Pattern.compile("\\((r|tm)\\)")
-    };
+    // Below this similarity, fuzzy matches are considered unrelated models
+    final static double DEFAULT_MIN_MATCH_SCORE = 0.75;
 
     private String infoPath;
+    private String databasePath;
+    private double minMatchScore;
 
-    public CPUInfo(String infoPath) {
+    public CPUInfo(String infoPath, String databasePath, double minMatchScore) {
         this.infoPath = infoPath;
+        this.databasePath = databasePath;
+        this.minMatchScore = minMatchScore;
+    }
+
+    public CPUInfo(String infoPath, String databasePath) {
+        this(infoPath, databasePath, DEFAULT_MIN_MATCH_SCORE);
+    }
+
+    public CPUInfo(String infoPath) {
+        this(infoPath, null);
     }
 
     public CPUInfo() {
@@ -48,19 +55,31 @@ public class CPUInfo {
     }
 
     public Optional<Double> getTDP(String cpuModel) {
-        String simplifiedCPUModel = simplify(cpuModel);
+        return getTDPMatch(cpuModel).map(match -> match.tdp);
+    }
+
+    public Optional<Double> getTDP() {
+        return getTDPMatch().map(match -> match.tdp);
+    }
+
+    public Optional<TDPMatch> getTDPMatch(String cpuModel) {
         try {
-            ClassLoader cl = CPUInfo.class.getClassLoader();
-            BufferedReader reader = new BufferedReader(
-                new InputStreamReader(cl.getResourceAsStream("cpu_power_averages.csv"))
-            );
-
-            return reader.lines()
-                .map(line -> line.split(","))
-                .filter(tokens -> tokens.length > 1)
-                .filter(tokens -> simplify(tokens[0]).equals(simplifiedCPUModel))
-                .map(tokens -> Double.parseDouble(tokens[1]))
-                .findFirst();
+            TDPDatabase database = databasePath == null
+                ? TDPDatabase.getDefault()
+                : TDPDatabase.getWithAdditions(databasePath);
+
+            if (logger.isDebugEnabled()) {
+                logger.debug(String.format("Simplify /%s/ -> /%s/", cpuModel, TDPDatabase.simplify(cpuModel)));
+            }
+
+            Optional<TDPMatch> match = database.match(cpuModel);
+
+            if (match.isPresent() && match.get().score < minMatchScore) {
+                logger.info(String.format("Closest CPU model %s is not close enough", match.get()));
+                return Optional.empty();
+            }
+
+            return match;
         }
         catch (Exception e) {
             logger.warn(String.format("Could not load TDP database, reason: %s", e.getMessage()));
@@ -68,14 +87,14 @@ public class CPUInfo {
         }
     }
 
-    public Optional<Double> getTDP() {
+    public Optional<TDPMatch> getTDPMatch() {
         Optional<String> cpuModel = getCPUModel();
 
         if (!cpuModel.isPresent()) {
             return Optional.empty();
         }
         else {
-            return getTDP(cpuModel.get());
+            return getTDPMatch(cpuModel.get());
         }
     }
 
@@ -108,19 +127,4 @@ public class CPUInfo {
 
         return tokens[1].trim();
     }
-
-    private String simplify(String cpuModel) {
-        String simplified = cpuModel.toLowerCase();
-
-        for (Pattern pattern : CPU_MODEL_SIMPLIFICATIONS) {
-            Matcher matcher = pattern.matcher(simplified);
-            simplified = matcher.replaceAll("");
-        }
-
-        if (logger.isDebugEnabled()) {
-            logger.debug(String.format("Simplify /%s/ -> /%s/", cpuModel, simplified));
-        }
-
-        return simplified;
-    }
 }
@@ -0,0 +1,62 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package io.github.tvial.ccspark.monitoring;
+
+import io.github.tvial.ccspark.model.Sample;
+
+
+// The TDP is taken as the power at the base frequency, which it is rated at. Part of it is static, and the
+// rest (the dynamic power) scales with the frequency ratio to some exponent: about 3 in theory (frequency
+// times voltage squared), less in practice since the voltage does not go down as much. Above the base
+// frequency (turbo), the ratio goes over 1 and so does the power over the TDP, as on actual CPUs. The mean
+// frequency of the cores at both ends of the interval is used. Without frequency readings, this is the same
+// as the TDP model.
+public class FrequencyScaledEnergyModel implements EnergyModel {
+    public final static double DEFAULT_STATIC_FRACTION = 0.3;
+    public final static double DEFAULT_EXPONENT = 2.0;
+
+    private double tdp;
+    private double staticFraction;
+    private double exponent;
+
+    public FrequencyScaledEnergyModel(double tdp, double staticFraction, double exponent) {
+        this.tdp = tdp;
+        this.staticFraction = staticFraction;
+        this.exponent = exponent;
+    }
+
+    public FrequencyScaledEnergyModel(double tdp) {
+        this(tdp, DEFAULT_STATIC_FRACTION, DEFAULT_EXPONENT);
+    }
+
+    double getPower(Sample sampleBefore, Sample sampleAfter) {
+        if (sampleAfter.cpuFrequencyKHz == Sample.UNKNOWN_FREQUENCY || sampleAfter.baseCpuFrequencyKHz <= 0L) {
+            return tdp;
+        }
+
+        double frequency = sampleBefore.cpuFrequencyKHz != Sample.UNKNOWN_FREQUENCY
+            ? (sampleBefore.cpuFrequencyKHz + sampleAfter.cpuFrequencyKHz) / 2.
+            : sampleAfter.cpuFrequencyKHz;
+        double ratio = frequency / sampleAfter.baseCpuFrequencyKHz;
+
+        return tdp * (staticFraction + (1.0 - staticFraction) * Math.pow(ratio, exponent));
+    }
+
+    @Override
+    public double estimateEnergy_Wh(Sample sampleBefore, Sample sampleAfter, double load, long timeDeltaMillis) {
+        return load * getPower(sampleBefore, sampleAfter) * timeDeltaMillis / (3600. * 1000.);
+    }
+}
@@ -0,0 +1,85 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.tvial.ccspark.monitoring;
+
+import java.io.IOException;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+
+import io.github.tvial.ccspark.model.ExecutorUsageMetrics;
+
+
+// Keeps the latest readings for the gauges of the executor, before passing them on. The gauges only read
+// fields, so that a scrape never triggers sampling. Readings come from the monitoring thread only, which
+// boxes them once per reading rather than once per scrape.
+public class GaugeUsageMetricsSink implements UsageMetricsSink {
+    final static String METRIC_PREFIX = "usage.";
+
+    private UsageMetricsSink delegate;
+
+    private volatile Double load;
+    private volatile Double energy_Wh;
+    private volatile long lastSampleMillis;
+
+    public GaugeUsageMetricsSink(UsageMetricsSink delegate) {
+        this.delegate = delegate;
+
+        this.load = 0.0;
+        this.energy_Wh = 0.0;
+        this.lastSampleMillis = 0L;
+    }
+
+    public void registerMetrics(MetricRegistry registry) {
+        registry.register(METRIC_PREFIX + "load", (Gauge<Double>)() -> load);
+        registry.register(METRIC_PREFIX + "energy_Wh", (Gauge<Double>)() -> energy_Wh);
+        // Changes between readings, so it can only be computed, and boxed, when scraped
+        registry.register(METRIC_PREFIX + "sampleAge_ms", (Gauge<Long>)() -> getSampleAgeMillis());
+    }
+
+    @Override
+    public void send(ExecutorUsageMetrics metrics) throws IOException {
+        load = metrics.load;
+        energy_Wh = energy_Wh.doubleValue() + metrics.energy_Wh;
+        lastSampleMillis = currentTimeMillis();
+
+        delegate.send(metrics);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        delegate.flush();
+    }
+
+    public double getLoad() {
+        return load.doubleValue();
+    }
+
+    public double getEnergy_Wh() {
+        return energy_Wh.doubleValue();
+    }
+
+    // -1 until the first reading
+    public long getSampleAgeMillis() {
+        long last = lastSampleMillis;
+        return last == 0L ? -1L : currentTimeMillis() - last;
+    }
+
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+}
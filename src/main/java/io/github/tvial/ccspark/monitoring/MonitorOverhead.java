@@ -0,0 +1,126 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.tvial.ccspark.monitoring;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+
+import io.github.tvial.ccspark.model.ExecutorUsageMetrics;
+import io.github.tvial.ccspark.sampling.SampleProvider;
+
+
+// Cost of the monitoring itself: duration of each phase of a run, failures, bytes read and CPU time of the
+// monitoring thread. All the methods but the gauges are called from the monitoring thread only.
+public class MonitorOverhead {
+    final static String METRIC_PREFIX = "overhead.";
+
+    private ThreadMXBean threads;
+    private OperatingSystemMXBean os;
+
+    private Histogram runNanos;
+    private Histogram samplingNanos;
+    private Histogram computationNanos;
+    private Histogram sinkNanos;
+    private Counter sendFailures;
+
+    private volatile long cpuNanos;
+    private long reportedCpuNanos;
+    private long reportedProcessCpuNanos;
+    private long runStartNanos;
+    private long runStartCpuNanos;
+
+    public MonitorOverhead(MetricRegistry registry, SampleProvider provider) {
+        this.threads = ManagementFactory.getThreadMXBean();
+        this.os = ManagementFactory.getOperatingSystemMXBean();
+
+        this.runNanos = registry.histogram(METRIC_PREFIX + "run_ns");
+        this.samplingNanos = registry.histogram(METRIC_PREFIX + "sampling_ns");
+        this.computationNanos = registry.histogram(METRIC_PREFIX + "computation_ns");
+        this.sinkNanos = registry.histogram(METRIC_PREFIX + "sink_ns");
+        this.sendFailures = registry.counter(METRIC_PREFIX + "sendFailures");
+        registry.register(METRIC_PREFIX + "bytesRead", (Gauge<Long>)() -> provider.getBytesRead());
+        registry.register(METRIC_PREFIX + "cpuTime_ns", (Gauge<Long>)() -> cpuNanos);
+
+        this.cpuNanos = 0L;
+        this.reportedCpuNanos = 0L;
+        this.reportedProcessCpuNanos = getProcessCpuNanos();
+    }
+
+    private long getThreadCpuNanos() {
+        return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : 0L;
+    }
+
+    // Only available on HotSpot-like JVMs
+    private long getProcessCpuNanos() {
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return Math.max(0L, ((com.sun.management.OperatingSystemMXBean)os).getProcessCpuTime());
+        }
+        return 0L;
+    }
+
+    private void accountCpuTime() {
+        long now = getThreadCpuNanos();
+        cpuNanos += now - runStartCpuNanos;
+        runStartCpuNanos = now;
+    }
+
+    public void runStarted() {
+        runStartNanos = System.nanoTime();
+        runStartCpuNanos = getThreadCpuNanos();
+    }
+
+    public void sampled(long nanos) {
+        samplingNanos.update(nanos);
+    }
+
+    public void computed(long nanos) {
+        computationNanos.update(nanos);
+    }
+
+    // CPU times since the previous report. The cost of sending is accounted for in the next one.
+    public void reportCpuTimes(ExecutorUsageMetrics metrics) {
+        accountCpuTime();
+
+        long processCpuNanos = getProcessCpuNanos();
+        metrics.pluginCpuNanos = cpuNanos - reportedCpuNanos;
+        metrics.processCpuNanos = Math.max(0L, processCpuNanos - reportedProcessCpuNanos);
+        reportedCpuNanos = cpuNanos;
+        reportedProcessCpuNanos = processCpuNanos;
+    }
+
+    public void sent(long nanos, boolean failed) {
+        sinkNanos.update(nanos);
+        if (failed) {
+            sendFailures.inc();
+        }
+    }
+
+    public void runEnded() {
+        accountCpuTime();
+        runNanos.update(System.nanoTime() - runStartNanos);
+    }
+
+    public long getCpuNanos() {
+        return cpuNanos;
+    }
+}
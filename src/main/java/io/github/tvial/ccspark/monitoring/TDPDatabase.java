@@ -0,0 +1,293 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.tvial.ccspark.monitoring;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+// Table of TDPs indexed by simplified CPU model name. The default table is built from the CSV file at
+// build time (see pom.xml), stored as a binary resource, and loaded once per JVM on first use.
+public class TDPDatabase {
+    final static Logger logger = LoggerFactory.getLogger(TDPDatabase.class);
+
+    final static String CSV_RESOURCE = "cpu_power_averages.csv";
+    final static String INDEX_RESOURCE = "cpu_power_index.bin";
+
+    // "CCTD"
+    final static int MAGIC = 0x43435444;
+
+    final static Pattern[] CPU_MODEL_SIMPLIFICATIONS = {
+        Pattern.compile(" cpu @ [\\d.]+ *ghz"),
+        Pattern.compile("\\((r|tm)\\)")
+    };
+
+    private static class DefaultHolder {
+        static final TDPDatabase INSTANCE = loadDefault();
+    }
+
+    private static final ConcurrentHashMap<String, TDPDatabase> withAdditions = new ConcurrentHashMap<String, TDPDatabase>();
+
+    private Map<String, Double> tdps;
+    private ConcurrentHashMap<String, Optional<TDPMatch>> lookups;
+    private volatile TrigramIndex trigramIndex;
+
+    TDPDatabase(Map<String, Double> tdps) {
+        this.tdps = tdps;
+        this.lookups = new ConcurrentHashMap<String, Optional<TDPMatch>>();
+        this.trigramIndex = null;
+    }
+
+    public static TDPDatabase getDefault() {
+        return DefaultHolder.INSTANCE;
+    }
+
+    // The default table, overridden by the entries of a local file (binary index or CSV), mapped in memory.
+    // A file that cannot be read only loses its own entries, or the ones after the damage in an index.
+    public static TDPDatabase getWithAdditions(String path) {
+        return withAdditions.computeIfAbsent(path, p -> {
+            Map<String, Double> tdps = new HashMap<String, Double>(getDefault().tdps);
+            Map<String, Double> additions = new HashMap<String, Double>();
+            try {
+                readMapped(p, additions);
+            }
+            catch (IOException | RuntimeException e) {
+                logger.warn(String.format(
+                    "Could not load TDP database %s, using the default one with %d additions, reason: %s", p, additions.size(), e
+                ));
+            }
+            tdps.putAll(additions);
+            return new TDPDatabase(tdps);
+        });
+    }
+
+    // Exact match on the simplified name (score 1), or else the closest model according to the trigram index.
+    // Results are remembered, so that looking up the same model again costs a hash lookup only.
+    public Optional<TDPMatch> match(String cpuModel) {
+        Optional<TDPMatch> match = lookups.get(cpuModel);
+
+        if (match == null) {
+            String simplifiedCPUModel = simplify(cpuModel);
+            Double tdp = tdps.get(simplifiedCPUModel);
+
+            if (tdp != null) {
+                match = Optional.of(new TDPMatch(simplifiedCPUModel, tdp, 1.0));
+            }
+            else {
+                match = Optional.ofNullable(getTrigramIndex().bestMatch(simplifiedCPUModel));
+            }
+            lookups.put(cpuModel, match);
+        }
+
+        return match;
+    }
+
+    private TrigramIndex getTrigramIndex() {
+        TrigramIndex index = trigramIndex;
+
+        if (index == null) {
+            synchronized (this) {
+                if (trigramIndex == null) {
+                    trigramIndex = new TrigramIndex(tdps);
+                }
+                index = trigramIndex;
+            }
+        }
+
+        return index;
+    }
+
+    public int size() {
+        return tdps.size();
+    }
+
+    public static String simplify(String cpuModel) {
+        String simplified = cpuModel.toLowerCase();
+
+        for (Pattern pattern : CPU_MODEL_SIMPLIFICATIONS) {
+            Matcher matcher = pattern.matcher(simplified);
+            simplified = matcher.replaceAll("");
+        }
+
+        return simplified;
+    }
+
+    private static TDPDatabase loadDefault() {
+        ClassLoader cl = TDPDatabase.class.getClassLoader();
+
+        try {
+            InputStream index = cl.getResourceAsStream(INDEX_RESOURCE);
+            if (index != null) {
+                try {
+                    return new TDPDatabase(readIndex(ByteBuffer.wrap(readFully(index))));
+                }
+                finally {
+                    index.close();
+                }
+            }
+
+            // Not built (e.g. when running from an IDE), fall back on the CSV file
+            Reader csv = new InputStreamReader(cl.getResourceAsStream(CSV_RESOURCE), StandardCharsets.UTF_8);
+            try {
+                return new TDPDatabase(readCSV(csv));
+            }
+            finally {
+                csv.close();
+            }
+        }
+        catch (Exception e) {
+            throw new IllegalStateException("Could not load TDP database", e);
+        }
+    }
+
+    static void readMapped(String path, Map<String, Double> tdps) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+
+        try {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (buffer.remaining() >= 4 && buffer.getInt(0) == MAGIC) {
+                readIndex(buffer, tdps);
+            }
+            else {
+                tdps.putAll(readCSV(new StringReader(StandardCharsets.UTF_8.decode(buffer).toString())));
+            }
+        }
+        finally {
+            channel.close();
+        }
+    }
+
+    static Map<String, Double> readCSV(Reader csv) throws IOException {
+        Map<String, Double> tdps = new HashMap<String, Double>();
+        BufferedReader reader = new BufferedReader(csv);
+
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String[] tokens = line.split(",");
+            if (tokens.length < 2 || line.startsWith("#")) {
+                continue;
+            }
+
+            try {
+                // First one wins, like the linear scan it replaces
+                tdps.putIfAbsent(simplify(tokens[0]), Double.parseDouble(tokens[1]));
+            }
+            catch (NumberFormatException e) {
+                // Header
+            }
+        }
+
+        return tdps;
+    }
+
+    static Map<String, Double> readIndex(ByteBuffer buffer) throws IOException {
+        Map<String, Double> tdps = new HashMap<String, Double>();
+        readIndex(buffer, tdps);
+        return tdps;
+    }
+
+    // Entries are added as they are read, so that a truncated index keeps the ones before the damage
+    static void readIndex(ByteBuffer buffer, Map<String, Double> tdps) throws IOException {
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException("Not a TDP index");
+        }
+
+        int count = buffer.getInt();
+        for (int i = 0; i < count; i++) {
+            byte[] name = new byte[buffer.getShort() & 0xffff];
+            buffer.get(name);
+            tdps.put(new String(name, StandardCharsets.UTF_8), buffer.getDouble());
+        }
+    }
+
+    static byte[] writeIndex(Map<String, Double> tdps) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+
+        output.writeInt(MAGIC);
+        output.writeInt(tdps.size());
+        for (Map.Entry<String, Double> entry : tdps.entrySet()) {
+            byte[] name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            output.writeShort(name.length);
+            output.write(name);
+            output.writeDouble(entry.getValue());
+        }
+
+        output.close();
+        return bytes.toByteArray();
+    }
+
+    private static byte[] readFully(InputStream input) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] chunk = new byte[8192];
+
+        int count;
+        while ((count = input.read(chunk)) > 0) {
+            bytes.write(chunk, 0, count);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    // Converts a CSV file (name,TDP) to a binary index: invoked at build time, or by hand for local additions
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: TDPDatabase <input CSV> <output index>");
+            System.exit(1);
+        }
+
+        Map<String, Double> tdps;
+        Reader csv = Files.newBufferedReader(Paths.get(args[0]), StandardCharsets.UTF_8);
+        try {
+            tdps = readCSV(csv);
+        }
+        finally {
+            csv.close();
+        }
+
+        FileOutputStream output = new FileOutputStream(args[1]);
+        try {
+            output.write(writeIndex(tdps));
+        }
+        finally {
+            output.close();
+        }
+    }
+}
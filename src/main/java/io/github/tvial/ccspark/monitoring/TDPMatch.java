@@ -0,0 +1,40 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.tvial.ccspark.monitoring;
+
+
+public class TDPMatch {
+    public String cpuModel;
+    public double tdp;
+    public double score;
+
+    public TDPMatch(String cpuModel, double tdp, double score) {
+        this.cpuModel = cpuModel;
+        this.tdp = tdp;
+        this.score = score;
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder()
+            .append("<model: ").append(cpuModel)
+            .append(", TDP: ").append(tdp)
+            .append(", score: ").append(score)
+            .append(">")
+            .toString();
+    }
+}
@@ -0,0 +1,129 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.tvial.ccspark.monitoring;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.github.tvial.ccspark.model.StageUsage;
+
+
+// Splits the energy of each sampling window across the tasks that ran during it, in proportion to their
+// running time within the window, and accumulates it per stage. The task hooks only touch their own task
+// record; everything else happens on the monitoring thread.
+public class TaskEnergyTracker {
+    static class TaskRecord {
+        final int stageId;
+        final int stageAttempt;
+        final long startMillis;
+        volatile long endMillis;
+        long recordsRead;
+        long recordsWritten;
+        long shuffleBytes;
+        long overlapMillis;
+
+        TaskRecord(int stageId, int stageAttempt, long startMillis) {
+            this.stageId = stageId;
+            this.stageAttempt = stageAttempt;
+            this.startMillis = startMillis;
+            this.endMillis = -1L;
+        }
+    }
+
+    private ConcurrentHashMap<Long, TaskRecord> tasks;
+    private Map<Long, StageUsage> pendingStages;
+
+    public TaskEnergyTracker() {
+        this.tasks = new ConcurrentHashMap<Long, TaskRecord>();
+        this.pendingStages = new HashMap<Long, StageUsage>();
+    }
+
+    public void taskStarted(long taskAttemptId, int stageId, int stageAttempt, long nowMillis) {
+        tasks.put(taskAttemptId, new TaskRecord(stageId, stageAttempt, nowMillis));
+    }
+
+    public void taskEnded(long taskAttemptId, long nowMillis, long recordsRead, long recordsWritten, long shuffleBytes) {
+        TaskRecord task = tasks.get(taskAttemptId);
+        if (task == null) {
+            return;
+        }
+
+        task.recordsRead = recordsRead;
+        task.recordsWritten = recordsWritten;
+        task.shuffleBytes = shuffleBytes;
+        // Written last, so that the monitoring thread sees the volumes once it sees the end
+        task.endMillis = nowMillis;
+    }
+
+    public int getRunningTaskCount() {
+        return tasks.size();
+    }
+
+    public void attribute(long windowStartMillis, long windowEndMillis, double energy_Wh) {
+        long totalOverlap = 0L;
+
+        for (TaskRecord task : tasks.values()) {
+            long end = task.endMillis < 0 ? windowEndMillis : Math.min(task.endMillis, windowEndMillis);
+            task.overlapMillis = Math.max(0L, end - Math.max(task.startMillis, windowStartMillis));
+            totalOverlap += task.overlapMillis;
+        }
+
+        Iterator<TaskRecord> iterator = tasks.values().iterator();
+        while (iterator.hasNext()) {
+            TaskRecord task = iterator.next();
+            StageUsage stage = getPendingStage(task.stageId, task.stageAttempt);
+
+            if (totalOverlap > 0) {
+                stage.energy_Wh += energy_Wh * task.overlapMillis / totalOverlap;
+            }
+
+            long endMillis = task.endMillis;
+            if (endMillis >= 0 && endMillis <= windowEndMillis) {
+                stage.taskCount++;
+                stage.recordsRead += task.recordsRead;
+                stage.recordsWritten += task.recordsWritten;
+                stage.shuffleBytes += task.shuffleBytes;
+                iterator.remove();
+            }
+        }
+    }
+
+    // Stage usage accumulated since the last call
+    public StageUsage[] drainStageUsage() {
+        if (pendingStages.isEmpty()) {
+            return null;
+        }
+
+        StageUsage[] stages = pendingStages.values().toArray(new StageUsage[0]);
+        pendingStages.clear();
+        return stages;
+    }
+
+    private StageUsage getPendingStage(int stageId, int stageAttempt) {
+        long key = ((long)stageId << 32) | stageAttempt;
+        StageUsage stage = pendingStages.get(key);
+
+        if (stage == null) {
+            stage = new StageUsage(stageId, stageAttempt);
+            pendingStages.put(key, stage);
+        }
+
+        return stage;
+    }
+}
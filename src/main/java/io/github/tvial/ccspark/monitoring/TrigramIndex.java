@@ -0,0 +1,146 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.tvial.ccspark.monitoring;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+
+// Inverted index from character trigrams to CPU models, to find the closest model to a name that does not
+// match exactly. Candidates are scored with the Dice coefficient of their trigram sets, and only those
+// sharing at least one trigram with the query are looked at.
+public class TrigramIndex {
+    // Noise found in /proc/cpuinfo but not in the database
+    final static Pattern[] FUZZY_SIMPLIFICATIONS = {
+        Pattern.compile(" \\d+-core processor"),
+        Pattern.compile(" with radeon .*"),
+        Pattern.compile(" processor"),
+        Pattern.compile(" cpu"),
+        Pattern.compile(" @ [\\d.]+ *ghz")
+    };
+
+    private String[] models;
+    private double[] tdps;
+    private int[] trigramCounts;
+    private Map<Long, int[]> postings;
+
+    public TrigramIndex(Map<String, Double> tdpsByModel) {
+        int count = tdpsByModel.size();
+        models = new String[count];
+        tdps = new double[count];
+        trigramCounts = new int[count];
+
+        Map<Long, List<Integer>> lists = new HashMap<Long, List<Integer>>();
+        int index = 0;
+
+        for (Map.Entry<String, Double> entry : tdpsByModel.entrySet()) {
+            long[] trigrams = trigrams(entry.getKey());
+
+            models[index] = entry.getKey();
+            tdps[index] = entry.getValue();
+            trigramCounts[index] = trigrams.length;
+
+            for (long trigram : trigrams) {
+                lists.computeIfAbsent(trigram, t -> new ArrayList<Integer>()).add(index);
+            }
+            index++;
+        }
+
+        postings = new HashMap<Long, int[]>(2 * lists.size());
+        for (Map.Entry<Long, List<Integer>> entry : lists.entrySet()) {
+            postings.put(entry.getKey(), entry.getValue().stream().mapToInt(Integer::intValue).toArray());
+        }
+    }
+
+    // The model is expected to be simplified already
+    public TDPMatch bestMatch(String simplifiedCPUModel) {
+        long[] trigrams = trigrams(simplifiedCPUModel);
+        int[] common = new int[models.length];
+        int[] touched = new int[models.length];
+        int touchedCount = 0;
+
+        for (long trigram : trigrams) {
+            int[] candidates = postings.get(trigram);
+            if (candidates == null) {
+                continue;
+            }
+
+            for (int candidate : candidates) {
+                if (common[candidate]++ == 0) {
+                    touched[touchedCount++] = candidate;
+                }
+            }
+        }
+
+        int best = -1;
+        double bestScore = 0.0;
+
+        for (int i = 0; i < touchedCount; i++) {
+            int candidate = touched[i];
+            double score = score(candidate, common, trigrams.length);
+
+            // Ties are broken by name, so that the result does not depend on the order of the index
+            if (best < 0 || score > bestScore || (score == bestScore && models[candidate].compareTo(models[best]) < 0)) {
+                best = candidate;
+                bestScore = score;
+            }
+        }
+
+        if (best < 0) {
+            return null;
+        }
+        return new TDPMatch(models[best], tdps[best], bestScore);
+    }
+
+    private double score(int candidate, int[] common, int queryCount) {
+        return 2.0 * common[candidate] / (trigramCounts[candidate] + queryCount);
+    }
+
+    static String normalize(String simplifiedCPUModel) {
+        String normalized = simplifiedCPUModel;
+
+        for (Pattern pattern : FUZZY_SIMPLIFICATIONS) {
+            normalized = pattern.matcher(normalized).replaceAll("");
+        }
+
+        return normalized.trim();
+    }
+
+    // Distinct trigrams of the normalized name, padded so that short names still have some
+    static long[] trigrams(String simplifiedCPUModel) {
+        String padded = "  " + normalize(simplifiedCPUModel) + " ";
+        long[] trigrams = new long[Math.max(0, padded.length() - 2)];
+
+        for (int i = 0; i < trigrams.length; i++) {
+            trigrams[i] = ((long)padded.charAt(i) << 32) | ((long)padded.charAt(i + 1) << 16) | padded.charAt(i + 2);
+        }
+
+        Arrays.sort(trigrams);
+        int distinct = 0;
+        for (int i = 0; i < trigrams.length; i++) {
+            if (distinct == 0 || trigrams[i] != trigrams[distinct - 1]) {
+                trigrams[distinct++] = trigrams[i];
+            }
+        }
+
+        return Arrays.copyOf(trigrams, distinct);
+    }
+}
@@ -23,4 +23,7 @@ import io.github.tvial.ccspark.model.ExecutorUsageMetrics;
 
 public interface UsageMetricsSink {
     void send(ExecutorUsageMetrics metrics) throws IOException;
+
+    default void flush() throws IOException {
+    }
 }
@@ -17,30 +17,74 @@
 package io.github.tvial.ccspark.monitoring;
 
 import java.io.IOException;
-import java.util.TimerTask;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import io.github.tvial.ccspark.model.CoreSchedulings;
+import io.github.tvial.ccspark.model.CoreUsageSummary;
 import io.github.tvial.ccspark.model.ExecutorUsageMetrics;
 import io.github.tvial.ccspark.model.Sample;
+import io.github.tvial.ccspark.model.ThreadCategoryUsage;
 import io.github.tvial.ccspark.sampling.SampleProvider;
 
 
-public class UsageMonitor extends TimerTask {
+public class UsageMonitor implements Runnable {
     final Logger logger = LoggerFactory.getLogger(UsageMonitor.class);
 
-    private double tdp;
+    // Below this load, a core is considered idle
+    final static double IDLE_CORE_LOAD = 0.05;
+    // Power drawn by DRAM, per GB in use, when it cannot be measured
+    public final static double DEFAULT_MEMORY_POWER_PER_GB = 0.375;
+    final static double BYTES_PER_GB = 1024. * 1024. * 1024.;
+    // Indices of the figures computed by computeUsage()
+    final static int LOAD = 0;
+    final static int CPU_ENERGY = 1;
+    final static int MEMORY_ENERGY = 2;
+    final static int USAGE_FIGURES = 3;
+
+    private EnergyModel model;
+    private double memoryPowerPerGB;
     private SampleProvider provider;
     private UsageMetricsSink sink;
+    private TaskEnergyTracker taskTracker;
+    private MonitorOverhead overhead;
     private Sample lastSample;
+    private double[] usage;
 
-    public UsageMonitor(SampleProvider provider, UsageMetricsSink sink, double tdp) {
+    private double totalEnergy_Wh;
+    private long totalPluginCpuNanos;
+    private long totalProcessCpuNanos;
+
+    public UsageMonitor(SampleProvider provider, UsageMetricsSink sink, EnergyModel model, double memoryPowerPerGB, TaskEnergyTracker taskTracker, MonitorOverhead overhead) {
         this.provider = provider;
         this.sink = sink;
-        this.tdp = tdp;
+        this.model = model;
+        this.memoryPowerPerGB = memoryPowerPerGB;
+        this.taskTracker = taskTracker;
+        this.overhead = overhead;
 
         this.lastSample = null;
+        this.usage = new double[USAGE_FIGURES];
+        this.totalEnergy_Wh = 0.0;
+        this.totalPluginCpuNanos = 0L;
+        this.totalProcessCpuNanos = 0L;
+    }
+
+    public UsageMonitor(SampleProvider provider, UsageMetricsSink sink, double tdp, double memoryPowerPerGB, TaskEnergyTracker taskTracker, MonitorOverhead overhead) {
+        this(provider, sink, new TDPEnergyModel(tdp), memoryPowerPerGB, taskTracker, overhead);
+    }
+
+    public UsageMonitor(SampleProvider provider, UsageMetricsSink sink, double tdp, TaskEnergyTracker taskTracker, MonitorOverhead overhead) {
+        this(provider, sink, tdp, DEFAULT_MEMORY_POWER_PER_GB, taskTracker, overhead);
+    }
+
+    public UsageMonitor(SampleProvider provider, UsageMetricsSink sink, double tdp, TaskEnergyTracker taskTracker) {
+        this(provider, sink, tdp, taskTracker, null);
+    }
+
+    public UsageMonitor(SampleProvider provider, UsageMetricsSink sink, double tdp) {
+        this(provider, sink, tdp, null);
     }
 
     public void initialize() {
@@ -52,29 +96,78 @@ public class UsageMonitor extends TimerTask {
         }
     }
 
-    protected void sampleAndSendMetrics() {
+    protected ExecutorUsageMetrics sampleAndSendMetrics() {
         if (lastSample == null) {
             logger.warn("First sample is null, ignoring");
-            return;
+            return null;
+        }
+
+        if (overhead != null) {
+            overhead.runStarted();
         }
 
         try {
-            ExecutorUsageMetrics usage = sampleUsage();
-            sink.send(usage);
+            ExecutorUsageMetrics usage;
+            try {
+                usage = sampleUsage();
+            }
+            catch (IOException e) {
+                logger.warn(String.format("Could not get metrics, reason: %s", e.getMessage()));
+                return null;
+            }
+
+            if (overhead != null) {
+                overhead.reportCpuTimes(usage);
+            }
+            totalEnergy_Wh += usage.energy_Wh;
+            totalPluginCpuNanos += usage.pluginCpuNanos;
+            totalProcessCpuNanos += usage.processCpuNanos;
+            usage.setCumulativeCounters(totalEnergy_Wh, totalPluginCpuNanos, totalProcessCpuNanos);
+
+            long sendStart = System.nanoTime();
+            try {
+                sink.send(usage);
+            }
+            catch (IOException e) {
+                logger.warn(String.format("Could not send metrics, reason: %s", e.getMessage()));
+                if (overhead != null) {
+                    overhead.sent(System.nanoTime() - sendStart, true);
+                }
+                return null;
+            }
+            if (overhead != null) {
+                overhead.sent(System.nanoTime() - sendStart, false);
+            }
+
+            return usage;
         }
-        catch (IOException e) {
-            logger.warn(String.format("Could not get or send metrics, reason: %s", e.getMessage()));
+        finally {
+            if (overhead != null) {
+                overhead.runEnded();
+            }
         }
     }
 
     public ExecutorUsageMetrics sampleUsage() throws IOException {
+        long start = System.nanoTime();
         Sample newSample = provider.sample();
         if (logger.isDebugEnabled()) {
             logger.debug(String.format("Received sample: %s", newSample));
         }
+        long sampled = System.nanoTime();
 
         ExecutorUsageMetrics metrics = computeUsageMetrics(lastSample, newSample);
+        metrics.endMillis = newSample.timestampMillis;
+        if (taskTracker != null) {
+            taskTracker.attribute(lastSample.timestampMillis, newSample.timestampMillis, metrics.energy_Wh);
+            metrics.stages = taskTracker.drainStageUsage();
+        }
         lastSample = newSample;
+
+        if (overhead != null) {
+            overhead.sampled(sampled - start);
+            overhead.computed(System.nanoTime() - sampled);
+        }
         return metrics;
     }
 
@@ -83,30 +176,145 @@ public class UsageMonitor extends TimerTask {
             logger.debug(String.format("Computing load for %s -> %s", sampleBefore, sampleAfter));
         }
 
-        long cpuDelta = sampleAfter.cpu.minus(sampleBefore.cpu).total();
+        long timeDelta = sampleAfter.timestampMillis - sampleBefore.timestampMillis;
 
-        if (cpuDelta == 0) {
-            return new ExecutorUsageMetrics(0.0, 0.0);
+        if (!computeUsage(sampleBefore, sampleAfter, usage)) {
+            return new ExecutorUsageMetrics(0.0, 0.0, timeDelta);
         }
 
-        long processDelta = sampleAfter.process.minus(sampleBefore.process).total();
+        long processDelta = sampleAfter.process.totalSince(sampleBefore.process);
+        ExecutorUsageMetrics metrics = new ExecutorUsageMetrics(usage[LOAD], usage[CPU_ENERGY] + usage[MEMORY_ENERGY], timeDelta);
+        metrics.memoryEnergy_Wh = usage[MEMORY_ENERGY];
+        metrics.rssBytes = sampleAfter.rssBytes;
+        metrics.swapBytes = sampleAfter.swapBytes;
+        metrics.cores = computeCoreUsage(sampleBefore.cores, sampleAfter.cores);
+        metrics.threads = computeThreadUsage(sampleBefore.threadCpuTimes, sampleAfter.threadCpuTimes, processDelta, usage[CPU_ENERGY]);
+        return metrics;
+    }
+
+    // Load, CPU energy and memory energy over the interval, into the given array, without allocating anything,
+    // so that replays can run it in a tight loop. Returns false, with zero figures, if no CPU time elapsed.
+    boolean computeUsage(Sample sampleBefore, Sample sampleAfter, double[] usage) {
+        long cpuDelta = sampleAfter.cpu.totalSince(sampleBefore.cpu);
         long timeDelta = sampleAfter.timestampMillis - sampleBefore.timestampMillis;
+
+        if (cpuDelta == 0) {
+            usage[LOAD] = 0.0;
+            usage[CPU_ENERGY] = 0.0;
+            usage[MEMORY_ENERGY] = 0.0;
+            return false;
+        }
+
+        long processDelta = sampleAfter.process.totalSince(sampleBefore.process);
         double load = (double)processDelta / (double)cpuDelta;
 
-        double energy = load * tdp * timeDelta / (3600. * 1000.);
+        // When the footprint is known, DRAM energy is attributed by memory share rather than by CPU load
+        boolean memorySampled = sampleAfter.rssBytes != Sample.UNKNOWN_MEMORY;
+        usage[LOAD] = load;
+        usage[CPU_ENERGY] = isMeasured(sampleBefore, sampleAfter)
+            ? load * measuredEnergy(sampleBefore, sampleAfter, !memorySampled) / (3600. * 1e6)
+            : model.estimateEnergy_Wh(sampleBefore, sampleAfter, load, timeDelta);
+        usage[MEMORY_ENERGY] = memorySampled ? computeMemoryEnergy(sampleBefore, sampleAfter, timeDelta) : 0.0;
+        return true;
+    }
+
+    // The executor gets the share of the DRAM energy of the host that matches its share of the memory. Without
+    // a measure, a fixed power per GB is used. Swapped out memory does not draw DRAM power.
+    protected double computeMemoryEnergy(Sample sampleBefore, Sample sampleAfter, long timeDelta) {
+        double rssBytes = sampleBefore.rssBytes != Sample.UNKNOWN_MEMORY
+            ? (sampleBefore.rssBytes + sampleAfter.rssBytes) / 2.
+            : sampleAfter.rssBytes;
+
+        if (isDRAMMeasured(sampleBefore, sampleAfter) && sampleAfter.memTotalBytes > 0) {
+            long dramEnergy = sampleAfter.dramEnergyMicroJoules - sampleBefore.dramEnergyMicroJoules;
+            return dramEnergy * (rssBytes / sampleAfter.memTotalBytes) / (3600. * 1e6);
+        }
 
-        return new ExecutorUsageMetrics(load, energy);
+        return memoryPowerPerGB * (rssBytes / BYTES_PER_GB) * timeDelta / (3600. * 1000.);
     }
 
-    // TimerTask implementation
+    // The energy of the executor is split between thread categories according to their CPU time. The CPU
+    // time of child processes does not belong to any category.
+    protected ThreadCategoryUsage computeThreadUsage(long[] cpuTimesBefore, long[] cpuTimesAfter, long processDelta, double energy) {
+        if (cpuTimesBefore == null || cpuTimesAfter == null) {
+            return null;
+        }
 
-    @Override
-    public boolean cancel() {
-        logger.info("Cancelling usage monitoring task");
-        sampleAndSendMetrics();
-        return super.cancel();
+        ThreadCategoryUsage usage = new ThreadCategoryUsage();
+        long threadsDelta = 0L;
+        for (int i = 0; i < usage.cpuTimes.length; i++) {
+            usage.cpuTimes[i] = Math.max(0L, cpuTimesAfter[i] - cpuTimesBefore[i]);
+            threadsDelta += usage.cpuTimes[i];
+        }
+
+        long totalDelta = Math.max(threadsDelta, processDelta);
+        if (totalDelta > 0L) {
+            for (int i = 0; i < usage.energies_Wh.length; i++) {
+                usage.energies_Wh[i] = energy * usage.cpuTimes[i] / totalDelta;
+            }
+        }
+
+        return usage;
+    }
+
+    private static boolean isMeasured(Sample sampleBefore, Sample sampleAfter) {
+        return
+            sampleBefore.packageEnergyMicroJoules != Sample.UNKNOWN_ENERGY &&
+            sampleAfter.packageEnergyMicroJoules != Sample.UNKNOWN_ENERGY;
+    }
+
+    private static boolean isDRAMMeasured(Sample sampleBefore, Sample sampleAfter) {
+        return
+            sampleBefore.dramEnergyMicroJoules != Sample.UNKNOWN_ENERGY &&
+            sampleAfter.dramEnergyMicroJoules != Sample.UNKNOWN_ENERGY;
     }
 
+    // Energy of the host over the interval, in uJ. The executor gets its share according to its load.
+    private static long measuredEnergy(Sample sampleBefore, Sample sampleAfter, boolean includeDRAM) {
+        long energy = sampleAfter.packageEnergyMicroJoules - sampleBefore.packageEnergyMicroJoules;
+
+        if (includeDRAM && isDRAMMeasured(sampleBefore, sampleAfter)) {
+            energy += sampleAfter.dramEnergyMicroJoules - sampleBefore.dramEnergyMicroJoules;
+        }
+
+        return energy;
+    }
+
+    protected CoreUsageSummary computeCoreUsage(CoreSchedulings coresBefore, CoreSchedulings coresAfter) {
+        // Cores going on or offline shift the vectors, so that interval is skipped
+        if (coresBefore == null || coresAfter == null || coresBefore.count != coresAfter.count || coresAfter.count == 0) {
+            return null;
+        }
+
+        int busiestCore = -1;
+        double busiestCoreLoad = 0.0;
+        double totalLoad = 0.0;
+        int idleCoreCount = 0;
+
+        for (int i = 0; i < coresAfter.count; i++) {
+            long busyDelta = coresAfter.busyTimes[i] - coresBefore.busyTimes[i];
+            long idleDelta = coresAfter.idleTimes[i] - coresBefore.idleTimes[i];
+            long totalDelta = busyDelta + idleDelta;
+            double coreLoad = totalDelta > 0 ? (double)busyDelta / (double)totalDelta : 0.0;
+
+            if (busiestCore < 0 || coreLoad > busiestCoreLoad) {
+                busiestCore = coresAfter.coreIds[i];
+                busiestCoreLoad = coreLoad;
+            }
+            if (coreLoad < IDLE_CORE_LOAD) {
+                idleCoreCount++;
+            }
+            totalLoad += coreLoad;
+        }
+
+        double meanLoad = totalLoad / coresAfter.count;
+        double imbalance = meanLoad > 0.0 ? busiestCoreLoad / meanLoad : 0.0;
+
+        return new CoreUsageSummary(coresAfter.count, busiestCore, busiestCoreLoad, idleCoreCount, imbalance);
+    }
+
+    // Runnable implementation
+
     @Override
     public void run() {
         sampleAndSendMetrics();
@@ -0,0 +1,177 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package io.github.tvial.ccspark.monitoring;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import io.github.tvial.ccspark.model.Sample;
+import io.github.tvial.ccspark.sampling.SampleRecording;
+
+
+// Re-estimates recorded runs with another TDP, energy model or memory power, without rerunning them. Each recording (one
+// per executor) is loaded as an array of longs, and its samples are run through the same computation as on
+// the executors, using two reused samples. Recordings are replayed in parallel. Energy measured by RAPL
+// takes precedence over the model, unless the measures are ignored (--estimate).
+// Usage: UsageReplay [--estimate] <TDP> <memory W/GB> <threads> <recording>...
+public class UsageReplay {
+    final static String ESTIMATE_OPTION = "--estimate";
+
+    public static class Result {
+        public String path;
+        public long sampleCount;
+        public long durationMillis;
+        public double energy_Wh;
+        public double memoryEnergy_Wh;
+        // Load weighted by interval, divided by the duration for the mean load
+        public double loadMillis;
+
+        public Result(String path) {
+            this.path = path;
+        }
+
+        public double getMeanLoad() {
+            return durationMillis > 0 ? loadMillis / durationMillis : 0.0;
+        }
+
+        @Override
+        public String toString() {
+            return new StringBuilder()
+                .append("<recording: ").append(path)
+                .append(", samples: ").append(sampleCount)
+                .append(", duration: ").append(durationMillis).append(" ms")
+                .append(", mean load: ").append(getMeanLoad())
+                .append(", energy: ").append(energy_Wh).append(" Wh")
+                .append(", memory: ").append(memoryEnergy_Wh).append(" Wh")
+                .append(">")
+                .toString();
+        }
+    }
+
+    private EnergyModel model;
+    private double memoryPowerPerGB;
+    private boolean ignoreMeasuredEnergy;
+
+    public UsageReplay(EnergyModel model, double memoryPowerPerGB, boolean ignoreMeasuredEnergy) {
+        this.model = model;
+        this.memoryPowerPerGB = memoryPowerPerGB;
+        this.ignoreMeasuredEnergy = ignoreMeasuredEnergy;
+    }
+
+    public UsageReplay(EnergyModel model, double memoryPowerPerGB) {
+        this(model, memoryPowerPerGB, false);
+    }
+
+    public UsageReplay(double tdp, double memoryPowerPerGB, boolean ignoreMeasuredEnergy) {
+        this(new TDPEnergyModel(tdp), memoryPowerPerGB, ignoreMeasuredEnergy);
+    }
+
+    public UsageReplay(double tdp, double memoryPowerPerGB) {
+        this(tdp, memoryPowerPerGB, false);
+    }
+
+    public Result replay(String path) throws IOException {
+        return replay(path, SampleRecording.load(path));
+    }
+
+    Result replay(String path, long[] values) {
+        // Only the computation is used, not the sampling nor the sending
+        UsageMonitor monitor = new UsageMonitor(null, null, model, memoryPowerPerGB, null, null);
+        Result result = new Result(path);
+
+        int count = values.length / SampleRecording.FIELDS;
+        if (count == 0) {
+            return result;
+        }
+
+        Sample before = SampleRecording.newSample();
+        Sample after = SampleRecording.newSample();
+        double[] usage = new double[UsageMonitor.USAGE_FIGURES];
+        SampleRecording.fill(values, 0, before, ignoreMeasuredEnergy);
+
+        for (int i = 1; i < count; i++) {
+            SampleRecording.fill(values, i * SampleRecording.FIELDS, after, ignoreMeasuredEnergy);
+            long intervalMillis = after.timestampMillis - before.timestampMillis;
+            monitor.computeUsage(before, after, usage);
+
+            result.durationMillis += intervalMillis;
+            result.energy_Wh += usage[UsageMonitor.CPU_ENERGY] + usage[UsageMonitor.MEMORY_ENERGY];
+            result.memoryEnergy_Wh += usage[UsageMonitor.MEMORY_ENERGY];
+            result.loadMillis += usage[UsageMonitor.LOAD] * intervalMillis;
+
+            Sample swap = before;
+            before = after;
+            after = swap;
+        }
+
+        result.sampleCount = count;
+        return result;
+    }
+
+    // Results are in the order of the paths
+    public List<Result> replayAll(List<String> paths, int threads) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            List<Future<Result>> futures = new ArrayList<Future<Result>>();
+            for (String path : paths) {
+                futures.add(executor.submit(() -> replay(path)));
+            }
+
+            List<Result> results = new ArrayList<Result>();
+            for (Future<Result> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while replaying", e);
+        }
+        catch (ExecutionException e) {
+            throw new IOException(String.format("Cannot replay, reason: %s", e.getCause().getMessage()), e.getCause());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        boolean estimate = args.length > 0 && args[0].equals(ESTIMATE_OPTION);
+        int first = estimate ? 1 : 0;
+        if (args.length < first + 4) {
+            System.err.println("Usage: UsageReplay [--estimate] <TDP> <memory W/GB> <threads> <recording>...");
+            System.exit(1);
+        }
+
+        UsageReplay replay = new UsageReplay(Double.valueOf(args[first]), Double.valueOf(args[first + 1]), estimate);
+        List<Result> results = replay.replayAll(
+            Arrays.asList(args).subList(first + 3, args.length), Integer.valueOf(args[first + 2])
+        );
+
+        double energy_Wh = 0.0;
+        for (Result result : results) {
+            System.out.println(result);
+            energy_Wh += result.energy_Wh;
+        }
+        System.out.println(String.format("Total energy: %f Wh", energy_Wh));
+    }
+}
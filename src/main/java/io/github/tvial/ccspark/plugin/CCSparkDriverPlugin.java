@@ -16,19 +16,38 @@
 
 package io.github.tvial.ccspark.plugin;
 
+import java.io.IOException;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
 import org.apache.spark.SparkContext;
 import org.apache.spark.api.plugin.DriverPlugin;
 import org.apache.spark.api.plugin.PluginContext;
-import org.apache.spark.util.DoubleAccumulator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.codahale.metrics.DefaultSettableGauge;
+import com.codahale.metrics.Gauge;
 
+import io.github.tvial.ccspark.aggregation.BoundedMPSCQueue;
+import io.github.tvial.ccspark.aggregation.CumulativeCounterTracker;
+import io.github.tvial.ccspark.aggregation.EnergyAggregator;
+import io.github.tvial.ccspark.aggregation.SQLExecutionEnergyAggregator;
+import io.github.tvial.ccspark.aggregation.SQLExecutionUsage;
+import io.github.tvial.ccspark.aggregation.StageEnergyAggregator;
+import io.github.tvial.ccspark.aggregation.ThreadCategoryAggregator;
+import io.github.tvial.ccspark.aggregation.UsageHistory;
+import io.github.tvial.ccspark.journal.EnergyJournal;
+import io.github.tvial.ccspark.model.CoreUsageSummary;
 import io.github.tvial.ccspark.model.ExecutorUsageMetrics;
+import io.github.tvial.ccspark.model.StageUsage;
+import io.github.tvial.ccspark.model.ThreadCategory;
+import io.github.tvial.ccspark.model.ThreadCategoryUsage;
 import scala.Tuple2;
 
 
@@ -37,17 +56,292 @@ public class CCSparkDriverPlugin implements DriverPlugin {
 
     final static String CCSPARK_CONF_PREFIX = "spark.ccspark.";
     final static String METRIC_PREFIX = "energy.total_Wh";
+    final static String OVERHEAD_METRIC = "overhead.percent";
+    final static String MEMORY_METRIC = "energy.memory_Wh";
+    final static String LOG_INTERVAL_KEY = "log.interval";
+    final static String HISTORY_MAX_BYTES_KEY = "history.maxBytes";
+    final static String JOURNAL_PATH_KEY = "journal.path";
+    final static String JOURNAL_SEGMENT_RECORDS_KEY = "journal.segmentRecords";
+    final static String JOURNAL_METRIC_PREFIX = "journal.";
+    final static String SQL_MAX_EXECUTIONS_KEY = "sql.maxExecutions";
+    final static String MAX_STAGES_KEY = "stages.maxStages";
+    final static String QUEUE_CAPACITY_KEY = "ingestion.queueCapacity";
+    final static String INGESTION_METRIC_PREFIX = "ingestion.";
 
-    private DoubleAccumulator totalEnergy;
-    private DefaultSettableGauge<Double> totalEnergyGauge;
+    final static long DEFAULT_LOG_INTERVAL = 60000L;
+    final static int STAGES_IN_REPORT = 10;
+    final static int SQL_EXECUTIONS_IN_REPORT = 10;
+    final static long DEFAULT_HISTORY_MAX_BYTES = 32L * 1024 * 1024;
+    final static int DEFAULT_QUEUE_CAPACITY = 1 << 16;
+    final static int DRAIN_BATCH = 1024;
+    final static long IDLE_PARK_NANOS = 1000000L;
+
+    private EnergyAggregator aggregator = new EnergyAggregator();
+    private StageEnergyAggregator stageAggregator = new StageEnergyAggregator();
+    private ThreadCategoryAggregator threadAggregator = new ThreadCategoryAggregator();
+    private SQLExecutionEnergyAggregator sqlAggregator = new SQLExecutionEnergyAggregator();
+    private UsageHistory history = new UsageHistory(DEFAULT_HISTORY_MAX_BYTES);
+    private CumulativeCounterTracker counterTracker = new CumulativeCounterTracker();
+    private long logIntervalMillis = DEFAULT_LOG_INTERVAL;
+    private AtomicLong nextLogMillis = new AtomicLong(0L);
+    private LongAdder pluginCpuNanos = new LongAdder();
+    private LongAdder processCpuNanos = new LongAdder();
+    private DoubleAdder memoryEnergy = new DoubleAdder();
+    private EnergyJournal journal = null;
+    private ConcurrentHashMap<String, CoreUsageSummary> coreUsages = new ConcurrentHashMap<String, CoreUsageSummary>();
+    private BoundedMPSCQueue<ExecutorUsageMetrics> queue = new BoundedMPSCQueue<ExecutorUsageMetrics>(DEFAULT_QUEUE_CAPACITY);
+    private volatile boolean aggregating = false;
+    private Thread aggregationThread = null;
+
+    EnergyAggregator getAggregator() {
+        return aggregator;
+    }
+
+    StageEnergyAggregator getStageAggregator() {
+        return stageAggregator;
+    }
+
+    ThreadCategoryAggregator getThreadAggregator() {
+        return threadAggregator;
+    }
+
+    SQLExecutionEnergyAggregator getSQLAggregator() {
+        return sqlAggregator;
+    }
+
+    CumulativeCounterTracker getCounterTracker() {
+        return counterTracker;
+    }
+
+    // Part of the total energy that went to the memory of the executors
+    double getMemoryEnergy() {
+        return memoryEnergy.sum();
+    }
+
+    EnergyJournal getJournal() {
+        return journal;
+    }
+
+    // The journal is optional, and the plugin goes on without it if it cannot be opened
+    void openJournal(Map<String, String> extraConf) {
+        if (!extraConf.containsKey(JOURNAL_PATH_KEY)) {
+            return;
+        }
+
+        String path = extraConf.get(JOURNAL_PATH_KEY);
+        int segmentRecords = extraConf.containsKey(JOURNAL_SEGMENT_RECORDS_KEY)
+            ? Integer.valueOf(extraConf.get(JOURNAL_SEGMENT_RECORDS_KEY))
+            : EnergyJournal.DEFAULT_SEGMENT_RECORDS;
+
+        try {
+            journal = new EnergyJournal(path, segmentRecords, EnergyJournal.DEFAULT_QUEUE_CAPACITY);
+            logger.info(String.format("Journaling readings in %s", path));
+        }
+        catch (IOException e) {
+            logger.warn(String.format("Cannot open energy journal in %s, reason: %s", path, e.getMessage()));
+        }
+    }
+
+    void closeJournal() {
+        if (journal == null) {
+            return;
+        }
+
+        try {
+            journal.close();
+            logger.info(String.format(
+                "Journaled %d readings (%d dropped)", journal.getWrittenCount(), journal.getDroppedCount()
+            ));
+        }
+        catch (IOException e) {
+            logger.warn(String.format("Cannot close energy journal, reason: %s", e.getMessage()));
+        }
+    }
+
+    BoundedMPSCQueue<ExecutorUsageMetrics> getQueue() {
+        return queue;
+    }
+
+    // Readings are aggregated by a dedicated thread, so that receiving them never blocks the RPC threads
+    void startAggregation() {
+        aggregating = true;
+        aggregationThread = new Thread(this::aggregate, "Energy aggregation");
+        aggregationThread.setDaemon(true);
+        aggregationThread.start();
+    }
+
+    // Stops the aggregation thread, then aggregates the readings left in the queue
+    void stopAggregation() {
+        aggregating = false;
+        if (aggregationThread != null) {
+            LockSupport.unpark(aggregationThread);
+            try {
+                aggregationThread.join();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            aggregationThread = null;
+        }
+        drain();
+    }
+
+    // Aggregates all the queued readings in the calling thread. Only when the aggregation thread is not running.
+    int drain() {
+        int total = 0;
+        int drained;
+        while ((drained = queue.drain(this::ingest, DRAIN_BATCH)) > 0) {
+            total += drained;
+        }
+        return total;
+    }
+
+    private void aggregate() {
+        while (aggregating) {
+            try {
+                if (queue.drain(this::ingest, DRAIN_BATCH) == 0) {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+            }
+            catch (RuntimeException e) {
+                // One bad reading must not stop the aggregation
+                logger.warn(String.format("Cannot aggregate reading, reason: %s", e));
+            }
+        }
+    }
+
+    private void ingest(ExecutorUsageMetrics usageMetrics) {
+        if (!counterTracker.toIncrements(usageMetrics)) {
+            if (logger.isDebugEnabled()) {
+                logger.debug(String.format("Ignoring duplicate %s", usageMetrics));
+            }
+            return;
+        }
+
+        aggregator.add(usageMetrics.executorId, usageMetrics.energy_Wh);
+        pluginCpuNanos.add(usageMetrics.pluginCpuNanos);
+        processCpuNanos.add(usageMetrics.processCpuNanos);
+        memoryEnergy.add(usageMetrics.memoryEnergy_Wh);
+        // Stamped with the end of the reading rather than when it is dequeued, which may be a batch later
+        long timestamp = usageMetrics.endMillis > 0L ? usageMetrics.endMillis : System.currentTimeMillis();
+        history.add(usageMetrics.executorId, timestamp, usageMetrics.load, usageMetrics.energy_Wh);
+        if (journal != null) {
+            journal.append(timestamp, usageMetrics.executorId, usageMetrics.load, usageMetrics.energy_Wh, usageMetrics.memoryEnergy_Wh);
+        }
+        sqlAggregator.add(usageMetrics.stages, usageMetrics.energy_Wh);
+        if (usageMetrics.stages != null) {
+            stageAggregator.add(usageMetrics.stages);
+        }
+        if (usageMetrics.threads != null) {
+            threadAggregator.add(usageMetrics.threads);
+        }
+        if (usageMetrics.cores != null && usageMetrics.executorId != null) {
+            coreUsages.put(usageMetrics.executorId, usageMetrics.cores);
+        }
+        logSummaryIfDue();
+    }
+
+    public UsageHistory getHistory() {
+        return history;
+    }
+
+    // Share of the CPU time of the executors spent monitoring them
+    double getOverheadPercent() {
+        long processNanos = processCpuNanos.sum();
+        return processNanos > 0 ? 100.0 * pluginCpuNanos.sum() / processNanos : 0.0;
+    }
+
+    private void logStageReport() {
+        List<StageUsage> stages = stageAggregator.getStageUsages();
+
+        logger.info(String.format("Most energy-consuming stages (%d in total):", stages.size()));
+        for (StageUsage stage : stages.subList(0, Math.min(STAGES_IN_REPORT, stages.size()))) {
+            logger.info(String.format(
+                "- stage %d.%d: %f Wh, %d tasks, %d records read, %d written, %d shuffle bytes, %f Wh per million records",
+                stage.stageId, stage.stageAttempt, stage.energy_Wh, stage.taskCount,
+                stage.recordsRead, stage.recordsWritten, stage.shuffleBytes, stage.getEnergyPerMillionRecords_Wh()
+            ));
+        }
+    }
+
+    private void logSQLExecutionReport() {
+        List<SQLExecutionUsage> executions = sqlAggregator.getExecutionUsages();
+
+        // Only in applications running SQL queries
+        if (executions.isEmpty()) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        logger.info(String.format(
+            "Most energy-consuming SQL executions (%d kept, %f Wh outside of any execution):",
+            executions.size(), sqlAggregator.getUnattributedEnergy()
+        ));
+        for (SQLExecutionUsage execution : executions.subList(0, Math.min(SQL_EXECUTIONS_IN_REPORT, executions.size()))) {
+            logger.info(String.format(
+                "- execution %d (%s): %f Wh, %d ms%s",
+                execution.executionId, execution.description, execution.energy_Wh, execution.getDurationMillis(now),
+                execution.endMillis == SQLExecutionUsage.RUNNING ? ", still running" : ""
+            ));
+        }
+    }
+
+    private void logThreadCategoryReport() {
+        ThreadCategoryUsage total = threadAggregator.getTotal();
+        long cpuTime = 0L;
+        for (long categoryCpuTime : total.cpuTimes) {
+            cpuTime += categoryCpuTime;
+        }
+
+        // Only when the executors sample their threads
+        if (cpuTime == 0L) {
+            return;
+        }
+
+        logger.info("Energy per thread category:");
+        for (ThreadCategory category : ThreadCategory.values()) {
+            logger.info(String.format(
+                "- %s: %f Wh, %.1f%% of the CPU time",
+                category.name().toLowerCase(), total.getEnergy_Wh(category), 100.0 * total.getCpuTime(category) / cpuTime
+            ));
+        }
+    }
+
+    void logSummaryIfDue() {
+        long now = System.currentTimeMillis();
+        long next = nextLogMillis.get();
+
+        // Only the thread winning the race logs, the others go on without waiting
+        if (now >= next && nextLogMillis.compareAndSet(next, now + logIntervalMillis)) {
+            logger.info(String.format(
+                "Total energy: %f Wh (%d messages from %d executors so far, %d lost, %d duplicates), plugin overhead: %.3f%%",
+                aggregator.getTotalEnergy(), aggregator.getMessageCount(), aggregator.getExecutorCount(),
+                counterTracker.getGapCount(), counterTracker.getDuplicateCount(), getOverheadPercent()
+            ));
+            logMostImbalancedExecutor();
+        }
+    }
+
+    private void logMostImbalancedExecutor() {
+        Map.Entry<String, CoreUsageSummary> mostImbalanced = null;
+
+        for (Map.Entry<String, CoreUsageSummary> entry : coreUsages.entrySet()) {
+            if (mostImbalanced == null || entry.getValue().imbalance > mostImbalanced.getValue().imbalance) {
+                mostImbalanced = entry;
+            }
+        }
+
+        if (mostImbalanced != null) {
+            logger.info(String.format(
+                "Most imbalanced host: executor %s, %s", mostImbalanced.getKey(), mostImbalanced.getValue()
+            ));
+        }
+    }
 
     // Interface implementation
 
     @Override
     public Map<String, String> init(SparkContext sc, PluginContext pluginContext) {
-        totalEnergy = sc.doubleAccumulator("totalEnergy");
-        totalEnergyGauge = new DefaultSettableGauge<Double>(0.0);
-
         Map<String, String> extraConf = new HashMap<String, String>();
         for (Tuple2<String, String> confItem : sc.getConf().getAllWithPrefix(CCSPARK_CONF_PREFIX)) {
             extraConf.put(confItem._1(), confItem._2());
@@ -58,11 +352,40 @@ public class CCSparkDriverPlugin implements DriverPlugin {
             logger.info(String.format("- %s = %s", entry.getKey(), entry.getValue()));
         }
 
+        if (extraConf.containsKey(LOG_INTERVAL_KEY)) {
+            logIntervalMillis = Long.valueOf(extraConf.get(LOG_INTERVAL_KEY));
+        }
+        if (extraConf.containsKey(HISTORY_MAX_BYTES_KEY)) {
+            history = new UsageHistory(Long.valueOf(extraConf.get(HISTORY_MAX_BYTES_KEY)));
+        }
+        logger.info(String.format("Keeping the usage history of at most %d executors", history.getMaxExecutors()));
+        openJournal(extraConf);
+
+        if (extraConf.containsKey(MAX_STAGES_KEY)) {
+            stageAggregator = new StageEnergyAggregator(Integer.valueOf(extraConf.get(MAX_STAGES_KEY)));
+        }
+        sc.addSparkListener(new StageListener(stageAggregator));
+
+        if (extraConf.containsKey(SQL_MAX_EXECUTIONS_KEY)) {
+            sqlAggregator = new SQLExecutionEnergyAggregator(Integer.valueOf(extraConf.get(SQL_MAX_EXECUTIONS_KEY)));
+        }
+        if (SQLExecutionListener.isSQLAvailable()) {
+            sc.addSparkListener(new SQLExecutionListener(sqlAggregator));
+            logger.info("Accounting for energy per SQL execution");
+        }
+
+        if (extraConf.containsKey(QUEUE_CAPACITY_KEY)) {
+            queue = new BoundedMPSCQueue<ExecutorUsageMetrics>(Integer.valueOf(extraConf.get(QUEUE_CAPACITY_KEY)));
+        }
+        logger.info(String.format("Queueing at most %d readings for aggregation", queue.getCapacity()));
+        startAggregation();
+
         return extraConf;
     }
     
     @Override
     public Object receive(Object message) {
+        // Batches (ExecutorUsageMetricsBatch) are merged readings, accounted for like single ones
         if (message instanceof ExecutorUsageMetrics) {
             ExecutorUsageMetrics usageMetrics = (ExecutorUsageMetrics)message;
 
@@ -70,9 +393,11 @@ public class CCSparkDriverPlugin implements DriverPlugin {
                 logger.debug(String.format("Received estimate %s", usageMetrics));
             }
 
-            totalEnergy.add(usageMetrics.energy_Wh);
-            totalEnergyGauge.setValue(totalEnergy.value());
-            logger.info(String.format("Total energy: %f Wh", totalEnergy.value()));
+            // Dropped when the queue is full. With cumulative counters, the next reading of the executor makes up
+            // for its total energy, but not for its breakdown (see CumulativeCounterTracker.getRecoveredEnergy)
+            if (!queue.offer(usageMetrics) && logger.isDebugEnabled()) {
+                logger.debug(String.format("Queue full, dropping %s", usageMetrics));
+            }
         }
         else {
             logger.warn(String.format("Unexpected message: %s", message));
@@ -83,11 +408,29 @@ public class CCSparkDriverPlugin implements DriverPlugin {
 
     @Override
     public void registerMetrics(String appId, PluginContext pluginContext) {
-        pluginContext.metricRegistry().register(METRIC_PREFIX, totalEnergyGauge);
+        // Computed when read, so that receiving metrics never touches the gauge
+        pluginContext.metricRegistry().register(METRIC_PREFIX, (Gauge<Double>)() -> aggregator.getTotalEnergy());
+        pluginContext.metricRegistry().register(OVERHEAD_METRIC, (Gauge<Double>)() -> getOverheadPercent());
+        pluginContext.metricRegistry().register(MEMORY_METRIC, (Gauge<Double>)() -> getMemoryEnergy());
+        pluginContext.metricRegistry().register(INGESTION_METRIC_PREFIX + "queueDepth", (Gauge<Integer>)() -> queue.size());
+        pluginContext.metricRegistry().register(INGESTION_METRIC_PREFIX + "dropped", (Gauge<Long>)() -> queue.getDroppedCount());
+        pluginContext.metricRegistry().register(INGESTION_METRIC_PREFIX + "recovered_Wh", (Gauge<Double>)() -> counterTracker.getRecoveredEnergy());
+        if (journal != null) {
+            pluginContext.metricRegistry().register(JOURNAL_METRIC_PREFIX + "written", (Gauge<Long>)() -> journal.getWrittenCount());
+            pluginContext.metricRegistry().register(JOURNAL_METRIC_PREFIX + "dropped", (Gauge<Long>)() -> journal.getDroppedCount());
+        }
     }
 
     @Override
     public void shutdown() {
-        logger.info("Shutting down plugin");
+        stopAggregation();
+        logger.info(String.format(
+            "Shutting down plugin, total energy: %f Wh (memory: %f Wh, %d readings dropped, %f Wh recovered without breakdown), plugin overhead: %.3f%%",
+            aggregator.getTotalEnergy(), getMemoryEnergy(), queue.getDroppedCount(), counterTracker.getRecoveredEnergy(), getOverheadPercent()
+        ));
+        logStageReport();
+        logThreadCategoryReport();
+        logSQLExecutionReport();
+        closeJournal();
     }
 }
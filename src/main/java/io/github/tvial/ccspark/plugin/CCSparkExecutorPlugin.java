@@ -16,27 +16,90 @@
 
 package io.github.tvial.ccspark.plugin;
 
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.Map;
 import java.util.Optional;
-import java.util.Timer;
 
+import org.apache.spark.SparkEnv;
+import org.apache.spark.TaskContext;
 import org.apache.spark.TaskFailedReason;
 import org.apache.spark.api.plugin.ExecutorPlugin;
 import org.apache.spark.api.plugin.PluginContext;
+import org.apache.spark.executor.TaskMetrics;
+import org.apache.spark.util.Utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+
+import io.github.tvial.ccspark.monitoring.AdaptiveSamplingScheduler;
+import io.github.tvial.ccspark.monitoring.BatchingUsageMetricsSink;
 import io.github.tvial.ccspark.monitoring.CPUInfo;
+import io.github.tvial.ccspark.monitoring.EnergyModel;
+import io.github.tvial.ccspark.monitoring.FrequencyScaledEnergyModel;
+import io.github.tvial.ccspark.monitoring.GaugeUsageMetricsSink;
+import io.github.tvial.ccspark.monitoring.MonitorOverhead;
+import io.github.tvial.ccspark.monitoring.TDPEnergyModel;
+import io.github.tvial.ccspark.monitoring.TDPMatch;
+import io.github.tvial.ccspark.monitoring.TDPSource;
+import io.github.tvial.ccspark.monitoring.TaskEnergyTracker;
 import io.github.tvial.ccspark.monitoring.UsageMetricsSink;
 import io.github.tvial.ccspark.monitoring.UsageMonitor;
+import io.github.tvial.ccspark.sampling.CPUFrequencySampleProvider;
+import io.github.tvial.ccspark.sampling.CgroupSampleProvider;
+import io.github.tvial.ccspark.sampling.DescendantProcessSampleProvider;
+import io.github.tvial.ccspark.sampling.DirectProcFileSystemSampleProvider;
+import io.github.tvial.ccspark.sampling.HostSharedSampleProvider;
+import io.github.tvial.ccspark.sampling.MemorySampleProvider;
 import io.github.tvial.ccspark.sampling.ProcFileSystemSampleProvider;
+import io.github.tvial.ccspark.sampling.RAPLSampleProvider;
+import io.github.tvial.ccspark.sampling.RecordingSampleProvider;
 import io.github.tvial.ccspark.sampling.SampleProvider;
+import io.github.tvial.ccspark.sampling.ThreadCategorySampleProvider;
 
 
 public class CCSparkExecutorPlugin implements ExecutorPlugin {
     final Logger logger = LoggerFactory.getLogger(CCSparkExecutorPlugin.class);
 
     final static String CPU_TDP_KEY = "cpu.tdp";
+    final static String CPU_TDP_DATABASE_KEY = "cpu.tdpDatabase";
+    final static String CPU_TDP_MATCH_THRESHOLD_KEY = "cpu.tdpMatchThreshold";
+    final static String SINK_FLUSH_INTERVAL_KEY = "sink.flushInterval";
+    final static String SINK_BATCH_SIZE_KEY = "sink.batchSize";
+    final static String SINK_ONLY_ON_CHANGE_KEY = "sink.onlyOnChange";
+    final static String SAMPLING_PARSER_KEY = "sampling.parser";
+    final static String SAMPLING_PER_CORE_KEY = "sampling.perCore";
+    final static String SAMPLING_THREADS_KEY = "sampling.threads";
+    final static String SAMPLING_DESCENDANTS_KEY = "sampling.descendants";
+    final static String SAMPLING_MEMORY_KEY = "sampling.memory";
+    final static String SAMPLING_RECORD_PATH_KEY = "sampling.recordPath";
+    final static String SAMPLING_CPU_PATH_KEY = "sampling.cpuPath";
+    final static String SAMPLING_HOST_SHARED_KEY = "sampling.hostShared";
+    final static String SAMPLING_HOST_SHARED_PATH_KEY = "sampling.hostSharedPath";
+    final static String SAMPLING_CGROUP_KEY = "sampling.cgroup";
+    final static String SAMPLING_CGROUP_ROOT_KEY = "sampling.cgroupRoot";
+    final static String CGROUP_METRIC_PREFIX = "cgroup.";
+    final static String MODEL_KEY = "model";
+    final static String MODEL_STATIC_FRACTION_KEY = "model.staticFraction";
+    final static String MODEL_FREQUENCY_EXPONENT_KEY = "model.frequencyExponent";
+    final static String MODEL_BASE_FREQUENCY_KEY = "model.baseFrequencyKHz";
+    final static String FREQUENCY_MODEL = "frequency";
+    final static String MEMORY_POWER_PER_GB_KEY = "memory.powerPerGB";
+    final static String SAMPLING_RAPL_KEY = "sampling.rapl";
+    final static String SAMPLING_POWERCAP_PATH_KEY = "sampling.powercapPath";
+    final static String SAMPLING_MIN_PERIOD_KEY = "sampling.minPeriod";
+    final static String SAMPLING_MAX_PERIOD_KEY = "sampling.maxPeriod";
+    final static String SAMPLING_LOAD_CHANGE_KEY = "sampling.loadChangeThreshold";
+
+    final static String DIRECT_PARSER = "direct";
+
+    final static long DEFAULT_SINK_FLUSH_INTERVAL = 10000L;
+    final static int DEFAULT_SINK_BATCH_SIZE = 10;
+    final static long DEFAULT_SAMPLING_MIN_PERIOD = 1000L;
+    final static long DEFAULT_SAMPLING_MAX_PERIOD = 10000L;
+    final static double DEFAULT_SAMPLING_LOAD_CHANGE = 0.1;
 
     // Same as CodeCarbon (external/hardware.py)
     final static double DEFAULT_CPU_TDP = 85.0;
@@ -44,59 +107,387 @@ public class CCSparkExecutorPlugin implements ExecutorPlugin {
     private UsageMonitor monitor;
     private SampleProvider sampleProvider;
     private UsageMetricsSink sink;
-    private Timer timer;
+    private AdaptiveSamplingScheduler scheduler;
+    private TaskEnergyTracker taskTracker;
+    private TDPSource tdpSource;
+    private HostSharedSampleProvider hostSampler;
+    private CgroupSampleProvider cgroupSampler;
+    // The task end hooks run after Spark has unset the TaskContext, on the thread that ran the task
+    private final ThreadLocal<RunningTask> runningTask = new ThreadLocal<RunningTask>();
+
+    static class RunningTask {
+        final long taskAttemptId;
+        final TaskMetrics metrics;
+
+        RunningTask(long taskAttemptId, TaskMetrics metrics) {
+            this.taskAttemptId = taskAttemptId;
+            this.metrics = metrics;
+        }
+    }
+
+    public CCSparkExecutorPlugin() {
+    }
+
+    // For tests, without sampling
+    CCSparkExecutorPlugin(TaskEnergyTracker taskTracker, AdaptiveSamplingScheduler scheduler) {
+        this.taskTracker = taskTracker;
+        this.scheduler = scheduler;
+    }
 
     double getCPUTDP(Map<String, String> extraConf) {
         if (extraConf.containsKey(CPU_TDP_KEY)) {
             double tdp = Double.valueOf(extraConf.get(CPU_TDP_KEY));
             logger.info(String.format("Using configured TDP of %f", tdp));
+            tdpSource = TDPSource.CONFIGURED;
             return tdp;
         }
 
-        Optional<Double> tdp = new CPUInfo().getTDP();
+        // Looked up once per host when the sampling is shared
+        if (hostSampler != null) {
+            Optional<HostSharedSampleProvider.SharedTDP> shared = hostSampler.getSharedTDP();
+            if (shared.isPresent() && shared.get().source >= 0L && shared.get().source < TDPSource.values().length) {
+                logger.info(String.format("Using TDP of %f, shared by the other executors of the host", shared.get().tdp));
+                tdpSource = TDPSource.values()[(int)shared.get().source];
+                return shared.get().tdp;
+            }
+        }
 
-        if (!tdp.isPresent()) {
+        double tdp = lookUpCPUTDP(extraConf);
+        if (hostSampler != null && hostSampler.isLeader()) {
+            hostSampler.publishTDP(tdp, tdpSource.ordinal());
+        }
+        return tdp;
+    }
+
+    private double lookUpCPUTDP(Map<String, String> extraConf) {
+        CPUInfo cpuInfo = extraConf.containsKey(CPU_TDP_MATCH_THRESHOLD_KEY)
+            ? new CPUInfo("/proc/cpuinfo", extraConf.get(CPU_TDP_DATABASE_KEY), Double.valueOf(extraConf.get(CPU_TDP_MATCH_THRESHOLD_KEY)))
+            : new CPUInfo("/proc/cpuinfo", extraConf.get(CPU_TDP_DATABASE_KEY));
+        Optional<TDPMatch> match = cpuInfo.getTDPMatch();
+
+        if (!match.isPresent()) {
             logger.warn(String.format("Could not determine TDP from CPU database. Applying default TDP of %f", DEFAULT_CPU_TDP));
+            tdpSource = TDPSource.DEFAULT;
             return DEFAULT_CPU_TDP;
         }
         else {
-            logger.info(String.format("Using discovered TDP of %f", tdp.get()));
-            return tdp.get();
+            logger.info(String.format(
+                "Using discovered TDP of %f, from CPU model %s (match score %.2f)",
+                match.get().tdp, match.get().cpuModel, match.get().score
+            ));
+            tdpSource = TDPSource.DISCOVERED;
+            return match.get().tdp;
+        }
+    }
+
+    TDPSource getTDPSource() {
+        return tdpSource;
+    }
+
+    double getMemoryPowerPerGB(Map<String, String> extraConf) {
+        return extraConf.containsKey(MEMORY_POWER_PER_GB_KEY)
+            ? Double.valueOf(extraConf.get(MEMORY_POWER_PER_GB_KEY))
+            : UsageMonitor.DEFAULT_MEMORY_POWER_PER_GB;
+    }
+
+    EnergyModel getEnergyModel(Map<String, String> extraConf, double tdp) {
+        if (!FREQUENCY_MODEL.equals(extraConf.get(MODEL_KEY))) {
+            return new TDPEnergyModel(tdp);
+        }
+
+        double staticFraction = extraConf.containsKey(MODEL_STATIC_FRACTION_KEY)
+            ? Double.valueOf(extraConf.get(MODEL_STATIC_FRACTION_KEY))
+            : FrequencyScaledEnergyModel.DEFAULT_STATIC_FRACTION;
+        double exponent = extraConf.containsKey(MODEL_FREQUENCY_EXPONENT_KEY)
+            ? Double.valueOf(extraConf.get(MODEL_FREQUENCY_EXPONENT_KEY))
+            : FrequencyScaledEnergyModel.DEFAULT_EXPONENT;
+        logger.info(String.format("Scaling the dynamic power with the CPU frequency (static fraction %f, exponent %f)", staticFraction, exponent));
+        return new FrequencyScaledEnergyModel(tdp, staticFraction, exponent);
+    }
+
+    // One recording per executor, in the given directory of the executor host
+    // Executor IDs restart at 1 in every application, hence the application ID in the name
+    SampleProvider recordSamples(SampleProvider provider, String appId, String executorId, Map<String, String> extraConf) {
+        if (!extraConf.containsKey(SAMPLING_RECORD_PATH_KEY)) {
+            return provider;
+        }
+
+        String path = Paths.get(extraConf.get(SAMPLING_RECORD_PATH_KEY), String.format("samples-%s-%s.ccs", appId, executorId)).toString();
+        try {
+            SampleProvider recording = new RecordingSampleProvider(provider, path);
+            logger.info(String.format("Recording samples to %s", path));
+            return recording;
+        }
+        catch (IOException e) {
+            logger.warn(String.format("Cannot record samples to %s, reason: %s", path, e.getMessage()));
+            return provider;
+        }
+    }
+
+    SampleProvider getSampleProvider(Map<String, String> extraConf) {
+        SampleProvider provider = getProcSampleProvider(extraConf);
+
+        if (Boolean.valueOf(extraConf.get(SAMPLING_DESCENDANTS_KEY))) {
+            logger.info("Sampling CPU time of live descendant processes");
+            provider = new DescendantProcessSampleProvider(provider);
+        }
+
+        if (Boolean.valueOf(extraConf.get(SAMPLING_THREADS_KEY))) {
+            logger.info("Sampling CPU time per thread category");
+            provider = new ThreadCategorySampleProvider(provider);
+        }
+
+        if (Boolean.valueOf(extraConf.get(SAMPLING_MEMORY_KEY))) {
+            logger.info("Sampling memory footprint");
+            provider = new MemorySampleProvider(provider);
+        }
+
+        if (Boolean.valueOf(extraConf.get(SAMPLING_CGROUP_KEY))) {
+            provider = CgroupSampleProvider.withFallback(
+                provider, "/proc/self/cgroup", extraConf.getOrDefault(SAMPLING_CGROUP_ROOT_KEY, "/sys/fs/cgroup")
+            );
+            if (provider instanceof CgroupSampleProvider) {
+                cgroupSampler = (CgroupSampleProvider)provider;
+            }
+        }
+
+        if (FREQUENCY_MODEL.equals(extraConf.get(MODEL_KEY))) {
+            provider = CPUFrequencySampleProvider.withFallback(
+                provider, extraConf.getOrDefault(SAMPLING_CPU_PATH_KEY, "/sys/devices/system/cpu"),
+                Long.valueOf(extraConf.getOrDefault(MODEL_BASE_FREQUENCY_KEY, "0"))
+            );
+        }
+
+        // The energy measured for the whole host cannot be split according to a CPU quota
+        if (cgroupSampler != null && cgroupSampler.hasQuota()) {
+            logger.info("Not using RAPL under a CPU quota");
+        }
+        else if (!"false".equals(extraConf.get(SAMPLING_RAPL_KEY))) {
+            provider = RAPLSampleProvider.withFallback(
+                provider, extraConf.getOrDefault(SAMPLING_POWERCAP_PATH_KEY, "/sys/class/powercap")
+            );
+        }
+
+        return provider;
+    }
+
+    // The first Spark local directory, as resolved by Spark itself (LOCAL_DIRS under YARN, then
+    // SPARK_LOCAL_DIRS, then spark.local.dir). Unlike java.io.tmpdir, which YARN sets per container, it is
+    // common to the executors of the application on the host
+    static String getLocalDir() {
+        SparkEnv env = SparkEnv.get();
+        if (env != null) {
+            String[] dirs = Utils.getConfiguredLocalDirs(env.conf());
+            if (dirs.length > 0) {
+                return dirs[0];
+            }
         }
+        return System.getProperty("java.io.tmpdir");
+    }
+
+    SampleProvider getProcSampleProvider(Map<String, String> extraConf) {
+        if (Boolean.valueOf(extraConf.get(SAMPLING_HOST_SHARED_KEY))) {
+            String path = extraConf.getOrDefault(SAMPLING_HOST_SHARED_PATH_KEY, getLocalDir());
+            try {
+                hostSampler = new HostSharedSampleProvider(path);
+                logger.info(String.format(
+                    "Sharing host counters in %s, %s", path, hostSampler.isLeader() ? "as the sampler" : "as a reader"
+                ));
+                return hostSampler;
+            }
+            catch (IOException e) {
+                logger.warn(String.format("Cannot share host counters in %s, reason: %s", path, e.getMessage()));
+            }
+        }
+
+        if (Boolean.valueOf(extraConf.get(SAMPLING_PER_CORE_KEY))) {
+            logger.info("Using direct /proc parser, with per-core sampling");
+            return new DirectProcFileSystemSampleProvider(true);
+        }
+
+        if (DIRECT_PARSER.equals(extraConf.get(SAMPLING_PARSER_KEY))) {
+            logger.info("Using direct /proc parser");
+            return new DirectProcFileSystemSampleProvider();
+        }
+
+        return new ProcFileSystemSampleProvider();
+    }
+
+    UsageMetricsSink getSink(PluginContext context, Map<String, String> extraConf) {
+        long flushInterval = extraConf.containsKey(SINK_FLUSH_INTERVAL_KEY)
+            ? Long.valueOf(extraConf.get(SINK_FLUSH_INTERVAL_KEY))
+            : DEFAULT_SINK_FLUSH_INTERVAL;
+        int batchSize = extraConf.containsKey(SINK_BATCH_SIZE_KEY)
+            ? Integer.valueOf(extraConf.get(SINK_BATCH_SIZE_KEY))
+            : DEFAULT_SINK_BATCH_SIZE;
+
+        boolean onlyOnChange = Boolean.valueOf(extraConf.get(SINK_ONLY_ON_CHANGE_KEY));
+
+        logger.info(String.format(
+            "Sending metrics to driver every %d ms or %d readings%s", flushInterval, batchSize, onlyOnChange ? ", when changed" : ""
+        ));
+        GaugeUsageMetricsSink sink = new GaugeUsageMetricsSink(
+            new BatchingUsageMetricsSink(new SparkDriverUsageMetricsSink(context), flushInterval, batchSize, onlyOnChange)
+        );
+        sink.registerMetrics(context.metricRegistry());
+        return sink;
+    }
+
+    void registerTDPMetrics(MetricRegistry registry, double tdp) {
+        // Boxed once, as they never change
+        Double value = tdp;
+        String source = tdpSource.name().toLowerCase();
+
+        registry.register(CPU_TDP_KEY, (Gauge<Double>)() -> value);
+        registry.register(CPU_TDP_KEY + "Source", (Gauge<String>)() -> source);
+    }
+
+    // Under a CPU quota, the load is relative to the quota, so it is the power of the quota's share of the host
+    double getExecutorTDP(double tdp) {
+        if (cgroupSampler == null || !cgroupSampler.hasQuota()) {
+            return tdp;
+        }
+
+        double executorTDP = tdp * cgroupSampler.getHostShare();
+        logger.info(String.format(
+            "Scaling TDP to %f for %.2f cores out of %d", executorTDP, cgroupSampler.getQuotaCores(), cgroupSampler.getHostCores()
+        ));
+        return executorTDP;
+    }
+
+    void registerCgroupMetrics(MetricRegistry registry) {
+        if (cgroupSampler == null) {
+            return;
+        }
+
+        Double quotaCores = cgroupSampler.getQuotaCores();
+        registry.register(CGROUP_METRIC_PREFIX + "quotaCores", (Gauge<Double>)() -> quotaCores);
+        registry.register(CGROUP_METRIC_PREFIX + "usage_ms", (Gauge<Long>)() -> toMillis(cgroupSampler.getUsageMicros()));
+        registry.register(CGROUP_METRIC_PREFIX + "throttledPeriods", (Gauge<Long>)() -> cgroupSampler.getThrottledPeriods());
+        registry.register(CGROUP_METRIC_PREFIX + "throttled_ms", (Gauge<Long>)() -> toMillis(cgroupSampler.getThrottledMicros()));
+    }
+
+    // Keeps the unknown value as is, as dividing it would report 0
+    static long toMillis(long micros) {
+        return micros < 0L ? micros : micros / 1000;
+    }
+
+    AdaptiveSamplingScheduler getScheduler(UsageMonitor monitor, Map<String, String> extraConf) {
+        long minPeriod = extraConf.containsKey(SAMPLING_MIN_PERIOD_KEY)
+            ? Long.valueOf(extraConf.get(SAMPLING_MIN_PERIOD_KEY))
+            : DEFAULT_SAMPLING_MIN_PERIOD;
+        long maxPeriod = extraConf.containsKey(SAMPLING_MAX_PERIOD_KEY)
+            ? Long.valueOf(extraConf.get(SAMPLING_MAX_PERIOD_KEY))
+            : DEFAULT_SAMPLING_MAX_PERIOD;
+        double loadChange = extraConf.containsKey(SAMPLING_LOAD_CHANGE_KEY)
+            ? Double.valueOf(extraConf.get(SAMPLING_LOAD_CHANGE_KEY))
+            : DEFAULT_SAMPLING_LOAD_CHANGE;
+
+        logger.info(String.format("Sampling every %d to %d ms", minPeriod, maxPeriod));
+        return new AdaptiveSamplingScheduler(monitor, minPeriod, maxPeriod, loadChange);
     }
 
     // Interface implementation
 
     @Override
     public void init(PluginContext context, Map<String, String> extraConf) {
-        sampleProvider = new ProcFileSystemSampleProvider();
-        sink = new SparkDriverUsageMetricsSink(context);
-        monitor = new UsageMonitor(sampleProvider, sink, getCPUTDP(extraConf));
+        sampleProvider = recordSamples(
+            getSampleProvider(extraConf), context.conf().get("spark.app.id", "unknown"), context.executorID(), extraConf
+        );
+        sink = getSink(context, extraConf);
+        taskTracker = new TaskEnergyTracker();
+        MonitorOverhead overhead = new MonitorOverhead(context.metricRegistry(), sampleProvider);
+        // The gauge shows the TDP the model uses
+        double tdp = getExecutorTDP(getCPUTDP(extraConf));
+        registerTDPMetrics(context.metricRegistry(), tdp);
+        registerCgroupMetrics(context.metricRegistry());
+        monitor = new UsageMonitor(sampleProvider, sink, getEnergyModel(extraConf, tdp), getMemoryPowerPerGB(extraConf), taskTracker, overhead);
         monitor.initialize();
 
-        timer = new Timer("Usage monitor", true);
-        logger.info("Starting timer");
-        timer.schedule(monitor, 0L, 1000L);
+        scheduler = getScheduler(monitor, extraConf);
+        logger.info("Starting scheduler");
+        scheduler.start();
+    }
+
+    void taskStarted(long taskAttemptId, int stageId, int stageAttempt, TaskMetrics metrics) {
+        taskTracker.taskStarted(taskAttemptId, stageId, stageAttempt, System.currentTimeMillis());
+        runningTask.set(new RunningTask(taskAttemptId, metrics));
+    }
+
+    void recordTaskEnd() {
+        RunningTask task = runningTask.get();
+
+        if (task != null) {
+            // Task threads are pooled
+            runningTask.remove();
+            TaskMetrics metrics = task.metrics;
+            taskTracker.taskEnded(
+                task.taskAttemptId,
+                System.currentTimeMillis(),
+                metrics.inputMetrics().recordsRead() + metrics.shuffleReadMetrics().recordsRead(),
+                metrics.outputMetrics().recordsWritten() + metrics.shuffleWriteMetrics().recordsWritten(),
+                metrics.shuffleReadMetrics().totalBytesRead() + metrics.shuffleWriteMetrics().bytesWritten()
+            );
+        }
     }
 
     @Override
     public void onTaskStart() {
+        TaskContext task = TaskContext.get();
+
+        if (task != null) {
+            taskStarted(task.taskAttemptId(), task.stageId(), task.stageAttemptNumber(), task.taskMetrics());
+        }
+        scheduler.notifyActivity();
     }
 
     @Override
     public void onTaskSucceeded() {
+        recordTaskEnd();
+        scheduler.notifyActivity();
     }
 
     @Override
     public void onTaskFailed(TaskFailedReason failureReason) {
+        recordTaskEnd();
+        scheduler.notifyActivity();
     }
 
     @Override
     public void shutdown() {
-        logger.info("Cancelling timer");
-        timer.cancel();
+        logger.info("Stopping scheduler");
+        boolean stopped = false;
+        try {
+            stopped = scheduler.shutdown();
+        }
+        catch (InterruptedException e) {
+            logger.warn("Interrupted while stopping scheduler");
+            Thread.currentThread().interrupt();
+        }
+
+        // One last run, unless a scheduled one still uses the sample provider, which is not thread-safe
+        if (stopped) {
+            monitor.run();
+        }
+        else {
+            logger.warn("Scheduler still running, skipping the last reading");
+        }
 
-        // One last run
-        monitor.run();
+        try {
+            sink.flush();
+        }
+        catch (IOException e) {
+            logger.warn(String.format("Could not flush metrics, reason: %s", e.getMessage()));
+        }
+
+        if (!stopped) {
+            return;
+        }
+        try {
+            sampleProvider.close();
+        }
+        catch (IOException e) {
+            logger.warn(String.format("Could not close sample provider, reason: %s", e.getMessage()));
+        }
     }
 }
@@ -0,0 +1,88 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package io.github.tvial.ccspark.plugin;
+
+import java.util.Properties;
+
+import org.apache.spark.scheduler.SparkListener;
+import org.apache.spark.scheduler.SparkListenerEvent;
+import org.apache.spark.scheduler.SparkListenerJobStart;
+import org.apache.spark.sql.execution.ui.SparkListenerSQLExecutionEnd;
+import org.apache.spark.sql.execution.ui.SparkListenerSQLExecutionStart;
+
+import io.github.tvial.ccspark.aggregation.SQLExecutionEnergyAggregator;
+
+
+// Follows the SQL executions on the listener bus, and the stages of their jobs. Only registered when Spark SQL
+// is on the classpath.
+public class SQLExecutionListener extends SparkListener {
+    final static String START_EVENT_CLASS = "org.apache.spark.sql.execution.ui.SparkListenerSQLExecutionStart";
+    // Local properties set by SQLExecution on the jobs it runs
+    final static String EXECUTION_ID_KEY = "spark.sql.execution.id";
+    final static String EXECUTION_ROOT_ID_KEY = "spark.sql.execution.root.id";
+
+    private SQLExecutionEnergyAggregator aggregator;
+
+    public SQLExecutionListener(SQLExecutionEnergyAggregator aggregator) {
+        this.aggregator = aggregator;
+    }
+
+    static boolean isSQLAvailable() {
+        try {
+            Class.forName(START_EVENT_CLASS, false, SQLExecutionListener.class.getClassLoader());
+            return true;
+        }
+        catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void onJobStart(SparkListenerJobStart jobStart) {
+        Properties properties = jobStart.properties();
+        if (properties == null) {
+            return;
+        }
+        // Nested executions are accounted for in their root, as below
+        String executionId = properties.getProperty(EXECUTION_ROOT_ID_KEY, properties.getProperty(EXECUTION_ID_KEY));
+        if (executionId == null) {
+            return;
+        }
+
+        int[] stageIds = new int[jobStart.stageIds().size()];
+        scala.collection.Iterator<Object> iterator = jobStart.stageIds().iterator();
+        for (int i = 0; iterator.hasNext(); i++) {
+            stageIds[i] = (Integer)iterator.next();
+        }
+        aggregator.jobStarted(Long.parseLong(executionId), stageIds);
+    }
+
+    @Override
+    public void onOtherEvent(SparkListenerEvent event) {
+        if (event instanceof SparkListenerSQLExecutionStart) {
+            SparkListenerSQLExecutionStart start = (SparkListenerSQLExecutionStart)event;
+            // Nested executions (e.g. the query of a CTAS) are accounted for in their root
+            if (start.rootExecutionId().isDefined() && (Long)start.rootExecutionId().get() != start.executionId()) {
+                return;
+            }
+            aggregator.executionStarted(start.executionId(), start.description(), start.time());
+        }
+        else if (event instanceof SparkListenerSQLExecutionEnd) {
+            SparkListenerSQLExecutionEnd end = (SparkListenerSQLExecutionEnd)event;
+            aggregator.executionEnded(end.executionId(), end.time());
+        }
+    }
+}
@@ -26,13 +26,20 @@ import io.github.tvial.ccspark.monitoring.UsageMetricsSink;
 
 public class SparkDriverUsageMetricsSink implements UsageMetricsSink {
     PluginContext context;
+    long lastSequence;
 
     public SparkDriverUsageMetricsSink(PluginContext context) {
         this.context = context;
+        this.lastSequence = 0L;
     }
 
     @Override
     public void send(ExecutorUsageMetrics metrics) throws IOException {
+        metrics.executorId = context.executorID();
+        // Metrics sent again after a failure keep their number
+        if (metrics.sequence == 0L) {
+            metrics.sequence = ++lastSequence;
+        }
         context.send(metrics);
     }
 }
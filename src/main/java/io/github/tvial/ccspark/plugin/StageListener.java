@@ -0,0 +1,46 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.tvial.ccspark.plugin;
+
+import org.apache.spark.scheduler.SparkListener;
+import org.apache.spark.scheduler.SparkListenerStageCompleted;
+import org.apache.spark.scheduler.SparkListenerStageSubmitted;
+import org.apache.spark.scheduler.StageInfo;
+
+import io.github.tvial.ccspark.aggregation.StageEnergyAggregator;
+
+
+// Follows the stages on the listener bus, so that the driver only forgets stages that have ended
+public class StageListener extends SparkListener {
+    private StageEnergyAggregator aggregator;
+
+    public StageListener(StageEnergyAggregator aggregator) {
+        this.aggregator = aggregator;
+    }
+
+    @Override
+    public void onStageSubmitted(SparkListenerStageSubmitted stageSubmitted) {
+        StageInfo info = stageSubmitted.stageInfo();
+        aggregator.stageStarted(info.stageId(), info.attemptNumber());
+    }
+
+    @Override
+    public void onStageCompleted(SparkListenerStageCompleted stageCompleted) {
+        StageInfo info = stageCompleted.stageInfo();
+        aggregator.stageEnded(info.stageId(), info.attemptNumber());
+    }
+}
@@ -0,0 +1,179 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package io.github.tvial.ccspark.sampling;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.github.tvial.ccspark.model.Sample;
+
+
+// Adds the mean current frequency of the cores, from cpufreq, to the samples of another provider. The
+// scaling_cur_freq file of each core is kept open. The base frequency, at which the TDP is rated, is only read
+// once: from base_frequency where the driver exposes it (intel_pstate), or else from the configuration. As a
+// last resort, cpuinfo_max_freq is used, but it is the turbo frequency, which makes the usual frequencies look
+// low.
+public class CPUFrequencySampleProvider implements SampleProvider {
+    final static Logger logger = LoggerFactory.getLogger(CPUFrequencySampleProvider.class);
+
+    final static String DEFAULT_CPU_PATH = "/sys/devices/system/cpu";
+    final static int FREQUENCY_CAPACITY = 32;
+
+    private SampleProvider delegate;
+    private ProcFileReader[] readers;
+    private long baseFrequencyKHz;
+
+    // A base frequency of 0 or less is looked up
+    public CPUFrequencySampleProvider(SampleProvider delegate, String cpuPath, long baseFrequencyKHz) throws IOException {
+        this.delegate = delegate;
+
+        File[] cpus = new File(cpuPath).listFiles((dir, name) -> name.matches("cpu[0-9]+"));
+        if (cpus == null) {
+            throw new IOException(String.format("Cannot list %s", cpuPath));
+        }
+        Arrays.sort(cpus);
+
+        List<ProcFileReader> readers = new ArrayList<ProcFileReader>();
+        try {
+            openReaders(readers, cpus, cpuPath, baseFrequencyKHz);
+        }
+        catch (IOException | RuntimeException e) {
+            // withFallback goes on without this provider, so the files opened so far must not leak
+            for (ProcFileReader reader : readers) {
+                try {
+                    reader.close();
+                }
+                catch (IOException closeError) {
+                    e.addSuppressed(closeError);
+                }
+            }
+            throw e;
+        }
+    }
+
+    // Adds the readers to the list as they are opened, so that they can be closed on failure
+    private void openReaders(List<ProcFileReader> readers, File[] cpus, String cpuPath, long baseFrequencyKHz) throws IOException {
+        long maxFrequencyKHz = 0L;
+        long sysfsBaseFrequencyKHz = 0L;
+        boolean allBaseFrequencies = true;
+        for (File cpu : cpus) {
+            File cpufreq = new File(cpu, "cpufreq");
+            // Offline cores have no cpufreq directory
+            if (!new File(cpufreq, "scaling_cur_freq").exists()) {
+                continue;
+            }
+            readers.add(new ProcFileReader(new File(cpufreq, "scaling_cur_freq").getPath(), FREQUENCY_CAPACITY));
+            maxFrequencyKHz = Math.max(maxFrequencyKHz, readLong(new File(cpufreq, "cpuinfo_max_freq")));
+            if (new File(cpufreq, "base_frequency").exists()) {
+                sysfsBaseFrequencyKHz = Math.max(sysfsBaseFrequencyKHz, readLong(new File(cpufreq, "base_frequency")));
+            }
+            else {
+                allBaseFrequencies = false;
+            }
+        }
+
+        if (readers.isEmpty() || maxFrequencyKHz <= 0L) {
+            throw new IOException(String.format("No cpufreq under %s", cpuPath));
+        }
+        this.readers = readers.toArray(new ProcFileReader[0]);
+
+        if (baseFrequencyKHz > 0L) {
+            this.baseFrequencyKHz = baseFrequencyKHz;
+        }
+        else if (allBaseFrequencies && sysfsBaseFrequencyKHz > 0L) {
+            this.baseFrequencyKHz = sysfsBaseFrequencyKHz;
+        }
+        else {
+            logger.warn(String.format(
+                "No base frequency under %s, using the turbo frequency (%d kHz) as the reference", cpuPath, maxFrequencyKHz
+            ));
+            this.baseFrequencyKHz = maxFrequencyKHz;
+        }
+
+        // Reading once checks that the files are readable
+        readMeanFrequency();
+    }
+
+    public CPUFrequencySampleProvider(SampleProvider delegate) throws IOException {
+        this(delegate, DEFAULT_CPU_PATH, 0L);
+    }
+
+    // Probes cpufreq and falls back on the delegate alone if it is not exposed
+    public static SampleProvider withFallback(SampleProvider delegate, String cpuPath, long baseFrequencyKHz) {
+        try {
+            CPUFrequencySampleProvider provider = new CPUFrequencySampleProvider(delegate, cpuPath, baseFrequencyKHz);
+            logger.info(String.format(
+                "Using cpufreq frequencies (%d cores, base frequency %d kHz)", provider.readers.length, provider.baseFrequencyKHz
+            ));
+            return provider;
+        }
+        catch (IOException | RuntimeException e) {
+            logger.info(String.format("cpufreq is not available, reason: %s", e.getMessage()));
+            return delegate;
+        }
+    }
+
+    private static long readLong(File file) throws IOException {
+        return Long.parseLong(new String(Files.readAllBytes(file.toPath()), StandardCharsets.US_ASCII).trim());
+    }
+
+    private long readMeanFrequency() throws IOException {
+        long total = 0L;
+        for (ProcFileReader reader : readers) {
+            reader.read();
+            total += reader.nextLong();
+        }
+        return total / readers.length;
+    }
+
+    @Override
+    public Sample sample() throws IOException {
+        Sample sample = delegate.sample();
+        sample.cpuFrequencyKHz = readMeanFrequency();
+        sample.baseCpuFrequencyKHz = baseFrequencyKHz;
+        return sample;
+    }
+
+    @Override
+    public void skipHostCPU() {
+        delegate.skipHostCPU();
+    }
+
+    @Override
+    public long getBytesRead() {
+        long bytesRead = delegate.getBytesRead();
+        for (ProcFileReader reader : readers) {
+            bytesRead += reader.getBytesRead();
+        }
+        return bytesRead;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (ProcFileReader reader : readers) {
+            reader.close();
+        }
+        delegate.close();
+    }
+}
@@ -0,0 +1,232 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+
+package io.github.tvial.ccspark.sampling;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.github.tvial.ccspark.model.Sample;
+
+
+// Makes the samples of another provider relative to the CPU quota of the executor's cgroup (v2), as in
+// containers /proc/stat shows the whole host. With a quota, the CPU time of the host is replaced by the CPU
+// time the quota allows since the provider was created, and the CPU time of the process by the usage of the
+// cgroup, so that the load is the share of the quota in use; the wrapped provider then skips /proc/stat.
+// Without a quota, the samples are left as they are. Either way, the CPU usage and throttling of the cgroup
+// are read from cpu.stat, kept open; cpu.max is only read once.
+public class CgroupSampleProvider implements SampleProvider {
+    final static Logger logger = LoggerFactory.getLogger(CgroupSampleProvider.class);
+
+    final static String DEFAULT_PROC_CGROUP_PATH = "/proc/self/cgroup";
+    final static String DEFAULT_CGROUP_ROOT = "/sys/fs/cgroup";
+    final static String DEFAULT_STAT_PATH = "/proc/stat";
+    final static int CPU_STAT_CAPACITY = 512;
+    final static double NO_QUOTA = -1.0;
+    final static long UNKNOWN = -1L;
+    // USER_HZ, the unit of the CPU times in /proc, is 100 on all mainstream architectures
+    final static long CLOCK_TICKS_PER_SECOND = 100L;
+
+    final static byte[] USAGE_PREFIX = "usage_usec".getBytes(StandardCharsets.US_ASCII);
+    final static byte[] NR_THROTTLED_PREFIX = "nr_throttled".getBytes(StandardCharsets.US_ASCII);
+    final static byte[] THROTTLED_PREFIX = "throttled_usec".getBytes(StandardCharsets.US_ASCII);
+
+    private SampleProvider delegate;
+    private String cgroupPath;
+    private ProcFileReader cpuStatReader;
+    private double quotaCores;
+    private int hostCores;
+    private long startNanos;
+    // Cumulative, written by the sampling thread and read by the gauges
+    private volatile long usageMicros = UNKNOWN;
+    private volatile long throttledPeriods = UNKNOWN;
+    private volatile long throttledMicros = UNKNOWN;
+
+    public CgroupSampleProvider(SampleProvider delegate, String procCgroupPath, String cgroupRoot, String statPath) throws IOException {
+        this.delegate = delegate;
+        this.cgroupPath = resolveCgroupPath(procCgroupPath, cgroupRoot);
+        this.quotaCores = parseQuotaCores(readString(Paths.get(cgroupPath, "cpu.max").toString()));
+        this.hostCores = countHostCores(statPath);
+        this.cpuStatReader = new ProcFileReader(Paths.get(cgroupPath, "cpu.stat").toString(), CPU_STAT_CAPACITY);
+        this.startNanos = System.nanoTime();
+
+        // Reading once checks that the file is readable
+        readCpuStat();
+        if (hasQuota()) {
+            delegate.skipHostCPU();
+        }
+    }
+
+    public CgroupSampleProvider(SampleProvider delegate) throws IOException {
+        this(delegate, DEFAULT_PROC_CGROUP_PATH, DEFAULT_CGROUP_ROOT, DEFAULT_STAT_PATH);
+    }
+
+    // Probes the cgroup and falls back on the delegate alone if it is not a cgroup v2 with a CPU controller
+    public static SampleProvider withFallback(SampleProvider delegate, String procCgroupPath, String cgroupRoot) {
+        try {
+            CgroupSampleProvider provider = new CgroupSampleProvider(delegate, procCgroupPath, cgroupRoot, DEFAULT_STAT_PATH);
+            logger.info(String.format(
+                "Using cgroup %s, %s", provider.cgroupPath,
+                provider.hasQuota() ? String.format("quota of %.2f cores out of %d", provider.quotaCores, provider.hostCores) : "no quota"
+            ));
+            return provider;
+        }
+        catch (IOException | RuntimeException e) {
+            logger.info(String.format("cgroup v2 is not available, reason: %s", e.getMessage()));
+            return delegate;
+        }
+    }
+
+    private static String readString(String path) throws IOException {
+        return new String(Files.readAllBytes(Paths.get(path)), StandardCharsets.US_ASCII).trim();
+    }
+
+    // The cgroup v2 entry is the "0::<path>" line. Inside a cgroup namespace the path is "/", and the
+    // cgroup of the container is mounted as the root.
+    static String resolveCgroupPath(String procCgroupPath, String cgroupRoot) throws IOException {
+        for (String line : Files.readAllLines(Paths.get(procCgroupPath), StandardCharsets.US_ASCII)) {
+            if (!line.startsWith("0::")) {
+                continue;
+            }
+
+            Path cgroup = Paths.get(cgroupRoot, line.substring(3));
+            if (Files.exists(cgroup.resolve("cpu.stat"))) {
+                return cgroup.toString();
+            }
+            if (Files.exists(Paths.get(cgroupRoot, "cpu.stat"))) {
+                return cgroupRoot;
+            }
+            throw new IOException(String.format("No cpu.stat for cgroup %s under %s", line.substring(3), cgroupRoot));
+        }
+        throw new IOException(String.format("No cgroup v2 in %s", procCgroupPath));
+    }
+
+    // "<quota> <period>" in microseconds, or "max <period>" without a quota
+    static double parseQuotaCores(String cpuMax) throws IOException {
+        String[] fields = cpuMax.trim().split("\\s+");
+        if (fields.length != 2) {
+            throw new IOException(String.format("Unexpected cpu.max: %s", cpuMax));
+        }
+        if ("max".equals(fields[0])) {
+            return NO_QUOTA;
+        }
+        return (double)Long.parseLong(fields[0]) / Long.parseLong(fields[1]);
+    }
+
+    // One "cpuN" line per online core, after the "cpu" total
+    static int countHostCores(String statPath) throws IOException {
+        List<String> lines = Files.readAllLines(Paths.get(statPath), StandardCharsets.US_ASCII);
+        int cores = 0;
+        for (String line : lines) {
+            if (line.length() > 3 && line.startsWith("cpu") && Character.isDigit(line.charAt(3))) {
+                cores++;
+            }
+        }
+        if (cores == 0) {
+            throw new IOException(String.format("No core in %s", statPath));
+        }
+        return cores;
+    }
+
+    private void readCpuStat() throws IOException {
+        cpuStatReader.read();
+        // Throttling is only reported when the CPU controller is enabled
+        cpuStatReader.seek(0);
+        usageMicros = cpuStatReader.findLine(USAGE_PREFIX) ? cpuStatReader.nextLong() : UNKNOWN;
+        cpuStatReader.seek(0);
+        throttledPeriods = cpuStatReader.findLine(NR_THROTTLED_PREFIX) ? cpuStatReader.nextLong() : UNKNOWN;
+        cpuStatReader.seek(0);
+        throttledMicros = cpuStatReader.findLine(THROTTLED_PREFIX) ? cpuStatReader.nextLong() : UNKNOWN;
+    }
+
+    public boolean hasQuota() {
+        return quotaCores != NO_QUOTA;
+    }
+
+    // Cores the executor may use, the host cores without a quota
+    public double getQuotaCores() {
+        return hasQuota() ? quotaCores : hostCores;
+    }
+
+    public int getHostCores() {
+        return hostCores;
+    }
+
+    // Share of the host the executor is limited to, to scale the power of the host with
+    public double getHostShare() {
+        return Math.min(1.0, getQuotaCores() / hostCores);
+    }
+
+    public long getUsageMicros() {
+        return usageMicros;
+    }
+
+    // Periods in which the cgroup ran out of quota, and the time its threads waited for the next period
+    public long getThrottledPeriods() {
+        return throttledPeriods;
+    }
+
+    public long getThrottledMicros() {
+        return throttledMicros;
+    }
+
+    @Override
+    public Sample sample() throws IOException {
+        return sample(System.nanoTime());
+    }
+
+    Sample sample(long nowNanos) throws IOException {
+        Sample sample = delegate.sample();
+        readCpuStat();
+
+        if (hasQuota()) {
+            long elapsedNanos = Math.max(0L, nowNanos - startNanos);
+            sample.cpu.userTime = Math.round(elapsedNanos * quotaCores * CLOCK_TICKS_PER_SECOND / 1e9);
+            sample.cpu.nicedTime = 0L;
+            sample.cpu.systemTime = 0L;
+
+            // The cgroup counts the children of the executor too
+            if (usageMicros != UNKNOWN) {
+                sample.process.userTime = usageMicros * CLOCK_TICKS_PER_SECOND / 1000000L;
+                sample.process.systemTime = 0L;
+                sample.process.childrenUserTime = 0L;
+                sample.process.childrenSystemTime = 0L;
+                sample.process.descendantTime = 0L;
+            }
+        }
+
+        return sample;
+    }
+
+    @Override
+    public long getBytesRead() {
+        return delegate.getBytesRead() + cpuStatReader.getBytesRead();
+    }
+
+    @Override
+    public void close() throws IOException {
+        cpuStatReader.close();
+        delegate.close();
+    }
+}
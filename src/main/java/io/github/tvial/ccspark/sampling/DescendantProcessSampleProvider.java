@@ -0,0 +1,266 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.tvial.ccspark.sampling;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import io.github.tvial.ccspark.model.ProcessScheduling;
+import io.github.tvial.ccspark.model.Sample;
+
+
+// Adds the CPU time of the live descendants of the executor (PySpark workers, pipe() commands...) to the
+// samples of another provider. Until they are reaped, their time does not show in the children times of
+// the executor.
+//
+// Descendants are found by their parent PIDs. The stat file of each process of the host is only read when
+// it first shows up, and only descendants are read again at each tick, through files kept open.
+//
+// When a descendant is reaped, the executor's children times grow by its whole CPU time, most of which was
+// either counted while it was alive, or left out as it predates the first walk. That part becomes a credit,
+// taken off the next increases of the children times.
+public class DescendantProcessSampleProvider implements SampleProvider {
+    final static String DEFAULT_PROC_PATH = "/proc";
+    final static int STAT_CAPACITY = 1024;
+
+    static class ProcessEntry {
+        long parentPid;
+        // Resolved once: null until then
+        Boolean descendant;
+        ProcFileReader reader;
+        long lastCpuTime;
+        long generation;
+    }
+
+    private SampleProvider delegate;
+    private String procPath;
+    private File procDirectory;
+    private long rootPid;
+
+    private HashMap<String, ProcessEntry> processes;
+    private ProcessScheduling scratch;
+    private long generation;
+    private long lastChildrenTime;
+    private long liveTime;
+    private long credit;
+    private long creditUsed;
+    private long bytesRead;
+
+    public DescendantProcessSampleProvider(SampleProvider delegate, String procPath, long rootPid) {
+        this.delegate = delegate;
+        this.procPath = procPath;
+        this.procDirectory = new File(procPath);
+        this.rootPid = rootPid;
+
+        this.processes = new HashMap<String, ProcessEntry>();
+        this.scratch = new ProcessScheduling(0L, 0L, 0L, 0L);
+        this.generation = 0L;
+        this.lastChildrenTime = 0L;
+        this.liveTime = 0L;
+        this.credit = 0L;
+        this.creditUsed = 0L;
+        this.bytesRead = 0L;
+    }
+
+    public DescendantProcessSampleProvider(SampleProvider delegate) {
+        this(delegate, DEFAULT_PROC_PATH, Long.valueOf(ManagementFactory.getRuntimeMXBean().getName().split("@")[0]));
+    }
+
+    @Override
+    public Sample sample() throws IOException {
+        Sample sample = delegate.sample();
+        boolean firstWalk = generation == 0L;
+
+        walk(firstWalk);
+
+        long childrenTime = sample.process.childrenUserTime + sample.process.childrenSystemTime;
+        if (!firstWalk) {
+            long used = Math.min(credit, Math.max(0L, childrenTime - lastChildrenTime));
+            credit -= used;
+            creditUsed += used;
+        }
+        lastChildrenTime = childrenTime;
+
+        sample.process.descendantTime = liveTime - creditUsed;
+        return sample;
+    }
+
+    private static boolean isPid(String name) {
+        for (int i = 0; i < name.length(); i++) {
+            if (!Character.isDigit(name.charAt(i))) {
+                return false;
+            }
+        }
+        return !name.isEmpty();
+    }
+
+    // Fields after the command name, which may contain spaces or parentheses
+    private String[] readStatFields(String pid) throws IOException {
+        byte[] content = Files.readAllBytes(Paths.get(procPath, pid, "stat"));
+        bytesRead += content.length;
+
+        String stat = new String(content, StandardCharsets.US_ASCII);
+        int commandEnd = stat.lastIndexOf(')');
+        if (commandEnd < 0) {
+            throw new IOException("Expected a process command name");
+        }
+        return stat.substring(commandEnd + 2).trim().split(" ");
+    }
+
+    private ProcessEntry newEntry(String pid) {
+        ProcessEntry entry = new ProcessEntry();
+
+        try {
+            entry.parentPid = Long.parseLong(readStatFields(pid)[1]);
+        }
+        catch (IOException | RuntimeException e) {
+            // Gone already
+            return null;
+        }
+
+        entry.descendant = null;
+        entry.reader = null;
+        entry.lastCpuTime = 0L;
+        return entry;
+    }
+
+    private boolean isDescendant(ProcessEntry entry, int depth) {
+        if (entry.descendant == null) {
+            if (entry.parentPid == rootPid) {
+                entry.descendant = true;
+            }
+            else {
+                // The parent was listed too, unless it has just exited
+                ProcessEntry parent = depth < processes.size() ? processes.get(String.valueOf(entry.parentPid)) : null;
+                entry.descendant = parent != null && isDescendant(parent, depth + 1);
+            }
+        }
+        return entry.descendant;
+    }
+
+    private void walk(boolean firstWalk) throws IOException {
+        String[] pids = procDirectory.list();
+        if (pids == null) {
+            throw new IOException(String.format("Cannot list processes in %s", procPath));
+        }
+
+        generation++;
+        for (String pid : pids) {
+            if (!isPid(pid)) {
+                continue;
+            }
+
+            ProcessEntry entry = processes.get(pid);
+            if (entry == null) {
+                entry = newEntry(pid);
+                if (entry == null) {
+                    continue;
+                }
+                processes.put(pid, entry);
+            }
+            entry.generation = generation;
+        }
+
+        for (Map.Entry<String, ProcessEntry> process : processes.entrySet()) {
+            ProcessEntry entry = process.getValue();
+            if (entry.generation != generation || !isDescendant(entry, 0)) {
+                continue;
+            }
+
+            if (entry.reader == null) {
+                entry.reader = new ProcFileReader(procPath + File.separator + process.getKey() + File.separator + "stat", STAT_CAPACITY);
+            }
+
+            long cpuTime;
+            try {
+                long before = entry.reader.getBytesRead();
+                entry.reader.read();
+                bytesRead += entry.reader.getBytesRead() - before;
+                DirectProcFileSystemSampleProvider.parseProcessScheduling(entry.reader, scratch);
+                cpuTime = scratch.userTime + scratch.systemTime;
+            }
+            catch (IOException e) {
+                // Exited since listed: removed at the next walk
+                continue;
+            }
+
+            // Descendants found on the first walk only count from then on, later ones from their start
+            if (!firstWalk) {
+                liveTime += Math.max(0L, cpuTime - entry.lastCpuTime);
+            }
+            entry.lastCpuTime = cpuTime;
+        }
+
+        Iterator<Map.Entry<String, ProcessEntry>> iterator = processes.entrySet().iterator();
+        while (iterator.hasNext()) {
+            ProcessEntry entry = iterator.next().getValue();
+            if (entry.generation != generation) {
+                credit += entry.lastCpuTime;
+                closeQuietly(entry.reader);
+                iterator.remove();
+            }
+        }
+    }
+
+    private static void closeQuietly(ProcFileReader reader) {
+        if (reader == null) {
+            return;
+        }
+        try {
+            reader.close();
+        }
+        catch (IOException e) {
+            // Nothing to do
+        }
+    }
+
+    public int getDescendantCount() {
+        int count = 0;
+        for (ProcessEntry entry : processes.values()) {
+            if (Boolean.TRUE.equals(entry.descendant)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public void skipHostCPU() {
+        delegate.skipHostCPU();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return delegate.getBytesRead() + bytesRead;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (ProcessEntry entry : processes.values()) {
+            closeQuietly(entry.reader);
+        }
+        processes.clear();
+        delegate.close();
+    }
+}
@@ -0,0 +1,159 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.tvial.ccspark.sampling;
+
+import java.io.IOException;
+
+import io.github.tvial.ccspark.model.CPUScheduling;
+import io.github.tvial.ccspark.model.CoreSchedulings;
+import io.github.tvial.ccspark.model.ProcessScheduling;
+import io.github.tvial.ccspark.model.Sample;
+
+
+// Same readings as the parent class, but without garbage in steady state: the files are read into
+// reused buffers, parsed in place, and the samples alternate between two reused holders. So a sample
+// is only valid until the next but one call, which is all UsageMonitor needs.
+// In per-core mode, the whole of /proc/stat is read, and the cores are kept in flat arrays.
+public class DirectProcFileSystemSampleProvider extends ProcFileSystemSampleProvider {
+    final static byte[] CPU_PREFIX = "cpu".getBytes();
+
+    // The aggregate line comes first, and fits in a few hundred bytes
+    final static int CPU_HEAD_CAPACITY = 512;
+    final static int CPU_FULL_CAPACITY = 8192;
+    final static int PROCESS_CAPACITY = 1024;
+    final static int CORES_CAPACITY = 64;
+
+    private boolean perCore;
+
+    private ProcFileReader cpuReader;
+    private ProcFileReader processReader;
+    private Sample[] holders;
+    private int nextHolder;
+
+    public DirectProcFileSystemSampleProvider(String cpuPath, String processPath, boolean perCore) {
+        super(cpuPath, processPath);
+        initialize(perCore);
+    }
+
+    public DirectProcFileSystemSampleProvider(String cpuPath, String processPath) {
+        this(cpuPath, processPath, false);
+    }
+
+    public DirectProcFileSystemSampleProvider(boolean perCore) {
+        super();
+        initialize(perCore);
+    }
+
+    public DirectProcFileSystemSampleProvider() {
+        this(false);
+    }
+
+    private void initialize(boolean perCore) {
+        this.perCore = perCore;
+
+        cpuReader = new ProcFileReader(cpuPath, perCore ? CPU_FULL_CAPACITY : CPU_HEAD_CAPACITY);
+        processReader = new ProcFileReader(processPath, PROCESS_CAPACITY);
+        holders = new Sample[] { newHolder(), newHolder() };
+        nextHolder = 0;
+    }
+
+    private Sample newHolder() {
+        Sample holder = new Sample(0L, new CPUScheduling(0L, 0L, 0L), new ProcessScheduling(0L, 0L, 0L, 0L));
+        if (perCore) {
+            holder.cores = new CoreSchedulings(CORES_CAPACITY);
+        }
+        return holder;
+    }
+
+    @Override
+    public Sample sample() throws IOException {
+        Sample sample = holders[nextHolder];
+        nextHolder = 1 - nextHolder;
+
+        if (perCore) {
+            cpuReader.read();
+            parseCPUScheduling(cpuReader, sample.cpu);
+            parseCoreSchedulings(cpuReader, sample.cores);
+        }
+        else if (!hostCPUSkipped) {
+            cpuReader.readHead();
+            parseCPUScheduling(cpuReader, sample.cpu);
+        }
+
+        processReader.read();
+        parseProcessScheduling(processReader, sample.process);
+
+        sample.timestampMillis = System.currentTimeMillis();
+        return sample;
+    }
+
+    @Override
+    public long getBytesRead() {
+        return cpuReader.getBytesRead() + processReader.getBytesRead();
+    }
+
+    static void parseCPUScheduling(ProcFileReader reader, CPUScheduling scheduling) throws IOException {
+        if (!reader.startsWith(reader.cursor(), CPU_PREFIX)) {
+            throw new IOException("Expected a cpu line");
+        }
+
+        reader.skipFields(1);
+        scheduling.userTime = reader.nextLong();
+        scheduling.nicedTime = reader.nextLong();
+        scheduling.systemTime = reader.nextLong();
+    }
+
+    // Expects the reader to be on the aggregate line, which is skipped
+    static void parseCoreSchedulings(ProcFileReader reader, CoreSchedulings cores) throws IOException {
+        cores.clear();
+
+        while (reader.nextLine() && reader.startsWith(reader.cursor(), CPU_PREFIX)) {
+            reader.seek(reader.cursor() + CPU_PREFIX.length);
+            int coreId = (int)reader.nextLong();
+
+            long busyTime = reader.nextLong() + reader.nextLong() + reader.nextLong();
+            long idleTime = reader.nextLong();
+            if (!reader.atEndOfLine()) {
+                // iowait
+                idleTime += reader.nextLong();
+            }
+
+            cores.add(coreId, busyTime, idleTime);
+        }
+    }
+
+    static void parseProcessScheduling(ProcFileReader reader, ProcessScheduling scheduling) throws IOException {
+        // The command name may contain spaces or parentheses, so the fields are counted from its end
+        int commandEnd = reader.lastIndexOf((byte)')');
+        if (commandEnd < 0) {
+            throw new IOException("Expected a process command name");
+        }
+
+        reader.seek(commandEnd + 1);
+        reader.skipFields(11);
+        scheduling.userTime = reader.nextLong();
+        scheduling.systemTime = reader.nextLong();
+        scheduling.childrenUserTime = reader.nextLong();
+        scheduling.childrenSystemTime = reader.nextLong();
+    }
+
+    @Override
+    public void close() throws IOException {
+        cpuReader.close();
+        processReader.close();
+    }
+}
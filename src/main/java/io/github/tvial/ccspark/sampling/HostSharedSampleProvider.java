@@ -0,0 +1,350 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package io.github.tvial.ccspark.sampling;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.github.tvial.ccspark.model.CPUScheduling;
+import io.github.tvial.ccspark.model.ProcessScheduling;
+import io.github.tvial.ccspark.model.Sample;
+
+
+// Shares the host-level CPU counters between the executors of a host. The executor holding a file lock
+// (the leader) reads /proc/stat periodically and publishes the counters, and the TDP once known, in a small
+// memory-mapped file; all executors, the leader included, read them from there, and only read their own
+// process counters. Writes are guarded by a sequence number, odd while writing, and a checksum, so that
+// readers retry on torn values. When the counters go stale, because the leader died, another executor takes
+// over; until then, it reads /proc/stat itself.
+// The shared counters are up to a publishing period older than the process counters, so they are projected
+// to the time of the sample at the rate of the last published period, which the leader publishes too. As in
+// DirectProcFileSystemSampleProvider, the samples alternate between two reused holders.
+public class HostSharedSampleProvider implements SampleProvider {
+    final static Logger logger = LoggerFactory.getLogger(HostSharedSampleProvider.class);
+
+    final static String SHARED_FILE = "ccspark-host.shm";
+    final static String LOCK_FILE = "ccspark-host.lock";
+    final static long DEFAULT_PUBLISH_PERIOD = 250L;
+    final static int STALE_PERIODS = 10;
+    final static int MAX_READ_ATTEMPTS = 100;
+
+    // Changes with the layout, so that executors of different versions do not read each other
+    final static int MAGIC = 0x43434854;
+    final static int SHARED_BYTES = 128;
+    final static int SEQUENCE_OFFSET = 8;
+    // The values follow each other from the timestamp on
+    final static int TIMESTAMP_OFFSET = 16;
+    final static int CHECKSUM_OFFSET = 96;
+    // Timestamp, CPU user, niced and system times, TDP bits, TDP source, then the previous timestamp and
+    // CPU times
+    final static int VALUES = 10;
+    final static int TIMESTAMP_INDEX = 0;
+    final static int CPU_INDEX = 1;
+    final static int TDP_INDEX = 4;
+    final static int TDP_SOURCE_INDEX = 5;
+    final static int PREVIOUS_TIMESTAMP_INDEX = 6;
+    final static int PREVIOUS_CPU_INDEX = 7;
+
+    public static class SharedTDP {
+        public final double tdp;
+        public final long source;
+
+        SharedTDP(double tdp, long source) {
+            this.tdp = tdp;
+            this.source = source;
+        }
+    }
+
+    private File directory;
+    private long publishPeriodMillis;
+    private MappedByteBuffer shared;
+    private FileChannel lockChannel;
+    private FileLock lock;
+    private ScheduledExecutorService publisher;
+
+    private ProcFileReader processReader;
+    // Only read by the publisher, or by a follower while the counters are stale
+    private ProcFileReader cpuReader;
+    private CPUScheduling publishedCpu;
+    private volatile double tdp;
+    private volatile long tdpSource;
+    private long[] published;
+    private long[] values;
+    private Sample[] holders;
+    private int nextHolder;
+    private boolean hostCPUSkipped;
+
+    public HostSharedSampleProvider(String directory, String cpuPath, String processPath, long publishPeriodMillis) throws IOException {
+        this.directory = new File(directory);
+        this.publishPeriodMillis = publishPeriodMillis;
+        this.processReader = new ProcFileReader(processPath, DirectProcFileSystemSampleProvider.PROCESS_CAPACITY);
+        this.cpuReader = new ProcFileReader(cpuPath, DirectProcFileSystemSampleProvider.CPU_HEAD_CAPACITY);
+        this.publishedCpu = new CPUScheduling(0L, 0L, 0L);
+        this.tdp = -1.0;
+        this.tdpSource = -1L;
+        this.published = new long[VALUES];
+        this.values = new long[VALUES];
+        this.holders = new Sample[] { newHolder(), newHolder() };
+        this.nextHolder = 0;
+        this.hostCPUSkipped = false;
+
+        RandomAccessFile sharedFile = new RandomAccessFile(new File(this.directory, SHARED_FILE), "rw");
+        try {
+            this.shared = sharedFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0L, SHARED_BYTES);
+        }
+        finally {
+            sharedFile.close();
+        }
+        // Kept open: on some systems, closing any channel of the file releases the locks of the process
+        this.lockChannel = FileChannel.open(
+            new File(this.directory, LOCK_FILE).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE
+        );
+        this.lock = null;
+        this.publisher = null;
+
+        tryToLead();
+    }
+
+    public HostSharedSampleProvider(String directory) throws IOException {
+        this(directory, "/proc/stat", "/proc/self/stat", DEFAULT_PUBLISH_PERIOD);
+    }
+
+    private static Sample newHolder() {
+        return new Sample(0L, new CPUScheduling(0L, 0L, 0L), new ProcessScheduling(0L, 0L, 0L, 0L));
+    }
+
+    public boolean isLeader() {
+        return lock != null;
+    }
+
+    private synchronized boolean tryToLead() throws IOException {
+        if (lock != null) {
+            return true;
+        }
+
+        try {
+            lock = lockChannel.tryLock();
+        }
+        catch (OverlappingFileLockException e) {
+            // Held by another provider of this JVM
+            lock = null;
+        }
+        if (lock == null) {
+            return false;
+        }
+
+        logger.info(String.format("Sampling host counters for the executors of this host, in %s", directory));
+        shared.putInt(0, MAGIC);
+        publish();
+        publisher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Host sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        publisher.scheduleAtFixedRate(this::publishQuietly, publishPeriodMillis, publishPeriodMillis, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    // The TDP is only looked up by the leader, the others reuse it. The counters are left as they are, so
+    // that the published period is not shortened
+    public synchronized void publishTDP(double tdp, long source) {
+        this.tdp = tdp;
+        this.tdpSource = source;
+        write();
+    }
+
+    private void publishQuietly() {
+        try {
+            publish();
+        }
+        catch (IOException | RuntimeException e) {
+            logger.warn(String.format("Could not publish host counters, reason: %s", e.getMessage()));
+        }
+    }
+
+    private void publish() throws IOException {
+        publish(System.currentTimeMillis());
+    }
+
+    synchronized void publish(long timestampMillis) throws IOException {
+        if (lock == null) {
+            return;
+        }
+
+        cpuReader.readHead();
+        DirectProcFileSystemSampleProvider.parseCPUScheduling(cpuReader, publishedCpu);
+
+        published[PREVIOUS_TIMESTAMP_INDEX] = published[TIMESTAMP_INDEX];
+        System.arraycopy(published, CPU_INDEX, published, PREVIOUS_CPU_INDEX, 3);
+        published[TIMESTAMP_INDEX] = timestampMillis;
+        published[CPU_INDEX] = publishedCpu.userTime;
+        published[CPU_INDEX + 1] = publishedCpu.nicedTime;
+        published[CPU_INDEX + 2] = publishedCpu.systemTime;
+        write();
+    }
+
+    private synchronized void write() {
+        if (lock == null) {
+            return;
+        }
+
+        published[TDP_INDEX] = Double.doubleToLongBits(tdp);
+        published[TDP_SOURCE_INDEX] = tdpSource;
+
+        // Odd while writing, even if a previous leader died while writing
+        long sequence = (shared.getLong(SEQUENCE_OFFSET) + 1) | 1L;
+        shared.putLong(SEQUENCE_OFFSET, sequence);
+        for (int i = 0; i < VALUES; i++) {
+            shared.putLong(TIMESTAMP_OFFSET + 8 * i, published[i]);
+        }
+        shared.putLong(CHECKSUM_OFFSET, checksum(published));
+        shared.putLong(SEQUENCE_OFFSET, sequence + 1);
+    }
+
+    static long checksum(long[] values) {
+        long checksum = 0x9e3779b97f4a7c15L;
+        for (long value : values) {
+            checksum = (checksum ^ value) * 0x100000001b3L;
+        }
+        return checksum;
+    }
+
+    // Reads a consistent copy of the shared values, returns false if none has been published yet
+    private synchronized boolean readShared() {
+        for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+            long before = shared.getLong(SEQUENCE_OFFSET);
+            if (before == 0L || shared.getInt(0) != MAGIC) {
+                return false;
+            }
+            if ((before & 1L) != 0L) {
+                continue;
+            }
+
+            for (int i = 0; i < VALUES; i++) {
+                values[i] = shared.getLong(TIMESTAMP_OFFSET + 8 * i);
+            }
+            long checksum = shared.getLong(CHECKSUM_OFFSET);
+
+            if (shared.getLong(SEQUENCE_OFFSET) == before && checksum == checksum(values)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The TDP and its source, from the same copy of the shared values, if the leader has published them
+    public synchronized Optional<SharedTDP> getSharedTDP() {
+        if (!readShared() || Double.longBitsToDouble(values[TDP_INDEX]) <= 0.0) {
+            return Optional.empty();
+        }
+        return Optional.of(new SharedTDP(Double.longBitsToDouble(values[TDP_INDEX]), values[TDP_SOURCE_INDEX]));
+    }
+
+    // The leader keeps publishing for the other executors
+    @Override
+    public void skipHostCPU() {
+        hostCPUSkipped = true;
+    }
+
+    @Override
+    public Sample sample() throws IOException {
+        return sample(System.currentTimeMillis());
+    }
+
+    Sample sample(long now) throws IOException {
+        Sample sample = holders[nextHolder];
+        nextHolder = 1 - nextHolder;
+        if (hostCPUSkipped) {
+            return sampleProcess(sample, now);
+        }
+        CPUScheduling previous = holders[nextHolder].cpu;
+
+        boolean fresh = readShared() && now - values[TIMESTAMP_INDEX] <= STALE_PERIODS * publishPeriodMillis;
+        if (!fresh && tryToLead()) {
+            fresh = readShared();
+        }
+
+        synchronized (this) {
+            if (fresh) {
+                long elapsed = now - values[TIMESTAMP_INDEX];
+                long period = values[PREVIOUS_TIMESTAMP_INDEX] > 0L ? values[TIMESTAMP_INDEX] - values[PREVIOUS_TIMESTAMP_INDEX] : 0L;
+                sample.cpu.userTime = project(CPU_INDEX, elapsed, period);
+                sample.cpu.nicedTime = project(CPU_INDEX + 1, elapsed, period);
+                sample.cpu.systemTime = project(CPU_INDEX + 2, elapsed, period);
+            }
+            else {
+                cpuReader.readHead();
+                DirectProcFileSystemSampleProvider.parseCPUScheduling(cpuReader, sample.cpu);
+            }
+        }
+        // A projection may overshoot when the host load drops, the counters must not go back
+        sample.cpu.userTime = Math.max(sample.cpu.userTime, previous.userTime);
+        sample.cpu.nicedTime = Math.max(sample.cpu.nicedTime, previous.nicedTime);
+        sample.cpu.systemTime = Math.max(sample.cpu.systemTime, previous.systemTime);
+
+        return sampleProcess(sample, now);
+    }
+
+    private Sample sampleProcess(Sample sample, long now) throws IOException {
+        processReader.read();
+        DirectProcFileSystemSampleProvider.parseProcessScheduling(processReader, sample.process);
+
+        sample.timestampMillis = now;
+        return sample;
+    }
+
+    private long project(int index, long elapsed, long period) {
+        long value = values[index];
+        if (period <= 0L) {
+            return value;
+        }
+        return value + (value - values[index - CPU_INDEX + PREVIOUS_CPU_INDEX]) * elapsed / period;
+    }
+
+    @Override
+    public long getBytesRead() {
+        return processReader.getBytesRead() + cpuReader.getBytesRead();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (publisher != null) {
+            publisher.shutdownNow();
+        }
+        synchronized (this) {
+            if (lock != null) {
+                lock.release();
+                lock = null;
+            }
+        }
+        lockChannel.close();
+        processReader.close();
+        cpuReader.close();
+    }
+}
@@ -0,0 +1,114 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.tvial.ccspark.sampling;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import io.github.tvial.ccspark.model.Sample;
+
+
+// Adds the memory footprint of the executor (resident and swapped out), and the memory of the host, to the
+// samples of another provider. The host memory does not change, so it is only read once.
+public class MemorySampleProvider implements SampleProvider {
+    final static String DEFAULT_STATUS_PATH = "/proc/self/status";
+    final static String DEFAULT_MEMINFO_PATH = "/proc/meminfo";
+    final static int STATUS_CAPACITY = 2048;
+    final static int MEMINFO_CAPACITY = 256;
+
+    final static byte[] RSS_PREFIX = "VmRSS:".getBytes(StandardCharsets.US_ASCII);
+    final static byte[] SWAP_PREFIX = "VmSwap:".getBytes(StandardCharsets.US_ASCII);
+    final static byte[] MEMTOTAL_PREFIX = "MemTotal:".getBytes(StandardCharsets.US_ASCII);
+
+    private SampleProvider delegate;
+    private ProcFileReader statusReader;
+    private String meminfoPath;
+    private long memTotalBytes;
+    private long bytesRead;
+
+    public MemorySampleProvider(SampleProvider delegate, String statusPath, String meminfoPath) {
+        this.delegate = delegate;
+        this.statusReader = new ProcFileReader(statusPath, STATUS_CAPACITY);
+        this.meminfoPath = meminfoPath;
+        this.memTotalBytes = Sample.UNKNOWN_MEMORY;
+        this.bytesRead = 0L;
+    }
+
+    public MemorySampleProvider(SampleProvider delegate) {
+        this(delegate, DEFAULT_STATUS_PATH, DEFAULT_MEMINFO_PATH);
+    }
+
+    @Override
+    public Sample sample() throws IOException {
+        Sample sample = delegate.sample();
+
+        if (memTotalBytes == Sample.UNKNOWN_MEMORY) {
+            memTotalBytes = readMemTotal(meminfoPath);
+        }
+        sample.memTotalBytes = memTotalBytes;
+
+        statusReader.read();
+        parseProcessMemory(statusReader, sample);
+
+        return sample;
+    }
+
+    private long readMemTotal(String path) throws IOException {
+        ProcFileReader reader = new ProcFileReader(path, MEMINFO_CAPACITY);
+        try {
+            // MemTotal comes first
+            reader.readHead();
+            bytesRead += reader.getBytesRead();
+            return parseMemTotal(reader);
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+    static long parseMemTotal(ProcFileReader reader) throws IOException {
+        reader.seek(0);
+        if (!reader.findLine(MEMTOTAL_PREFIX)) {
+            throw new IOException("No MemTotal in meminfo");
+        }
+        return 1024L * reader.nextLong();
+    }
+
+    // Sizes are in kB. VmSwap is missing on kernels without swap accounting.
+    static void parseProcessMemory(ProcFileReader reader, Sample sample) throws IOException {
+        reader.seek(0);
+        sample.rssBytes = reader.findLine(RSS_PREFIX) ? 1024L * reader.nextLong() : Sample.UNKNOWN_MEMORY;
+        reader.seek(0);
+        sample.swapBytes = reader.findLine(SWAP_PREFIX) ? 1024L * reader.nextLong() : Sample.UNKNOWN_MEMORY;
+    }
+
+    @Override
+    public void skipHostCPU() {
+        delegate.skipHostCPU();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return delegate.getBytesRead() + bytesRead + statusReader.getBytesRead();
+    }
+
+    @Override
+    public void close() throws IOException {
+        statusReader.close();
+        delegate.close();
+    }
+}
@@ -0,0 +1,203 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.tvial.ccspark.sampling;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+
+// Reads a small (pseudo-)file into a reused direct buffer, and scans ASCII numbers out of it
+// without allocating. The file is kept open, and re-read from the start on each call.
+public class ProcFileReader implements Closeable {
+    private String path;
+    private FileChannel channel;
+    private ByteBuffer buffer;
+    private int length;
+    private int cursor;
+    private long bytesRead;
+
+    public ProcFileReader(String path, int capacity) {
+        this.path = path;
+        this.channel = null;
+        this.buffer = ByteBuffer.allocateDirect(capacity);
+        this.length = 0;
+        this.cursor = 0;
+        this.bytesRead = 0L;
+    }
+
+    // Reads the whole file, growing the buffer if needed (which only happens on the first calls)
+    public int read() throws IOException {
+        while (fill() == buffer.capacity()) {
+            buffer = ByteBuffer.allocateDirect(2 * buffer.capacity());
+        }
+        return length;
+    }
+
+    // Reads only what fits in the buffer, for when the interesting part is at the start of the file
+    public int readHead() throws IOException {
+        return fill();
+    }
+
+    private int fill() throws IOException {
+        if (channel == null) {
+            channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+        }
+
+        buffer.clear();
+        long position = 0L;
+
+        while (buffer.hasRemaining()) {
+            int count = channel.read(buffer, position);
+            if (count <= 0) {
+                break;
+            }
+            position += count;
+        }
+
+        length = (int)position;
+        cursor = 0;
+        bytesRead += position;
+        return length;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public int cursor() {
+        return cursor;
+    }
+
+    public void seek(int position) {
+        cursor = position;
+    }
+
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    public byte byteAt(int position) {
+        return buffer.get(position);
+    }
+
+    public boolean startsWith(int position, byte[] prefix) {
+        if (position + prefix.length > length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (buffer.get(position + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int lastIndexOf(byte value) {
+        for (int i = length - 1; i >= 0; i--) {
+            if (buffer.get(i) == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Moves the cursor to the start of the next line, returns false at the end of the data
+    public boolean nextLine() {
+        while (cursor < length && buffer.get(cursor) != '\n') {
+            cursor++;
+        }
+        if (cursor < length) {
+            cursor++;
+        }
+        return cursor < length;
+    }
+
+    // Moves the cursor just after the first line prefix found from the current position, for "Key: value" files
+    public boolean findLine(byte[] prefix) {
+        do {
+            if (startsWith(cursor, prefix)) {
+                cursor += prefix.length;
+                return true;
+            }
+        } while (nextLine());
+        return false;
+    }
+
+    public boolean atEndOfLine() {
+        while (cursor < length && buffer.get(cursor) == ' ') {
+            cursor++;
+        }
+        return cursor >= length || buffer.get(cursor) == '\n';
+    }
+
+    public void skipFields(int count) {
+        for (int i = 0; i < count; i++) {
+            while (cursor < length && isSpace(buffer.get(cursor))) {
+                cursor++;
+            }
+            while (cursor < length && !isSpace(buffer.get(cursor))) {
+                cursor++;
+            }
+        }
+    }
+
+    // Parses the next (possibly negative) decimal number on the current line
+    public long nextLong() throws IOException {
+        while (cursor < length && (buffer.get(cursor) == ' ' || buffer.get(cursor) == '\t')) {
+            cursor++;
+        }
+
+        boolean negative = false;
+        if (cursor < length && buffer.get(cursor) == '-') {
+            negative = true;
+            cursor++;
+        }
+
+        int start = cursor;
+        long value = 0L;
+        while (cursor < length) {
+            byte digit = buffer.get(cursor);
+            if (digit < '0' || digit > '9') {
+                break;
+            }
+            value = 10 * value + (digit - '0');
+            cursor++;
+        }
+
+        if (cursor == start) {
+            throw new IOException(String.format("Expected a number at offset %d of %s", start, path));
+        }
+
+        return negative ? -value : value;
+    }
+
+    private static boolean isSpace(byte value) {
+        return value == ' ' || value == '\n' || value == '\t';
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+}
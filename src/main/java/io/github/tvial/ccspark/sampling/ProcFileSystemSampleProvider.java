@@ -31,6 +31,9 @@ import io.github.tvial.ccspark.model.Sample;
 public class ProcFileSystemSampleProvider implements SampleProvider {
     String cpuPath;
     String processPath;
+    boolean hostCPUSkipped = false;
+    // Lines are ASCII, so characters count as bytes
+    private volatile long bytesRead = 0L;
 
     public ProcFileSystemSampleProvider(String cpuPath, String processPath) {
         this.cpuPath = cpuPath;
@@ -43,15 +46,23 @@ public class ProcFileSystemSampleProvider implements SampleProvider {
     }
 
     @Override
-    public Sample sample() throws IOException {
-        BufferedReader reader = newBufferedReader(Paths.get(cpuPath));
-        CPUScheduling[] cpuSchedulings;
+    public void skipHostCPU() {
+        hostCPUSkipped = true;
+    }
 
-        try {
-            cpuSchedulings = getCPUSchedulings(reader);
-        }
-        finally {
-            reader.close();
+    @Override
+    public Sample sample() throws IOException {
+        CPUScheduling cpuScheduling = new CPUScheduling(0L, 0L, 0L);
+        BufferedReader reader;
+
+        if (!hostCPUSkipped) {
+            reader = newBufferedReader(Paths.get(cpuPath));
+            try {
+                cpuScheduling = getCPUSchedulings(reader)[0];
+            }
+            finally {
+                reader.close();
+            }
         }
 
         reader = newBufferedReader(Paths.get(processPath));
@@ -63,11 +74,12 @@ public class ProcFileSystemSampleProvider implements SampleProvider {
             reader.close();
         }
 
-        return new Sample(System.currentTimeMillis(), cpuSchedulings[0], processScheduling);
+        return new Sample(System.currentTimeMillis(), cpuScheduling, processScheduling);
     }
 
     protected CPUScheduling[] getCPUSchedulings(BufferedReader reader) {
         return reader.lines()
+            .peek(line -> bytesRead += line.length() + 1)
             .filter(line -> line.startsWith("cpu"))
             .map(line -> getCPUSchedulingFromLine(line))
             .toArray(CPUScheduling[]::new);
@@ -84,7 +96,9 @@ public class ProcFileSystemSampleProvider implements SampleProvider {
     }
 
     protected ProcessScheduling getProcessScheduling(BufferedReader reader) throws IOException {
-        String[] tokens = reader.readLine().split("\\s+");
+        String line = reader.readLine();
+        bytesRead += line.length() + 1;
+        String[] tokens = line.split("\\s+");
 
         return new ProcessScheduling(
             Long.parseLong(tokens[13]),
@@ -94,6 +108,11 @@ public class ProcFileSystemSampleProvider implements SampleProvider {
         );
     }
 
+    @Override
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
 	protected long getPID() {
         String name = ManagementFactory.getRuntimeMXBean().getName();
         return Long.valueOf(name.split("@")[0]);
@@ -0,0 +1,180 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.tvial.ccspark.sampling;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.github.tvial.ccspark.model.Sample;
+
+
+// Adds the energy counters of RAPL (package and DRAM domains) to the samples of another provider.
+// The counters wrap around at max_energy_range_uj, so they are accumulated into monotonic totals.
+public class RAPLSampleProvider implements SampleProvider {
+    final static Logger logger = LoggerFactory.getLogger(RAPLSampleProvider.class);
+
+    final static String DEFAULT_POWERCAP_PATH = "/sys/class/powercap";
+
+    static class Domain {
+        ProcFileReader reader;
+        long maxRange;
+        long lastEnergy;
+        long cumulativeEnergy;
+
+        Domain(File directory) throws IOException {
+            this.reader = new ProcFileReader(new File(directory, "energy_uj").getPath(), 64);
+            this.maxRange = readLong(new File(directory, "max_energy_range_uj"));
+            this.lastEnergy = -1L;
+            this.cumulativeEnergy = 0L;
+        }
+
+        long sample() throws IOException {
+            reader.read();
+            long energy = reader.nextLong();
+
+            if (lastEnergy >= 0) {
+                long delta = energy - lastEnergy;
+                cumulativeEnergy += delta >= 0 ? delta : delta + maxRange;
+            }
+            lastEnergy = energy;
+
+            return cumulativeEnergy;
+        }
+    }
+
+    private SampleProvider delegate;
+    private List<Domain> packages;
+    private List<Domain> drams;
+
+    public RAPLSampleProvider(SampleProvider delegate, String powercapPath) throws IOException {
+        this.delegate = delegate;
+        this.packages = new ArrayList<Domain>();
+        this.drams = new ArrayList<Domain>();
+
+        File[] zones = new File(powercapPath).listFiles((dir, name) -> name.startsWith("intel-rapl:"));
+        if (zones == null) {
+            throw new IOException(String.format("Cannot list %s", powercapPath));
+        }
+        // Deterministic order, so that the domains are always summed the same way
+        Arrays.sort(zones);
+
+        for (File zone : zones) {
+            String name = readString(new File(zone, "name"));
+
+            // Core and uncore zones are parts of the package, so they are not counted
+            if (name.startsWith("package")) {
+                packages.add(new Domain(zone));
+            }
+            else if (name.equals("dram")) {
+                drams.add(new Domain(zone));
+            }
+        }
+
+        if (packages.isEmpty()) {
+            throw new IOException(String.format("No RAPL package domain under %s", powercapPath));
+        }
+
+        // Reading once checks that the counters are readable, and sets the starting points
+        sampleDomains(packages);
+        sampleDomains(drams);
+    }
+
+    public RAPLSampleProvider(SampleProvider delegate) throws IOException {
+        this(delegate, DEFAULT_POWERCAP_PATH);
+    }
+
+    // Probes RAPL and falls back on the delegate alone if the counters are missing or unreadable
+    public static SampleProvider withFallback(SampleProvider delegate, String powercapPath) {
+        try {
+            RAPLSampleProvider provider = new RAPLSampleProvider(delegate, powercapPath);
+            logger.info(String.format(
+                "Using RAPL energy counters (%d package, %d DRAM domains)", provider.packages.size(), provider.drams.size()
+            ));
+            return provider;
+        }
+        catch (IOException | RuntimeException e) {
+            logger.info(String.format("RAPL is not available, reason: %s", e.getMessage()));
+            return delegate;
+        }
+    }
+
+    @Override
+    public Sample sample() throws IOException {
+        Sample sample = delegate.sample();
+
+        sample.packageEnergyMicroJoules = sampleDomains(packages);
+        sample.dramEnergyMicroJoules = drams.isEmpty() ? Sample.UNKNOWN_ENERGY : sampleDomains(drams);
+
+        return sample;
+    }
+
+    private static long sampleDomains(List<Domain> domains) throws IOException {
+        long total = 0L;
+
+        for (Domain domain : domains) {
+            total += domain.sample();
+        }
+
+        return total;
+    }
+
+    private static String readString(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.US_ASCII).trim();
+    }
+
+    private static long readLong(File file) throws IOException {
+        return Long.parseLong(readString(file));
+    }
+
+    @Override
+    public void skipHostCPU() {
+        delegate.skipHostCPU();
+    }
+
+    @Override
+    public long getBytesRead() {
+        long bytesRead = delegate.getBytesRead();
+
+        for (Domain domain : packages) {
+            bytesRead += domain.reader.getBytesRead();
+        }
+        for (Domain domain : drams) {
+            bytesRead += domain.reader.getBytesRead();
+        }
+
+        return bytesRead;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Domain domain : packages) {
+            domain.reader.close();
+        }
+        for (Domain domain : drams) {
+            domain.reader.close();
+        }
+        delegate.close();
+    }
+}
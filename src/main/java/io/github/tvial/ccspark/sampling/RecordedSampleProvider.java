@@ -0,0 +1,67 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package io.github.tvial.ccspark.sampling;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import io.github.tvial.ccspark.model.Sample;
+
+
+// Streams the samples of a recording, one at a time, without loading the whole file
+public class RecordedSampleProvider implements SampleProvider {
+    private String path;
+    private DataInputStream in;
+    private int fields;
+    private byte[] bytes;
+    private ByteBuffer buffer;
+    private long[] record;
+
+    public RecordedSampleProvider(String path) throws IOException {
+        this.path = path;
+        this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)));
+        this.fields = SampleRecording.checkHeader(in.readInt(), in.readInt(), in.readInt(), path);
+        this.bytes = new byte[8 * fields];
+        this.buffer = ByteBuffer.wrap(bytes);
+        this.record = new long[SampleRecording.FIELDS];
+    }
+
+    @Override
+    public Sample sample() throws IOException {
+        try {
+            in.readFully(bytes);
+        }
+        catch (EOFException e) {
+            throw new EOFException(String.format("End of recording %s", path));
+        }
+
+        buffer.clear();
+        SampleRecording.readRecord(buffer, fields, record, 0);
+
+        Sample sample = SampleRecording.newSample();
+        SampleRecording.fill(record, 0, sample);
+        return sample;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,66 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package io.github.tvial.ccspark.sampling;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import io.github.tvial.ccspark.model.Sample;
+
+
+// Records the samples of another provider to a file, for later replay (see RecordedSampleProvider and
+// UsageReplay). Each sample is flushed, so that the recording survives the executor. An existing recording
+// is never overwritten.
+public class RecordingSampleProvider implements SampleProvider {
+    private SampleProvider delegate;
+    private DataOutputStream out;
+
+    public RecordingSampleProvider(SampleProvider delegate, String path) throws IOException {
+        this.delegate = delegate;
+        this.out = new DataOutputStream(new BufferedOutputStream(
+            Files.newOutputStream(Paths.get(path), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)
+        ));
+        SampleRecording.writeHeader(out);
+    }
+
+    @Override
+    public Sample sample() throws IOException {
+        Sample sample = delegate.sample();
+        SampleRecording.write(out, sample);
+        out.flush();
+        return sample;
+    }
+
+    @Override
+    public void skipHostCPU() {
+        delegate.skipHostCPU();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return delegate.getBytesRead();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+        delegate.close();
+    }
+}
@@ -16,11 +16,26 @@
 
 package io.github.tvial.ccspark.sampling;
 
+import java.io.Closeable;
 import java.io.IOException;
 
 import io.github.tvial.ccspark.model.Sample;
 
 
-public interface SampleProvider {
+public interface SampleProvider extends Closeable {
     Sample sample() throws IOException ;
+
+    // Wrappers that replace the CPU time of the host, as under a cgroup quota, let the providers they wrap
+    // skip reading it; the CPU time of their samples is then left at zero
+    default void skipHostCPU() {
+    }
+
+    // Bytes read so far, for providers that keep count
+    default long getBytesRead() {
+        return 0L;
+    }
+
+    @Override
+    default void close() throws IOException {
+    }
 }
@@ -0,0 +1,130 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package io.github.tvial.ccspark.sampling;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import io.github.tvial.ccspark.model.CPUScheduling;
+import io.github.tvial.ccspark.model.ProcessScheduling;
+import io.github.tvial.ccspark.model.Sample;
+
+
+// Binary capture of samples: a header (magic, version, number of fields), then one record of fixed-size
+// big-endian longs per sample. Per-core and per-thread figures are not recorded. Fields are only ever
+// appended: those missing from older recordings read as unknown (-1), those added later are skipped.
+public class SampleRecording {
+    final static int MAGIC = 0x43435352;
+    final static int VERSION = 1;
+    final static int HEADER_BYTES = 12;
+    public final static int FIELDS = 16;
+    final static long MISSING = -1L;
+
+    public static void writeHeader(DataOutput out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(FIELDS);
+    }
+
+    static int checkHeader(int magic, int version, int fields, String path) throws IOException {
+        if (magic != MAGIC || version != VERSION || fields <= 0) {
+            throw new IOException(String.format("%s is not a sample recording", path));
+        }
+        return fields;
+    }
+
+    public static void write(DataOutput out, Sample sample) throws IOException {
+        out.writeLong(sample.timestampMillis);
+        out.writeLong(sample.cpu.userTime);
+        out.writeLong(sample.cpu.nicedTime);
+        out.writeLong(sample.cpu.systemTime);
+        out.writeLong(sample.process.userTime);
+        out.writeLong(sample.process.systemTime);
+        out.writeLong(sample.process.childrenUserTime);
+        out.writeLong(sample.process.childrenSystemTime);
+        out.writeLong(sample.process.descendantTime);
+        out.writeLong(sample.packageEnergyMicroJoules);
+        out.writeLong(sample.dramEnergyMicroJoules);
+        out.writeLong(sample.rssBytes);
+        out.writeLong(sample.swapBytes);
+        out.writeLong(sample.memTotalBytes);
+        out.writeLong(sample.cpuFrequencyKHz);
+        out.writeLong(sample.baseCpuFrequencyKHz);
+    }
+
+    public static Sample newSample() {
+        return new Sample(0L, new CPUScheduling(0L, 0L, 0L), new ProcessScheduling(0L, 0L, 0L, 0L));
+    }
+
+    public static void fill(long[] values, int offset, Sample sample) {
+        fill(values, offset, sample, false);
+    }
+
+    // Fills a sample in place from the record at the given offset. Without the measured (RAPL) energies, the
+    // energy is estimated by the model, so that another TDP or model can be tried on a measured run.
+    public static void fill(long[] values, int offset, Sample sample, boolean ignoreMeasuredEnergy) {
+        sample.timestampMillis = values[offset];
+        sample.cpu.userTime = values[offset + 1];
+        sample.cpu.nicedTime = values[offset + 2];
+        sample.cpu.systemTime = values[offset + 3];
+        sample.process.userTime = values[offset + 4];
+        sample.process.systemTime = values[offset + 5];
+        sample.process.childrenUserTime = values[offset + 6];
+        sample.process.childrenSystemTime = values[offset + 7];
+        sample.process.descendantTime = values[offset + 8];
+        sample.packageEnergyMicroJoules = ignoreMeasuredEnergy ? Sample.UNKNOWN_ENERGY : values[offset + 9];
+        sample.dramEnergyMicroJoules = ignoreMeasuredEnergy ? Sample.UNKNOWN_ENERGY : values[offset + 10];
+        sample.rssBytes = values[offset + 11];
+        sample.swapBytes = values[offset + 12];
+        sample.memTotalBytes = values[offset + 13];
+        sample.cpuFrequencyKHz = values[offset + 14];
+        sample.baseCpuFrequencyKHz = values[offset + 15];
+    }
+
+    // Loads a whole recording as FIELDS longs per sample, ignoring a partly written last record
+    public static long[] load(String path) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(Paths.get(path)));
+        if (bytes.remaining() < HEADER_BYTES) {
+            throw new IOException(String.format("%s is not a sample recording", path));
+        }
+
+        int fields = checkHeader(bytes.getInt(), bytes.getInt(), bytes.getInt(), path);
+        int count = bytes.remaining() / (8 * fields);
+        long[] values = new long[count * FIELDS];
+
+        if (fields == FIELDS) {
+            bytes.asLongBuffer().get(values);
+        }
+        else {
+            for (int i = 0; i < count; i++) {
+                readRecord(bytes, fields, values, i * FIELDS);
+            }
+        }
+        return values;
+    }
+
+    static void readRecord(ByteBuffer bytes, int fields, long[] values, int offset) {
+        for (int j = 0; j < Math.max(fields, FIELDS); j++) {
+            long value = j < fields ? bytes.getLong() : MISSING;
+            if (j < FIELDS) {
+                values[offset + j] = value;
+            }
+        }
+    }
+}
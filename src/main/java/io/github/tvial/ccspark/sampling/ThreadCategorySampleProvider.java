@@ -0,0 +1,187 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.tvial.ccspark.sampling;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import io.github.tvial.ccspark.model.ProcessScheduling;
+import io.github.tvial.ccspark.model.Sample;
+import io.github.tvial.ccspark.model.ThreadCategory;
+
+
+// Adds the CPU time of the threads of the executor, by category, to the samples of another provider.
+// The category of a thread is found once, from its name, and its stat file is kept open, so that a walk
+// only lists the thread IDs and reads one small file per thread.
+public class ThreadCategorySampleProvider implements SampleProvider {
+    final static String DEFAULT_TASK_PATH = "/proc/self/task";
+    final static int STAT_CAPACITY = 1024;
+
+    static class ThreadEntry {
+        ThreadCategory category;
+        ProcFileReader reader;
+        long lastCpuTime;
+        long generation;
+    }
+
+    private SampleProvider delegate;
+    private String taskPath;
+    private File taskDirectory;
+
+    private HashMap<String, ThreadEntry> threads;
+    private ProcessScheduling scratch;
+    private long[] totals;
+    private long generation;
+    private long bytesRead;
+
+    public ThreadCategorySampleProvider(SampleProvider delegate, String taskPath) {
+        this.delegate = delegate;
+        this.taskPath = taskPath;
+        this.taskDirectory = new File(taskPath);
+
+        this.threads = new HashMap<String, ThreadEntry>();
+        this.scratch = new ProcessScheduling(0L, 0L, 0L, 0L);
+        this.totals = new long[ThreadCategory.values().length];
+        this.generation = 0L;
+        this.bytesRead = 0L;
+    }
+
+    public ThreadCategorySampleProvider(SampleProvider delegate) {
+        this(delegate, DEFAULT_TASK_PATH);
+    }
+
+    @Override
+    public Sample sample() throws IOException {
+        Sample sample = delegate.sample();
+
+        walk();
+        if (sample.threadCpuTimes == null) {
+            sample.threadCpuTimes = new long[totals.length];
+        }
+        System.arraycopy(totals, 0, sample.threadCpuTimes, 0, totals.length);
+
+        return sample;
+    }
+
+    private ThreadEntry newEntry(String tid) {
+        ThreadEntry entry = new ThreadEntry();
+        String threadPath = taskPath + File.separator + tid;
+
+        try {
+            String name = new String(Files.readAllBytes(Paths.get(threadPath, "comm")), StandardCharsets.UTF_8).trim();
+            bytesRead += name.length();
+            entry.category = ThreadCategory.fromThreadName(name);
+        }
+        catch (IOException e) {
+            // Gone already
+            return null;
+        }
+
+        entry.reader = new ProcFileReader(threadPath + File.separator + "stat", STAT_CAPACITY);
+        entry.lastCpuTime = 0L;
+        return entry;
+    }
+
+    // Adds the CPU time of each thread since the previous walk to its category. Threads found on the first
+    // walk only count from then on, while threads found later count from their start.
+    private void walk() throws IOException {
+        String[] tids = taskDirectory.list();
+        if (tids == null) {
+            throw new IOException(String.format("Cannot list threads in %s", taskPath));
+        }
+
+        boolean firstWalk = generation == 0L;
+        generation++;
+
+        for (String tid : tids) {
+            ThreadEntry entry = threads.get(tid);
+            if (entry == null) {
+                entry = newEntry(tid);
+                if (entry == null) {
+                    continue;
+                }
+                threads.put(tid, entry);
+            }
+
+            long cpuTime;
+            try {
+                long before = entry.reader.getBytesRead();
+                entry.reader.read();
+                bytesRead += entry.reader.getBytesRead() - before;
+                DirectProcFileSystemSampleProvider.parseProcessScheduling(entry.reader, scratch);
+                cpuTime = scratch.userTime + scratch.systemTime;
+            }
+            catch (IOException e) {
+                // Exited since listed: removed below
+                continue;
+            }
+
+            if (!firstWalk) {
+                totals[entry.category.ordinal()] += Math.max(0L, cpuTime - entry.lastCpuTime);
+            }
+            entry.lastCpuTime = cpuTime;
+            entry.generation = generation;
+        }
+
+        Iterator<Map.Entry<String, ThreadEntry>> iterator = threads.entrySet().iterator();
+        while (iterator.hasNext()) {
+            ThreadEntry entry = iterator.next().getValue();
+            if (entry.generation != generation) {
+                closeQuietly(entry.reader);
+                iterator.remove();
+            }
+        }
+    }
+
+    private static void closeQuietly(ProcFileReader reader) {
+        try {
+            reader.close();
+        }
+        catch (IOException e) {
+            // Nothing to do
+        }
+    }
+
+    public int getThreadCount() {
+        return threads.size();
+    }
+
+    @Override
+    public void skipHostCPU() {
+        delegate.skipHostCPU();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return delegate.getBytesRead() + bytesRead;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (ThreadEntry entry : threads.values()) {
+            closeQuietly(entry.reader);
+        }
+        threads.clear();
+        delegate.close();
+    }
+}
@@ -0,0 +1,124 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+
+package io.github.tvial.ccspark.aggregation;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+
+public class BoundedMPSCQueueTests {
+    final static int PRODUCERS = 4;
+    final static int ELEMENTS_PER_PRODUCER = 100000;
+
+    @Test
+    public void roundCapacityUp() {
+        assertEquals(8, new BoundedMPSCQueue<Integer>(5).getCapacity());
+        assertEquals(8, new BoundedMPSCQueue<Integer>(8).getCapacity());
+        assertEquals(1, new BoundedMPSCQueue<Integer>(1).getCapacity());
+        assertThrows(IllegalArgumentException.class, () -> new BoundedMPSCQueue<Integer>(0));
+    }
+
+    @Test
+    public void dropWhenFull() {
+        BoundedMPSCQueue<Integer> queue = new BoundedMPSCQueue<Integer>(4);
+
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.offer(i));
+        }
+        assertFalse(queue.offer(4));
+        assertEquals(4, queue.size());
+        assertEquals(1L, queue.getDroppedCount());
+
+        List<Integer> drained = new ArrayList<Integer>();
+        assertEquals(3, queue.drain(drained::add, 3));
+        assertEquals(1, queue.size());
+
+        // Room again, wrapping around the slots
+        assertTrue(queue.offer(5));
+        assertEquals(2, queue.drain(drained::add, 10));
+        assertEquals(0, queue.drain(drained::add, 10));
+        assertEquals(Arrays.asList(0, 1, 2, 3, 5), drained);
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void keepElementsWhenConsumerThrows() {
+        BoundedMPSCQueue<Integer> queue = new BoundedMPSCQueue<Integer>(4);
+        queue.offer(1);
+        queue.offer(2);
+
+        assertThrows(IllegalStateException.class, () -> queue.drain(element -> {
+            throw new IllegalStateException();
+        }, 10));
+
+        // Only the element being consumed is lost
+        List<Integer> drained = new ArrayList<Integer>();
+        assertEquals(1, queue.drain(drained::add, 10));
+        assertEquals(Arrays.asList(2), drained);
+    }
+
+    @Test
+    public void drainConcurrentProducers() throws InterruptedException {
+        BoundedMPSCQueue<Long> queue = new BoundedMPSCQueue<Long>(1024);
+        List<Thread> producers = new ArrayList<Thread>();
+
+        for (int i = 0; i < PRODUCERS; i++) {
+            long producer = i;
+            Thread thread = new Thread(() -> {
+                for (int j = 0; j < ELEMENTS_PER_PRODUCER; j++) {
+                    // Retries, so that nothing is dropped for good
+                    while (!queue.offer(producer * ELEMENTS_PER_PRODUCER + j)) {
+                        Thread.yield();
+                    }
+                }
+            });
+            thread.start();
+            producers.add(thread);
+        }
+
+        // Elements of a given producer come out in order
+        long[] lastElements = new long[PRODUCERS];
+        Arrays.fill(lastElements, -1L);
+        AtomicLong sum = new AtomicLong();
+        long expectedCount = (long)PRODUCERS * ELEMENTS_PER_PRODUCER;
+        long count = 0L;
+        while (count < expectedCount) {
+            count += queue.drain(element -> {
+                int producer = (int)(element / ELEMENTS_PER_PRODUCER);
+                assertTrue(element > lastElements[producer]);
+                lastElements[producer] = element;
+                sum.addAndGet(element);
+            }, 256);
+        }
+        for (Thread thread : producers) {
+            thread.join();
+        }
+
+        assertEquals(expectedCount * (expectedCount - 1) / 2, sum.get());
+        assertEquals(0, queue.size());
+    }
+}
@@ -0,0 +1,88 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.tvial.ccspark.aggregation;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import io.github.tvial.ccspark.model.ExecutorUsageMetrics;
+
+
+public class CumulativeCounterTrackerTests {
+    private static ExecutorUsageMetrics counters(String executorId, long sequence, double energy_Wh, long pluginCpuNanos, long processCpuNanos) {
+        ExecutorUsageMetrics metrics = new ExecutorUsageMetrics(0.5, 0.0, 1000L);
+        metrics.executorId = executorId;
+        metrics.sequence = sequence;
+        metrics.setCumulativeCounters(energy_Wh, pluginCpuNanos, processCpuNanos);
+        return metrics;
+    }
+
+    @Test
+    public void computeIncrements() {
+        CumulativeCounterTracker tracker = new CumulativeCounterTracker();
+
+        ExecutorUsageMetrics first = counters("1", 1L, 1.0, 100L, 10000L);
+        assertTrue(tracker.toIncrements(first));
+        assertEquals(1.0, first.energy_Wh, 1e-9);
+        assertEquals(100L, first.pluginCpuNanos);
+        assertEquals(10000L, first.processCpuNanos);
+
+        ExecutorUsageMetrics second = counters("1", 2L, 1.5, 150L, 30000L);
+        assertTrue(tracker.toIncrements(second));
+        assertEquals(0.5, second.energy_Wh, 1e-9);
+        assertEquals(50L, second.pluginCpuNanos);
+        assertEquals(20000L, second.processCpuNanos);
+
+        ExecutorUsageMetrics other = counters("2", 1L, 2.0, 0L, 0L);
+        assertTrue(tracker.toIncrements(other));
+        assertEquals(2.0, other.energy_Wh, 1e-9);
+
+        assertEquals(0L, tracker.getGapCount());
+        assertEquals(0L, tracker.getDuplicateCount());
+        assertEquals(0.0, tracker.getRecoveredEnergy(), 1e-9);
+    }
+
+    @Test
+    public void ignoreDuplicatesAndCountGaps() {
+        CumulativeCounterTracker tracker = new CumulativeCounterTracker();
+
+        assertTrue(tracker.toIncrements(counters("1", 1L, 1.0, 0L, 0L)));
+
+        ExecutorUsageMetrics afterGap = counters("1", 4L, 2.5, 0L, 0L);
+        assertTrue(tracker.toIncrements(afterGap));
+        assertEquals(1.5, afterGap.energy_Wh, 1e-9);
+        assertEquals(2L, tracker.getGapCount());
+        assertEquals(1.5, tracker.getRecoveredEnergy(), 1e-9);
+
+        assertFalse(tracker.toIncrements(counters("1", 4L, 2.5, 0L, 0L)));
+        assertFalse(tracker.toIncrements(counters("1", 3L, 2.0, 0L, 0L)));
+        assertEquals(2L, tracker.getDuplicateCount());
+    }
+
+    @Test
+    public void passIncrementsThrough() {
+        CumulativeCounterTracker tracker = new CumulativeCounterTracker();
+
+        ExecutorUsageMetrics metrics = new ExecutorUsageMetrics(0.5, 1.0, 1000L);
+        assertTrue(tracker.toIncrements(metrics));
+        assertTrue(tracker.toIncrements(metrics));
+        assertEquals(1.0, metrics.energy_Wh, 1e-9);
+    }
+}
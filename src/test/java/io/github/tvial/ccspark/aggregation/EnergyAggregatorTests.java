@@ -0,0 +1,45 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.tvial.ccspark.aggregation;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+
+public class EnergyAggregatorTests {
+    @Test
+    public void aggregatePerExecutor() {
+        EnergyAggregator aggregator = new EnergyAggregator();
+
+        aggregator.add("1", 1.5);
+        aggregator.add("2", 2.0);
+        aggregator.add("1", 0.5);
+        aggregator.add(null, 1.0);
+
+        Map<String, Double> energies = aggregator.getEnergyByExecutor();
+        assertEquals(2.0, energies.get("1"), 1e-9);
+        assertEquals(2.0, energies.get("2"), 1e-9);
+        assertEquals(1.0, energies.get(EnergyAggregator.UNKNOWN_EXECUTOR_ID), 1e-9);
+
+        assertEquals(5.0, aggregator.getTotalEnergy(), 1e-9);
+        assertEquals(3, aggregator.getExecutorCount());
+        assertEquals(4, aggregator.getMessageCount());
+    }
+}
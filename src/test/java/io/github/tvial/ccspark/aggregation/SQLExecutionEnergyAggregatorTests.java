@@ -0,0 +1,115 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.tvial.ccspark.aggregation;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import io.github.tvial.ccspark.model.StageUsage;
+
+
+public class SQLExecutionEnergyAggregatorTests {
+    private static StageUsage stage(int stageId, double energy_Wh) {
+        StageUsage stage = new StageUsage(stageId, 0);
+        stage.energy_Wh = energy_Wh;
+        return stage;
+    }
+
+    @Test
+    public void attributeStagesToExecutions() {
+        SQLExecutionEnergyAggregator aggregator = new SQLExecutionEnergyAggregator();
+
+        aggregator.executionStarted(1L, "dashboard A", 1000L);
+        aggregator.jobStarted(1L, new int[] { 0, 1 });
+        aggregator.executionStarted(2L, "dashboard B", 2000L);
+        aggregator.jobStarted(2L, new int[] { 2 });
+        // Unknown execution
+        aggregator.jobStarted(42L, new int[] { 3 });
+
+        // Both running: each gets the energy of its own stages, not an even split
+        aggregator.add(new StageUsage[] { stage(0, 1.0), stage(2, 0.1) }, 1.5);
+        aggregator.executionEnded(1L, 5000L);
+        aggregator.add(new StageUsage[] { stage(1, 3.0), stage(3, 0.5) }, 3.5);
+        aggregator.add(null, 1.0);
+        assertEquals(1, aggregator.getActiveCount());
+
+        List<SQLExecutionUsage> usages = aggregator.getExecutionUsages();
+        assertEquals(2, usages.size());
+        assertEquals(1L, usages.get(0).executionId);
+        assertEquals("dashboard A", usages.get(0).description);
+        assertEquals(4.0, usages.get(0).energy_Wh, 1e-9);
+        assertEquals(4000L, usages.get(0).getDurationMillis(10000L));
+        assertEquals(2L, usages.get(1).executionId);
+        assertEquals(0.1, usages.get(1).energy_Wh, 1e-9);
+        assertEquals(SQLExecutionUsage.RUNNING, usages.get(1).endMillis);
+
+        assertEquals(0.4 + 0.5 + 1.0, aggregator.getUnattributedEnergy(), 1e-9);
+    }
+
+    @Test
+    public void attributeReadingsAfterTheEnd() {
+        SQLExecutionEnergyAggregator aggregator = new SQLExecutionEnergyAggregator(1);
+
+        // A short query ends before the batch carrying its energy arrives, while another one runs
+        aggregator.executionStarted(1L, "short", 1000L);
+        aggregator.jobStarted(1L, new int[] { 0 });
+        aggregator.executionEnded(1L, 1200L);
+        aggregator.executionStarted(2L, "long", 1500L);
+        aggregator.jobStarted(2L, new int[] { 1 });
+        aggregator.executionStarted(3L, "other", 1600L);
+        aggregator.executionEnded(3L, 1700L);
+
+        aggregator.add(new StageUsage[] { stage(0, 0.5), stage(1, 2.0) }, 2.5);
+
+        List<SQLExecutionUsage> usages = aggregator.getExecutionUsages();
+        assertEquals(3, usages.size());
+        assertEquals(2L, usages.get(0).executionId);
+        assertEquals(2.0, usages.get(0).energy_Wh, 1e-9);
+        assertEquals(1L, usages.get(1).executionId);
+        assertEquals(0.5, usages.get(1).energy_Wh, 1e-9);
+        assertEquals(0.0, aggregator.getUnattributedEnergy(), 1e-9);
+    }
+
+    @Test
+    public void keepHeaviestEndedExecutions() {
+        SQLExecutionEnergyAggregator aggregator = new SQLExecutionEnergyAggregator(2, 0L);
+
+        double[] energies = { 3.0, 1.0, 5.0, 2.0 };
+        for (int i = 0; i < energies.length; i++) {
+            aggregator.executionStarted(i, "query " + i, 1000L * i);
+            aggregator.jobStarted(i, new int[] { i });
+            aggregator.add(new StageUsage[] { stage(i, energies[i]) }, energies[i]);
+            aggregator.executionEnded(i, 1000L * i + 500);
+        }
+        // Unknown or already ended
+        aggregator.executionEnded(2L, 10000L);
+        aggregator.executionEnded(42L, 10000L);
+
+        List<SQLExecutionUsage> usages = aggregator.getExecutionUsages();
+        assertEquals(2, usages.size());
+        assertEquals(2L, usages.get(0).executionId);
+        assertEquals(0L, usages.get(1).executionId);
+        assertEquals(2500L, usages.get(0).endMillis);
+
+        // The stages of the dropped executions are forgotten
+        aggregator.add(new StageUsage[] { stage(1, 1.0) }, 1.0);
+        assertEquals(1.0, aggregator.getUnattributedEnergy(), 1e-9);
+    }
+}
@@ -0,0 +1,72 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.tvial.ccspark.aggregation;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import io.github.tvial.ccspark.model.StageUsage;
+
+
+public class StageEnergyAggregatorTests {
+    private static StageUsage[] usage(int stageId, double energy_Wh) {
+        StageUsage stage = new StageUsage(stageId, 0);
+        stage.energy_Wh = energy_Wh;
+        stage.taskCount = 1L;
+        return new StageUsage[] { stage };
+    }
+
+    @Test
+    public void keepHeaviestEndedStages() {
+        StageEnergyAggregator aggregator = new StageEnergyAggregator(2);
+
+        double[] energies = { 3.0, 1.0, 5.0, 2.0 };
+        for (int i = 0; i < energies.length; i++) {
+            aggregator.stageStarted(i, 0);
+            aggregator.add(usage(i, energies[i]));
+            aggregator.stageEnded(i, 0);
+        }
+
+        List<StageUsage> stages = aggregator.getStageUsages();
+        assertEquals(2, stages.size());
+        assertEquals(2, stages.get(0).stageId);
+        assertEquals(0, stages.get(1).stageId);
+    }
+
+    @Test
+    public void keepRunningStages() {
+        StageEnergyAggregator aggregator = new StageEnergyAggregator(1);
+
+        aggregator.stageStarted(0, 0);
+        aggregator.add(usage(0, 0.5));
+        for (int i = 1; i <= 3; i++) {
+            aggregator.add(usage(i, 1.0 * i));
+        }
+        // A late reading of an ended stage still counts
+        aggregator.add(usage(3, 1.0));
+
+        List<StageUsage> stages = aggregator.getStageUsages();
+        assertEquals(2, aggregator.getStageCount());
+        assertEquals(3, stages.get(0).stageId);
+        assertEquals(4.0, stages.get(0).energy_Wh, 1e-9);
+        assertEquals(2L, stages.get(0).taskCount);
+        assertEquals(0, stages.get(1).stageId);
+    }
+}
@@ -0,0 +1,118 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.tvial.ccspark.aggregation;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+
+public class UsageHistoryTests {
+    final static long BASE_MILLIS = 1700000000000L;
+    final static long DAY_MILLIS = 24L * 3600 * 1000;
+
+    @Test
+    public void keepRecentPointsAsIs() {
+        UsageHistory history = new UsageHistory(1024 * 1024, BASE_MILLIS);
+
+        history.add("1", BASE_MILLIS + 10000, 0.5, 0.01);
+        history.add("1", BASE_MILLIS + 20000, 0.25, 0.02);
+        history.add("2", BASE_MILLIS + 20000, 1.0, 0.05);
+
+        List<UsagePoint> points = history.getSeries("1", BASE_MILLIS, BASE_MILLIS + 60000);
+        assertEquals(2, points.size());
+        assertEquals(BASE_MILLIS + 10000, points.get(0).timestampMillis);
+        assertEquals(0.5, points.get(0).load, 1e-6);
+        assertEquals(0.02, points.get(1).energy_Wh, 1e-6);
+
+        assertEquals(1, history.getSeries("1", BASE_MILLIS + 15000, BASE_MILLIS + 60000).size());
+        assertEquals(0, history.getSeries("3", BASE_MILLIS, BASE_MILLIS + 60000).size());
+    }
+
+    @Test
+    public void downsampleOlderPoints() {
+        UsageHistory history = new UsageHistory(1024 * 1024, BASE_MILLIS);
+
+        // One point every 10 s for a day
+        int count = (int)(DAY_MILLIS / 10000);
+        for (int i = 0; i < count; i++) {
+            history.add("1", BASE_MILLIS + 10000L * i, 0.5, 0.001);
+        }
+
+        List<UsagePoint> points = history.getSeries("1", BASE_MILLIS, BASE_MILLIS + DAY_MILLIS);
+        int capacity = 0;
+        for (int tierCapacity : UsageHistory.TIER_CAPACITIES) {
+            capacity += tierCapacity;
+        }
+        assertTrue(points.size() <= capacity);
+
+        // Oldest first, and nothing lost over the whole day
+        double energy = 0.0;
+        for (int i = 0; i < points.size(); i++) {
+            assertEquals(0.5, points.get(i).load, 1e-6);
+            energy += points.get(i).energy_Wh;
+            if (i > 0) {
+                assertTrue(points.get(i).timestampMillis > points.get(i - 1).timestampMillis);
+            }
+        }
+        assertEquals(count * 0.001, energy, 1e-3);
+        assertEquals(BASE_MILLIS, points.get(0).timestampMillis);
+        assertEquals(15 * 60 * 1000L, points.get(1).timestampMillis - points.get(0).timestampMillis);
+    }
+
+    @Test
+    public void evictLeastRecentlyUpdatedExecutors() {
+        UsageHistory history = new UsageHistory(2 * UsageHistory.getBytesPerExecutor(), BASE_MILLIS);
+        assertEquals(2, history.getMaxExecutors());
+
+        history.add("1", BASE_MILLIS + 1000, 0.5, 0.01);
+        history.add("2", BASE_MILLIS + 2000, 0.5, 0.01);
+        history.add("1", BASE_MILLIS + 3000, 0.5, 0.01);
+        history.add("3", BASE_MILLIS + 4000, 0.5, 0.01);
+
+        assertEquals(2, history.getExecutorCount());
+        assertEquals(0, history.getSeries("2", BASE_MILLIS, BASE_MILLIS + 10000).size());
+        assertEquals(2, history.getSeries("1", BASE_MILLIS, BASE_MILLIS + 10000).size());
+    }
+
+    @Test
+    public void fitManyExecutorsInDefaultBudget() {
+        // 2000 executors over 24 hours should stay within a few tens of MB
+        assertTrue(2000 * UsageHistory.getBytesPerExecutor() < 32L * 1024 * 1024);
+    }
+
+    @Test
+    public void aggregateClusterSeries() {
+        UsageHistory history = new UsageHistory(1024 * 1024, BASE_MILLIS);
+
+        history.add("1", BASE_MILLIS + 10000, 0.5, 0.01);
+        history.add("1", BASE_MILLIS + 20000, 0.25, 0.02);
+        history.add("2", BASE_MILLIS + 20000, 1.0, 0.05);
+        history.add("2", BASE_MILLIS + 70000, 0.5, 0.04);
+
+        List<UsagePoint> series = history.getClusterSeries(BASE_MILLIS, BASE_MILLIS + 120000, 60000);
+        assertEquals(2, series.size());
+        assertEquals(0.375 + 1.0, series.get(0).load, 1e-6);
+        assertEquals(0.08, series.get(0).energy_Wh, 1e-6);
+        assertEquals(BASE_MILLIS + 60000, series.get(1).timestampMillis);
+        assertEquals(0.5, series.get(1).load, 1e-6);
+        assertEquals(0.04, series.get(1).energy_Wh, 1e-6);
+    }
+}
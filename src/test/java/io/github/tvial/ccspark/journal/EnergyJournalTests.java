@@ -0,0 +1,134 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.tvial.ccspark.journal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+
+class EnergyJournalTests {
+    @TempDir
+    Path journalPath;
+
+    private EnergyJournal writeJournal(int segmentRecords, int count) throws IOException {
+        EnergyJournal journal = new EnergyJournal(journalPath.toString(), segmentRecords, 1000);
+        for (int i = 0; i < count; i++) {
+            assertTrue(journal.append(1000L * i, String.valueOf(i % 3), 0.5, 0.001 * i, 0.0001 * i));
+        }
+        journal.close();
+        return journal;
+    }
+
+    private List<JournalRecord> readJournal(long fromMillis, long toMillis) throws IOException {
+        List<JournalRecord> records = new ArrayList<JournalRecord>();
+        new EnergyJournalReader(journalPath.toString()).read(fromMillis, toMillis, records::add);
+        return records;
+    }
+
+    @Test
+    void writeAndReadBack() throws IOException {
+        EnergyJournal journal = writeJournal(4, 10);
+        assertEquals(10L, journal.getWrittenCount());
+        assertEquals(0L, journal.getDroppedCount());
+        // Appended once closed
+        assertFalse(journal.append(0L, "1", 0.5, 1.0, 0.0));
+        assertEquals(1L, journal.getDroppedCount());
+
+        // 10 records in segments of 4
+        assertTrue(new File(journalPath.toFile(), EnergyJournal.segmentName(2)).exists());
+        assertEquals(3 * EnergyJournal.INDEX_ENTRY_BYTES, new File(journalPath.toFile(), EnergyJournal.INDEX_FILE).length());
+
+        List<JournalRecord> records = readJournal(Long.MIN_VALUE, Long.MAX_VALUE);
+        assertEquals(10, records.size());
+        for (int i = 0; i < 10; i++) {
+            JournalRecord record = records.get(i);
+            assertEquals(1000L * i, record.timestampMillis);
+            assertEquals(String.valueOf(i % 3), record.executorId);
+            assertEquals(0.5, record.load);
+            assertEquals(0.001 * i, record.energy_Wh);
+            assertEquals(0.0001 * i, record.memoryEnergy_Wh);
+        }
+    }
+
+    @Test
+    void readTimeRange() throws IOException {
+        writeJournal(4, 10);
+
+        List<JournalRecord> records = readJournal(2500L, 6000L);
+        assertEquals(3, records.size());
+        assertEquals(3000L, records.get(0).timestampMillis);
+        assertEquals(5000L, records.get(2).timestampMillis);
+
+        assertEquals(0, readJournal(20000L, 30000L).size());
+    }
+
+    @Test
+    void readWithoutIndex() throws IOException {
+        writeJournal(4, 10);
+        // As if the driver had died: the segments alone are enough
+        Files.delete(journalPath.resolve(EnergyJournal.INDEX_FILE));
+
+        assertEquals(10, readJournal(Long.MIN_VALUE, Long.MAX_VALUE).size());
+        assertEquals(2, readJournal(8000L, Long.MAX_VALUE).size());
+    }
+
+    @Test
+    void appendToExistingJournal() throws IOException {
+        writeJournal(4, 5);
+        writeJournal(4, 5);
+
+        // The second run starts a new segment, and keeps the records of the first one
+        assertEquals(10, readJournal(Long.MIN_VALUE, Long.MAX_VALUE).size());
+        assertTrue(new File(journalPath.toFile(), EnergyJournal.segmentName(3)).exists());
+    }
+
+    @Test
+    void encodeExecutorIds() {
+        assertEquals("12", JournalRecord.decodeExecutorId(JournalRecord.encodeExecutorId("12")));
+        assertEquals("driver", JournalRecord.decodeExecutorId(JournalRecord.encodeExecutorId("driver")));
+        assertEquals("unknown", JournalRecord.decodeExecutorId(JournalRecord.encodeExecutorId(null)));
+        assertEquals("unknown", JournalRecord.decodeExecutorId(JournalRecord.encodeExecutorId("host-1")));
+    }
+
+    @Test
+    void writeCSV() throws IOException {
+        writeJournal(4, 3);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(bytes, true, "UTF-8");
+        long count = new EnergyJournalReader(journalPath.toString()).writeCSV(Long.MIN_VALUE, Long.MAX_VALUE, out);
+
+        assertEquals(3L, count);
+        String[] lines = new String(bytes.toByteArray(), StandardCharsets.UTF_8).split("\n");
+        assertEquals(EnergyJournalReader.CSV_HEADER, lines[0]);
+        assertEquals("1000,1,0.5,0.001,1.0E-4", lines[2]);
+    }
+}
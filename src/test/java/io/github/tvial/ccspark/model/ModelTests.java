@@ -17,6 +17,18 @@
 package io.github.tvial.ccspark.model;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
 
 import org.junit.jupiter.api.Test;
 
@@ -60,4 +72,200 @@ class ModelTests {
 
         assertEquals(expected, actual);
     }
-}
\ No newline at end of file
+
+    private static byte[] serialize(Object object) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(object);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static Object deserialize(byte[] bytes) throws IOException, ClassNotFoundException {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+        try {
+            return in.readObject();
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    @Test
+    void serializeUsageMetrics() throws IOException, ClassNotFoundException {
+        ExecutorUsageMetrics metrics = new ExecutorUsageMetrics(0.5, 1.5, 1000L);
+        metrics.executorId = "12";
+        metrics.sequence = 42L;
+        metrics.endMillis = 1700000000000L;
+
+        byte[] bytes = serialize(metrics);
+        ExecutorUsageMetrics copy = (ExecutorUsageMetrics)deserialize(bytes);
+
+        assertEquals("12", copy.executorId);
+        assertEquals(42L, copy.sequence);
+        assertEquals(0.5, copy.load);
+        assertEquals(1.5, copy.energy_Wh);
+        assertEquals(1000L, copy.intervalMillis);
+        assertEquals(1700000000000L, copy.endMillis);
+        assertNull(copy.cores);
+        assertNull(copy.stages);
+        assertEquals(Sample.UNKNOWN_MEMORY, copy.rssBytes);
+
+        // No field descriptors: little more than the class name and the data
+        assertTrue(bytes.length < 130, String.format("%d bytes", bytes.length));
+    }
+
+    @Test
+    void serializeUsageMetricsBatch() throws IOException, ClassNotFoundException {
+        StageUsage stage = new StageUsage(3, 1);
+        stage.energy_Wh = 0.25;
+        stage.taskCount = 2L;
+        stage.recordsRead = 1000L;
+        stage.shuffleBytes = 4096L;
+
+        ExecutorUsageMetrics metrics = new ExecutorUsageMetrics(0.5, 1.5, 1000L);
+        metrics.cores = new CoreUsageSummary(8, 3, 0.9, 2, 1.8);
+        metrics.stages = new StageUsage[] { stage };
+        metrics.pluginCpuNanos = 1000L;
+        metrics.processCpuNanos = 50000L;
+        metrics.setCumulativeCounters(10.0, 2000L, 100000L);
+        metrics.threads = new ThreadCategoryUsage();
+        metrics.threads.cpuTimes[ThreadCategory.GC.ordinal()] = 12L;
+        metrics.threads.energies_Wh[ThreadCategory.GC.ordinal()] = 0.125;
+        metrics.memoryEnergy_Wh = 0.1;
+        metrics.rssBytes = 1L << 30;
+        metrics.swapBytes = 0L;
+
+        ExecutorUsageMetrics later = new ExecutorUsageMetrics(0.25, 0.5, 1000L);
+        later.memoryEnergy_Wh = 0.05;
+        later.rssBytes = 2L << 30;
+        later.swapBytes = 4096L;
+        metrics.endMillis = 1000L;
+        later.endMillis = 2000L;
+
+        ExecutorUsageMetricsBatch batch = new ExecutorUsageMetricsBatch();
+        batch.merge(metrics);
+        batch.merge(later);
+
+        Object copy = deserialize(serialize(batch));
+        assertInstanceOf(ExecutorUsageMetricsBatch.class, copy);
+
+        ExecutorUsageMetricsBatch batchCopy = (ExecutorUsageMetricsBatch)copy;
+        assertEquals(2, batchCopy.count);
+        assertNull(batchCopy.executorId);
+        assertEquals(0.375, batchCopy.load);
+        assertEquals(2.0, batchCopy.energy_Wh);
+        assertEquals(2000L, batchCopy.intervalMillis);
+        assertEquals(2000L, batchCopy.endMillis);
+        assertEquals(8, batchCopy.cores.coreCount);
+        assertEquals(1.8, batchCopy.cores.imbalance);
+        assertEquals(1, batchCopy.stages.length);
+        assertEquals(3, batchCopy.stages[0].stageId);
+        assertEquals(1000L, batchCopy.stages[0].recordsRead);
+        assertEquals(4096L, batchCopy.stages[0].shuffleBytes);
+        assertEquals(1000L, batchCopy.pluginCpuNanos);
+        assertEquals(50000L, batchCopy.processCpuNanos);
+        assertTrue(batchCopy.hasCumulativeCounters);
+        assertEquals(10.0, batchCopy.cumulativeEnergy_Wh);
+        assertEquals(2000L, batchCopy.cumulativePluginCpuNanos);
+        assertEquals(100000L, batchCopy.cumulativeProcessCpuNanos);
+        assertEquals(12L, batchCopy.threads.getCpuTime(ThreadCategory.GC));
+        assertEquals(0.125, batchCopy.threads.getEnergy_Wh(ThreadCategory.GC));
+        assertEquals(0.15, batchCopy.memoryEnergy_Wh, 1e-9);
+        assertEquals(2L << 30, batchCopy.rssBytes);
+        assertEquals(4096L, batchCopy.swapBytes);
+    }
+
+    // Same fixed fields as ExecutorUsageMetrics, with the default serialization
+    static class SerializableUsageMetrics implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        String executorId;
+        long sequence;
+        double load;
+        double energy_Wh;
+        long intervalMillis;
+        long endMillis;
+        int count;
+    }
+
+    @Test
+    void usageMetricsSmallerThanDefaultSerialization() throws IOException {
+        ExecutorUsageMetrics metrics = new ExecutorUsageMetrics(0.5, 0.001, 1000L);
+        metrics.executorId = "12";
+        metrics.sequence = 42L;
+
+        SerializableUsageMetrics serializable = new SerializableUsageMetrics();
+        serializable.executorId = "12";
+        serializable.sequence = 42L;
+        serializable.load = 0.5;
+        serializable.energy_Wh = 0.001;
+        serializable.intervalMillis = 1000L;
+        serializable.endMillis = 1700000000000L;
+        serializable.count = 1;
+
+        int size = serialize(metrics).length;
+        int defaultSize = serialize(serializable).length;
+        assertTrue(size < defaultSize, String.format("%d bytes, against %d bytes", size, defaultSize));
+    }
+
+    private static ObjectInputStream encodeFixedFields(int version, int flags, int count) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeByte(version);
+        out.writeByte(flags);
+        out.writeLong(7L);
+        out.writeDouble(0.5);
+        out.writeDouble(1.5);
+        out.writeLong(3000L);
+        out.writeLong(4000L);
+        out.writeInt(count);
+        if ((flags & ExecutorUsageMetrics.HAS_EXECUTOR_ID) != 0) {
+            out.writeUTF("12");
+        }
+        // An optional part from a later writer, unknown to this reader
+        out.writeDouble(42.0);
+        out.writeLong(42L);
+        out.close();
+        return new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+
+    @Test
+    void rejectNewerVersion() throws IOException {
+        ObjectInputStream in = encodeFixedFields(ExecutorUsageMetrics.VERSION + 1, 0, 3);
+
+        assertThrows(InvalidClassException.class, () -> new ExecutorUsageMetricsBatch().readExternal(in));
+    }
+
+    @Test
+    void ignoreUnknownParts() throws IOException {
+        int unknownFlag = 128;
+        ObjectInputStream in = encodeFixedFields(
+            ExecutorUsageMetrics.VERSION, ExecutorUsageMetrics.HAS_EXECUTOR_ID | unknownFlag, 3
+        );
+
+        ExecutorUsageMetricsBatch batch = new ExecutorUsageMetricsBatch();
+        batch.readExternal(in);
+
+        assertEquals(3, batch.count);
+        assertEquals("12", batch.executorId);
+        assertEquals(7L, batch.sequence);
+        assertEquals(0.5, batch.load);
+        assertEquals(1.5, batch.energy_Wh);
+        assertEquals(3000L, batch.intervalMillis);
+        assertEquals(4000L, batch.endMillis);
+        assertNull(batch.stages);
+        assertEquals(Sample.UNKNOWN_MEMORY, batch.rssBytes);
+    }
+
+    @Test
+    void classifyThreads() {
+        assertEquals(ThreadCategory.TASK, ThreadCategory.fromThreadName("Executor task l"));
+        assertEquals(ThreadCategory.GC, ThreadCategory.fromThreadName("GC Thread#3"));
+        assertEquals(ThreadCategory.GC, ThreadCategory.fromThreadName("G1 Conc#0"));
+        assertEquals(ThreadCategory.COMPILER, ThreadCategory.fromThreadName("C1 CompilerThre"));
+        assertEquals(ThreadCategory.SHUFFLE, ThreadCategory.fromThreadName("shuffle-client-"));
+        assertEquals(ThreadCategory.SHUFFLE, ThreadCategory.fromThreadName("rpc-server-4-1"));
+        assertEquals(ThreadCategory.OTHER, ThreadCategory.fromThreadName("java"));
+    }
+}
@@ -0,0 +1,152 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.tvial.ccspark.monitoring;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import io.github.tvial.ccspark.model.CPUScheduling;
+import io.github.tvial.ccspark.model.ExecutorUsageMetrics;
+import io.github.tvial.ccspark.model.ProcessScheduling;
+import io.github.tvial.ccspark.model.Sample;
+import io.github.tvial.ccspark.sampling.SampleProvider;
+
+
+public class AdaptiveSamplingSchedulerTests {
+    UsageMetricsSink sink = new UsageMetricsSink() {
+        public void send(ExecutorUsageMetrics usage) {
+        }
+    };
+
+    AdaptiveSamplingScheduler scheduler = new AdaptiveSamplingScheduler(
+        new UsageMonitor(() -> null, sink, 100.0), 1000L, 8000L, 0.1
+    );
+
+    @Test
+    public void backOffWhenLoadIsStable() {
+        assertEquals(2000L, scheduler.nextPeriod(1000L, 0.5, 0.52, false));
+        assertEquals(8000L, scheduler.nextPeriod(4000L, 0.5, 0.5, false));
+        assertEquals(8000L, scheduler.nextPeriod(8000L, 0.0, 0.0, false));
+    }
+
+    @Test
+    public void tightenWhenLoadChanges() {
+        assertEquals(1000L, scheduler.nextPeriod(8000L, 0.1, 0.5, false));
+        assertEquals(1000L, scheduler.nextPeriod(8000L, 0.5, 0.1, false));
+    }
+
+    @Test
+    public void tightenOnActivity() {
+        assertEquals(1000L, scheduler.nextPeriod(8000L, 0.5, 0.5, true));
+    }
+
+    @Test
+    public void keepRunningAfterFailures() throws InterruptedException {
+        AtomicInteger calls = new AtomicInteger(0);
+        SampleProvider failingProvider = new SampleProvider() {
+            public Sample sample() throws IOException {
+                if (calls.incrementAndGet() % 2 == 0) {
+                    throw new IllegalStateException("Unexpected");
+                }
+                return new Sample(calls.get(), new CPUScheduling(calls.get(), 0L, 0L), new ProcessScheduling(0L, 0L, 0L, 0L));
+            }
+        };
+        UsageMonitor monitor = new UsageMonitor(failingProvider, sink, 100.0);
+        monitor.initialize();
+
+        AdaptiveSamplingScheduler fastScheduler = new AdaptiveSamplingScheduler(monitor, 5L, 5L, 0.1);
+        fastScheduler.start();
+        Thread.sleep(200L);
+        fastScheduler.shutdown();
+
+        assertTrue(calls.get() > 4, String.format("%d calls", calls.get()));
+    }
+
+    @Test
+    public void completeCurrentRunOnShutdown() throws InterruptedException {
+        CountDownLatch sampling = new CountDownLatch(1);
+        AtomicBoolean interrupted = new AtomicBoolean(false);
+        AtomicInteger calls = new AtomicInteger(0);
+        SampleProvider slowProvider = new SampleProvider() {
+            public Sample sample() throws IOException {
+                if (calls.incrementAndGet() > 1) {
+                    sampling.countDown();
+                    try {
+                        Thread.sleep(100L);
+                    }
+                    catch (InterruptedException e) {
+                        interrupted.set(true);
+                    }
+                }
+                return new Sample(calls.get(), new CPUScheduling(calls.get(), 0L, 0L), new ProcessScheduling(0L, 0L, 0L, 0L));
+            }
+        };
+        UsageMonitor monitor = new UsageMonitor(slowProvider, sink, 100.0);
+        monitor.initialize();
+
+        AdaptiveSamplingScheduler slowScheduler = new AdaptiveSamplingScheduler(monitor, 5L, 1000L, 0.1);
+        slowScheduler.start();
+        sampling.await();
+        assertTrue(slowScheduler.shutdown());
+        assertFalse(interrupted.get());
+
+        // Tasks ending after the shutdown
+        slowScheduler.notifyActivity();
+        slowScheduler.start();
+    }
+
+    @Test
+    public void reportRunStillGoingOnShutdown() throws InterruptedException {
+        CountDownLatch sampling = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger calls = new AtomicInteger(0);
+        SampleProvider blockedProvider = new SampleProvider() {
+            public Sample sample() throws IOException {
+                if (calls.incrementAndGet() > 1) {
+                    sampling.countDown();
+                    try {
+                        release.await();
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return new Sample(calls.get(), new CPUScheduling(calls.get(), 0L, 0L), new ProcessScheduling(0L, 0L, 0L, 0L));
+            }
+        };
+        UsageMonitor monitor = new UsageMonitor(blockedProvider, sink, 100.0);
+        monitor.initialize();
+
+        AdaptiveSamplingScheduler blockedScheduler = new AdaptiveSamplingScheduler(monitor, 5L, 10L, 0.1);
+        blockedScheduler.start();
+        sampling.await();
+        try {
+            assertFalse(blockedScheduler.shutdown());
+        }
+        finally {
+            release.countDown();
+        }
+    }
+}
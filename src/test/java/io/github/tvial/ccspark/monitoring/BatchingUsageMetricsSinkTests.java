@@ -0,0 +1,118 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.tvial.ccspark.monitoring;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import io.github.tvial.ccspark.model.ExecutorUsageMetrics;
+import io.github.tvial.ccspark.model.ExecutorUsageMetricsBatch;
+
+
+public class BatchingUsageMetricsSinkTests {
+    List<ExecutorUsageMetrics> collectedMetrics = new LinkedList<ExecutorUsageMetrics>();
+    boolean failing = false;
+    long now = 0L;
+
+    UsageMetricsSink delegate = new UsageMetricsSink() {
+        public void send(ExecutorUsageMetrics usage) throws IOException {
+            if (failing) {
+                throw new IOException("Driver unavailable");
+            }
+            collectedMetrics.add(usage);
+        }
+    };
+
+    BatchingUsageMetricsSink sink = new BatchingUsageMetricsSink(delegate, 10000L, 3) {
+        protected long currentTimeMillis() {
+            return now;
+        }
+    };
+
+    @Test
+    public void flushWhenBatchIsFull() throws IOException {
+        sink.send(new ExecutorUsageMetrics(0.5, 1.0, 1000L));
+        sink.send(new ExecutorUsageMetrics(0.2, 2.0, 3000L));
+        assertEquals(0, collectedMetrics.size());
+
+        sink.send(new ExecutorUsageMetrics(0.1, 3.0, 1000L));
+        assertEquals(1, collectedMetrics.size());
+
+        ExecutorUsageMetricsBatch batch = assertInstanceOf(ExecutorUsageMetricsBatch.class, collectedMetrics.get(0));
+        assertEquals(3, batch.count);
+        assertEquals(6.0, batch.energy_Wh, 1e-9);
+        assertEquals(5000L, batch.intervalMillis);
+        assertEquals(0.24, batch.load, 1e-9);
+    }
+
+    @Test
+    public void flushWhenIntervalElapsed() throws IOException {
+        sink.send(new ExecutorUsageMetrics(0.5, 1.0, 1000L));
+        now = 10000L;
+        sink.send(new ExecutorUsageMetrics(0.5, 1.0, 1000L));
+
+        assertEquals(1, collectedMetrics.size());
+        assertEquals(2.0, collectedMetrics.get(0).energy_Wh, 1e-9);
+    }
+
+    @Test
+    public void keepBatchWhenSendFails() throws IOException {
+        sink.send(new ExecutorUsageMetrics(0.5, 1.0, 1000L));
+        failing = true;
+        assertThrows(IOException.class, () -> sink.flush());
+
+        failing = false;
+        sink.send(new ExecutorUsageMetrics(0.5, 2.0, 1000L));
+        sink.flush();
+
+        assertEquals(1, collectedMetrics.size());
+        assertEquals(3.0, collectedMetrics.get(0).energy_Wh, 1e-9);
+    }
+
+    @Test
+    public void flushNothingWhenEmpty() throws IOException {
+        sink.flush();
+
+        assertEquals(0, collectedMetrics.size());
+    }
+
+    @Test
+    public void skipUnchangedBatches() throws IOException {
+        BatchingUsageMetricsSink onChangeSink = new BatchingUsageMetricsSink(delegate, 10000L, 2, true);
+
+        onChangeSink.send(new ExecutorUsageMetrics(0.0, 0.0, 1000L));
+        onChangeSink.send(new ExecutorUsageMetrics(0.0, 0.0, 1000L));
+        assertEquals(0, collectedMetrics.size());
+
+        onChangeSink.send(new ExecutorUsageMetrics(0.0, 0.0, 1000L));
+        onChangeSink.send(new ExecutorUsageMetrics(0.5, 1.0, 1000L));
+        assertEquals(1, collectedMetrics.size());
+        assertEquals(1.0, collectedMetrics.get(0).energy_Wh, 1e-9);
+
+        // An explicit flush sends anyway
+        onChangeSink.send(new ExecutorUsageMetrics(0.0, 0.0, 1000L));
+        onChangeSink.flush();
+        assertEquals(2, collectedMetrics.size());
+    }
+}
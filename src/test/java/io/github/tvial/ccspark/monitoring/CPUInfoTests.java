@@ -19,10 +19,21 @@ package io.github.tvial.ccspark.monitoring;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 import java.util.Optional;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 import io.github.tvial.ccspark.monitoring.CPUInfo;
 
@@ -68,4 +79,73 @@ public class CPUInfoTests {
         Optional<Double> tdp = info.getTDP("Zebulon 3000");
         assertFalse(tdp.isPresent());
     }
+
+    @Test
+    public void getTDPFromFuzzyCPUModel() {
+        CPUInfo info = new CPUInfo();
+
+        Optional<TDPMatch> match = info.getTDPMatch("AMD EPYC 7763 64-Core Processor");
+        assertTrue(match.isPresent());
+        assertEquals("amd epyc 7763", match.get().cpuModel);
+        assertEquals(280.0, match.get().tdp);
+
+        match = info.getTDPMatch("11th Gen Intel(R) Core(TM) i7-1185G7 @ 3.00GHz");
+        assertTrue(match.isPresent());
+        assertEquals("intel core i7-1185g7", match.get().cpuModel);
+        assertTrue(match.get().score < 1.0);
+    }
+
+    @Test
+    public void applyFuzzyMatchThreshold() {
+        assertTrue(new CPUInfo("/proc/cpuinfo", null, 0.3).getTDP("Zebulon 3000").isPresent());
+        assertFalse(new CPUInfo("/proc/cpuinfo", null, 0.9).getTDP("11th Gen Intel(R) Core(TM) i7-1185G7 @ 3.00GHz").isPresent());
+    }
+
+    @Test
+    public void getTDPFromAdditionalDatabase() {
+        CPUInfo info = new CPUInfo("/proc/cpuinfo", "src/test/resources/tdp_additions.csv");
+
+        assertEquals(Optional.of(42.0), info.getTDP("Zebulon 3000"));
+        assertEquals(Optional.of(25.0), info.getTDP("Intel(R) Core(TM) i7-8550U CPU @ 1.80GHz"));
+        assertEquals(Optional.of(35.0), info.getTDP("AMD A10-4600M"));
+    }
+
+    @Test
+    public void getTDPFromUnreadableAdditionalDatabase(@TempDir Path directory) throws IOException {
+        // Missing, then truncated after the first of two entries
+        CPUInfo missing = new CPUInfo("/proc/cpuinfo", directory.resolve("missing.csv").toString());
+        assertEquals(Optional.of(15.0), missing.getTDP("Intel(R) Core(TM) i7-8550U CPU @ 1.80GHz"));
+
+        Map<String, Double> additions = new HashMap<String, Double>();
+        additions.put("zebulon 3000", 42.0);
+        byte[] index = TDPDatabase.writeIndex(additions);
+        // Claims a second entry
+        index[7] = 2;
+        Path corrupt = directory.resolve("corrupt.bin");
+        Files.write(corrupt, Arrays.copyOf(index, index.length + 3));
+
+        CPUInfo truncated = new CPUInfo("/proc/cpuinfo", corrupt.toString());
+        assertEquals(Optional.of(42.0), truncated.getTDP("Zebulon 3000"));
+        assertEquals(Optional.of(15.0), truncated.getTDP("Intel(R) Core(TM) i7-8550U CPU @ 1.80GHz"));
+    }
+
+    @Test
+    public void rememberTDPLookups() {
+        TDPDatabase database = TDPDatabase.getDefault();
+
+        Optional<TDPMatch> first = database.match("Intel(R) Core(TM) i7-8550U CPU @ 1.80GHz");
+        Optional<TDPMatch> second = database.match("Intel(R) Core(TM) i7-8550U CPU @ 1.80GHz");
+        assertSame(first, second);
+    }
+
+    @Test
+    public void buildTDPIndexFromCSV() throws IOException {
+        Map<String, Double> fromCSV = TDPDatabase.readCSV(new InputStreamReader(
+            CPUInfoTests.class.getClassLoader().getResourceAsStream(TDPDatabase.CSV_RESOURCE)
+        ));
+        Map<String, Double> fromIndex = TDPDatabase.readIndex(ByteBuffer.wrap(TDPDatabase.writeIndex(fromCSV)));
+
+        assertEquals(fromCSV, fromIndex);
+        assertEquals(fromCSV.size(), TDPDatabase.getDefault().size());
+    }
 }
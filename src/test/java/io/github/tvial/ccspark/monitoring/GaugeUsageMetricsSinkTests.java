@@ -0,0 +1,65 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.tvial.ccspark.monitoring;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.codahale.metrics.MetricRegistry;
+
+import io.github.tvial.ccspark.model.ExecutorUsageMetrics;
+
+
+public class GaugeUsageMetricsSinkTests {
+    List<ExecutorUsageMetrics> collectedMetrics = new LinkedList<ExecutorUsageMetrics>();
+    long now = 0L;
+
+    GaugeUsageMetricsSink sink = new GaugeUsageMetricsSink(usage -> collectedMetrics.add(usage)) {
+        protected long currentTimeMillis() {
+            return now;
+        }
+    };
+
+    @Test
+    public void exposeLatestReadings() throws IOException {
+        MetricRegistry registry = new MetricRegistry();
+        sink.registerMetrics(registry);
+
+        assertEquals(-1L, registry.getGauges().get("usage.sampleAge_ms").getValue());
+
+        now = 1000L;
+        sink.send(new ExecutorUsageMetrics(0.5, 1.0, 1000L));
+        now = 2000L;
+        sink.send(new ExecutorUsageMetrics(0.25, 2.0, 1000L));
+        now = 2500L;
+
+        assertEquals(2, collectedMetrics.size());
+        assertEquals(0.25, registry.getGauges().get("usage.load").getValue());
+        assertEquals(3.0, registry.getGauges().get("usage.energy_Wh").getValue());
+        assertEquals(500L, registry.getGauges().get("usage.sampleAge_ms").getValue());
+
+        // Boxed once per reading
+        assertSame(registry.getGauges().get("usage.load").getValue(), registry.getGauges().get("usage.load").getValue());
+        assertSame(registry.getGauges().get("usage.energy_Wh").getValue(), registry.getGauges().get("usage.energy_Wh").getValue());
+    }
+}
@@ -0,0 +1,85 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.tvial.ccspark.monitoring;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.junit.jupiter.api.Test;
+
+import io.github.tvial.ccspark.model.StageUsage;
+
+
+public class TaskEnergyTrackerTests {
+    TaskEnergyTracker tracker = new TaskEnergyTracker();
+
+    private static StageUsage[] sorted(StageUsage[] stages) {
+        Arrays.sort(stages, Comparator.comparingInt((StageUsage stage) -> stage.stageId));
+        return stages;
+    }
+
+    @Test
+    public void splitEnergyByRunningTime() {
+        tracker.taskStarted(1L, 10, 0, 0L);
+        tracker.taskStarted(2L, 11, 0, 500L);
+        tracker.taskEnded(2L, 750L, 100L, 200L, 1000L);
+
+        tracker.attribute(0L, 1000L, 1.25);
+        StageUsage[] stages = sorted(tracker.drainStageUsage());
+
+        assertEquals(2, stages.length);
+        assertEquals(10, stages[0].stageId);
+        assertEquals(1.0, stages[0].energy_Wh, 1e-9);
+        assertEquals(0, stages[0].taskCount);
+
+        assertEquals(11, stages[1].stageId);
+        assertEquals(0.25, stages[1].energy_Wh, 1e-9);
+        assertEquals(1, stages[1].taskCount);
+        assertEquals(100L, stages[1].recordsRead);
+        assertEquals(200L, stages[1].recordsWritten);
+        assertEquals(1000L, stages[1].shuffleBytes);
+
+        assertEquals(1, tracker.getRunningTaskCount());
+    }
+
+    @Test
+    public void keepTaskUntilItsEndIsAttributed() {
+        tracker.taskStarted(1L, 10, 0, 0L);
+        tracker.attribute(0L, 1000L, 1.0);
+        tracker.drainStageUsage();
+
+        tracker.taskEnded(1L, 1500L, 10L, 0L, 0L);
+        tracker.attribute(1000L, 2000L, 1.0);
+        StageUsage[] stages = tracker.drainStageUsage();
+
+        assertEquals(1, stages.length);
+        assertEquals(1.0, stages[0].energy_Wh, 1e-9);
+        assertEquals(1, stages[0].taskCount);
+        assertEquals(1e5, stages[0].getEnergyPerMillionRecords_Wh(), 1e-9);
+        assertEquals(0, tracker.getRunningTaskCount());
+    }
+
+    @Test
+    public void noStageWhenIdle() {
+        tracker.attribute(0L, 1000L, 1.0);
+
+        assertNull(tracker.drainStageUsage());
+    }
+}
@@ -17,6 +17,8 @@
 package io.github.tvial.ccspark.monitoring;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.IOException;
 import java.util.LinkedList;
@@ -24,10 +26,17 @@ import java.util.List;
 
 import org.junit.jupiter.api.Test;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+
 import io.github.tvial.ccspark.model.CPUScheduling;
+import io.github.tvial.ccspark.model.CoreSchedulings;
+import io.github.tvial.ccspark.model.CoreUsageSummary;
 import io.github.tvial.ccspark.model.ExecutorUsageMetrics;
 import io.github.tvial.ccspark.model.ProcessScheduling;
 import io.github.tvial.ccspark.model.Sample;
+import io.github.tvial.ccspark.model.ThreadCategory;
+import io.github.tvial.ccspark.model.ThreadCategoryUsage;
 import io.github.tvial.ccspark.monitoring.UsageMetricsSink;
 import io.github.tvial.ccspark.monitoring.UsageMonitor;
 import io.github.tvial.ccspark.sampling.InMemorySampleProvider;
@@ -100,6 +109,7 @@ public class UsageMonitorTests {
         expected = new ExecutorUsageMetrics(0.86666667, 0.72222222);
         usage = monitor.sampleUsage();
         assertUsageMetricsEqual(expected, usage);
+        assertEquals(30000L, usage.endMillis);
 
         expected = new ExecutorUsageMetrics(0.8, 0.3333333);
         usage = monitor.sampleUsage();
@@ -125,5 +135,176 @@ public class UsageMonitorTests {
         expected = new ExecutorUsageMetrics(0.8, 0.3333333);
         usage = collectedMetrics.get(1);
         assertUsageMetricsEqual(expected, usage);
+
+        assertTrue(usage.hasCumulativeCounters);
+        assertEquals(0.72222222 + 0.3333333, usage.cumulativeEnergy_Wh, 1e-5);
+    }
+
+    @Test
+    public void computeUsageMetricsFromMeasuredEnergy() {
+        Sample before = new Sample(10000L, new CPUScheduling(50, 60, 70), new ProcessScheduling(20, 30, 10, 20));
+        before.packageEnergyMicroJoules = 1000000L;
+        before.dramEnergyMicroJoules = 500000L;
+
+        Sample after = new Sample(30000L, new CPUScheduling(80, 75, 100), new ProcessScheduling(50, 40, 20, 35));
+        after.packageEnergyMicroJoules = 3001000000L;
+        after.dramEnergyMicroJoules = 600500000L;
+
+        // 3600 J measured, of which the executor takes its load
+        ExecutorUsageMetrics expected = new ExecutorUsageMetrics(0.86666667, 0.86666667);
+        assertUsageMetricsEqual(expected, monitor.computeUsageMetrics(before, after));
+    }
+
+    @Test
+    public void computeMemoryEnergyFromFootprint() {
+        Sample before = new Sample(10000L, new CPUScheduling(50, 60, 70), new ProcessScheduling(20, 30, 10, 20));
+        before.rssBytes = 3L * 1024 * 1024 * 1024;
+        Sample after = new Sample(30000L, new CPUScheduling(80, 75, 100), new ProcessScheduling(50, 40, 20, 35));
+        after.rssBytes = 5L * 1024 * 1024 * 1024;
+        after.swapBytes = 0L;
+
+        // 4 GB on average, at 0.375 W/GB over 20 s, on top of the CPU energy
+        UsageMonitor withMemory = new UsageMonitor(new InMemorySampleProvider(samples), sink, 150.0, 0.375, null, null);
+        ExecutorUsageMetrics usage = withMemory.computeUsageMetrics(before, after);
+        double memoryEnergy = 4 * 0.375 * 20 / 3600.;
+        assertEquals(memoryEnergy, usage.memoryEnergy_Wh, 1e-9);
+        assertEquals(0.72222222 + memoryEnergy, usage.energy_Wh, 1e-5);
+        assertEquals(after.rssBytes, usage.rssBytes);
+        assertEquals(0L, usage.swapBytes);
+    }
+
+    @Test
+    public void computeMemoryEnergyFromMeasuredDRAM() {
+        Sample before = new Sample(10000L, new CPUScheduling(50, 60, 70), new ProcessScheduling(20, 30, 10, 20));
+        before.packageEnergyMicroJoules = 1000000L;
+        before.dramEnergyMicroJoules = 500000L;
+        before.rssBytes = 1000L;
+        Sample after = new Sample(30000L, new CPUScheduling(80, 75, 100), new ProcessScheduling(50, 40, 20, 35));
+        after.packageEnergyMicroJoules = 3001000000L;
+        after.dramEnergyMicroJoules = 600500000L;
+        after.rssBytes = 3000L;
+        after.memTotalBytes = 8000L;
+
+        // The package energy goes by load, the 600 J of DRAM by memory share (a quarter)
+        ExecutorUsageMetrics usage = monitor.computeUsageMetrics(before, after);
+        double memoryEnergy = 600. / 4 / 3600.;
+        assertEquals(memoryEnergy, usage.memoryEnergy_Wh, 1e-9);
+        assertEquals(0.86666667 * 3000. / 3600. + memoryEnergy, usage.energy_Wh, 1e-5);
+    }
+
+    @Test
+    public void computeUsageMetricsWithFrequencyModel() {
+        Sample before = new Sample(10000L, new CPUScheduling(50, 60, 70), new ProcessScheduling(20, 30, 10, 20));
+        before.cpuFrequencyKHz = 1000000L;
+        before.baseCpuFrequencyKHz = 4000000L;
+        Sample after = new Sample(30000L, new CPUScheduling(80, 75, 100), new ProcessScheduling(50, 40, 20, 35));
+        after.cpuFrequencyKHz = 3000000L;
+        after.baseCpuFrequencyKHz = 4000000L;
+
+        // Half the base frequency on average: 30% static, plus 70% divided by 4
+        EnergyModel model = new FrequencyScaledEnergyModel(150.0, 0.3, 2.0);
+        UsageMonitor scaled = new UsageMonitor(new InMemorySampleProvider(samples), sink, model, 0.0, null, null);
+        assertEquals(0.72222222 * (0.3 + 0.7 / 4), scaled.computeUsageMetrics(before, after).energy_Wh, 1e-5);
+
+        // Turbo, above the base frequency: over the TDP
+        before.cpuFrequencyKHz = 6000000L;
+        after.cpuFrequencyKHz = 6000000L;
+        assertEquals(0.72222222 * (0.3 + 0.7 * 2.25), scaled.computeUsageMetrics(before, after).energy_Wh, 1e-5);
+
+        // Same as the TDP model without frequencies
+        assertUsageMetricsEqual(monitor.computeUsageMetrics(samples[0], samples[1]), scaled.computeUsageMetrics(samples[0], samples[1]));
+    }
+
+    @Test
+    public void computeCoreUsage() {
+        CoreSchedulings before = new CoreSchedulings(2);
+        before.add(0, 100, 100);
+        before.add(1, 100, 100);
+        before.add(2, 100, 100);
+        before.add(3, 100, 100);
+
+        CoreSchedulings after = new CoreSchedulings(4);
+        after.add(0, 190, 110);
+        after.add(1, 150, 150);
+        after.add(2, 101, 199);
+        after.add(3, 100, 200);
+
+        CoreUsageSummary summary = monitor.computeCoreUsage(before, after);
+        assertEquals(4, summary.coreCount);
+        assertEquals(0, summary.busiestCore);
+        assertEquals(0.9, summary.busiestCoreLoad, 1e-9);
+        assertEquals(2, summary.idleCoreCount);
+        assertEquals(0.9 / ((0.9 + 0.5 + 0.01) / 4), summary.imbalance, 1e-9);
+    }
+
+    @Test
+    public void computeCoreUsageWhenCoresChange() {
+        CoreSchedulings before = new CoreSchedulings(1);
+        before.add(0, 100, 100);
+
+        CoreSchedulings after = new CoreSchedulings(2);
+        after.add(0, 200, 200);
+        after.add(1, 200, 200);
+
+        assertNull(monitor.computeCoreUsage(before, after));
+        assertNull(monitor.computeCoreUsage(null, after));
+    }
+
+    @Test
+    public void measureOverhead() {
+        MetricRegistry registry = new MetricRegistry();
+        InMemorySampleProvider provider = new InMemorySampleProvider(samples);
+        List<ExecutorUsageMetrics> sent = new LinkedList<ExecutorUsageMetrics>();
+        UsageMetricsSink failingSink = new UsageMetricsSink() {
+            public void send(ExecutorUsageMetrics usage) throws IOException {
+                sent.add(usage);
+                if (sent.size() == 2) {
+                    throw new IOException("Driver unreachable");
+                }
+            }
+        };
+        UsageMonitor overheadMonitor = new UsageMonitor(
+            provider, failingSink, 150.0, null, new MonitorOverhead(registry, provider)
+        );
+
+        overheadMonitor.initialize();
+        overheadMonitor.run();
+        overheadMonitor.run();
+        overheadMonitor.run();
+
+        assertEquals(3, registry.histogram("overhead.run_ns").getCount());
+        assertEquals(3, registry.histogram("overhead.sampling_ns").getCount());
+        assertEquals(3, registry.histogram("overhead.computation_ns").getCount());
+        assertEquals(3, registry.histogram("overhead.sink_ns").getCount());
+        assertEquals(1, registry.counter("overhead.sendFailures").getCount());
+        assertEquals(0L, registry.getGauges().get("overhead.bytesRead").getValue());
+
+        // What is reported to the driver adds up to the CPU time measured so far
+        long reported = 0L;
+        for (ExecutorUsageMetrics usage : sent) {
+            assertTrue(usage.pluginCpuNanos >= 0L);
+            assertTrue(usage.processCpuNanos >= 0L);
+            reported += usage.pluginCpuNanos;
+        }
+        Gauge<?> cpuTime = registry.getGauges().get("overhead.cpuTime_ns");
+        assertTrue(reported <= (Long)cpuTime.getValue());
+    }
+
+    @Test
+    public void computeThreadUsage() {
+        long[] before = { 100L, 50L, 10L, 0L, 20L };
+        long[] after = { 160L, 70L, 10L, 10L, 30L };
+
+        // 10 ticks of the process went to children
+        ThreadCategoryUsage usage = monitor.computeThreadUsage(before, after, 110L, 1.1);
+
+        assertEquals(60L, usage.getCpuTime(ThreadCategory.TASK));
+        assertEquals(0.6, usage.getEnergy_Wh(ThreadCategory.TASK), 1e-9);
+        assertEquals(0.2, usage.getEnergy_Wh(ThreadCategory.GC), 1e-9);
+        assertEquals(0.0, usage.getEnergy_Wh(ThreadCategory.COMPILER), 1e-9);
+        assertEquals(0.1, usage.getEnergy_Wh(ThreadCategory.SHUFFLE), 1e-9);
+        assertEquals(0.1, usage.getEnergy_Wh(ThreadCategory.OTHER), 1e-9);
+
+        assertNull(monitor.computeThreadUsage(null, after, 110L, 1.1));
     }
 }
@@ -0,0 +1,103 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package io.github.tvial.ccspark.monitoring;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.github.tvial.ccspark.model.CPUScheduling;
+import io.github.tvial.ccspark.model.ProcessScheduling;
+import io.github.tvial.ccspark.model.Sample;
+import io.github.tvial.ccspark.sampling.InMemorySampleProvider;
+import io.github.tvial.ccspark.sampling.RecordingSampleProvider;
+
+
+public class UsageReplayTests {
+    @TempDir
+    Path recordingPath;
+
+    Sample[] samples = {
+        new Sample(10000L, new CPUScheduling(50, 60, 70), new ProcessScheduling(20, 30, 10, 20)),
+        new Sample(30000L, new CPUScheduling(80, 75, 100), new ProcessScheduling(50, 40, 20, 35)),
+        new Sample(40000L, new CPUScheduling(85, 175, 120), new ProcessScheduling(80, 45, 40, 80))
+    };
+
+    private String record(String name) throws IOException {
+        String path = recordingPath.resolve(name).toString();
+        RecordingSampleProvider provider = new RecordingSampleProvider(new InMemorySampleProvider(samples), path);
+        for (int i = 0; i < samples.length; i++) {
+            provider.sample();
+        }
+        provider.close();
+        return path;
+    }
+
+    @Test
+    public void replayRecording() throws IOException {
+        String path = record("samples-1.ccs");
+
+        // Same figures as UsageMonitorTests, at 150 W
+        UsageReplay.Result result = new UsageReplay(150.0, UsageMonitor.DEFAULT_MEMORY_POWER_PER_GB).replay(path);
+        assertEquals(3L, result.sampleCount);
+        assertEquals(30000L, result.durationMillis);
+        assertEquals(0.72222222 + 0.3333333, result.energy_Wh, 1e-5);
+        assertEquals((0.86666667 * 20 + 0.8 * 10) / 30, result.getMeanLoad(), 1e-5);
+
+        // Re-estimated with another TDP
+        result = new UsageReplay(75.0, UsageMonitor.DEFAULT_MEMORY_POWER_PER_GB).replay(path);
+        assertEquals((0.72222222 + 0.3333333) / 2, result.energy_Wh, 1e-5);
+    }
+
+    @Test
+    public void replayMeasuredRecordingWithModel() throws IOException {
+        // 3600 J, i.e. 1 Wh, over each interval
+        for (int i = 0; i < samples.length; i++) {
+            samples[i].packageEnergyMicroJoules = i * 3600L * 1000000L;
+        }
+        String path = record("samples-rapl.ccs");
+
+        // The measures take precedence over the TDP
+        double measured = new UsageReplay(150.0, 0.0).replay(path).energy_Wh;
+        assertEquals(0.86666667 + 0.8, measured, 1e-5);
+        assertEquals(measured, new UsageReplay(75.0, 0.0).replay(path).energy_Wh, 1e-9);
+
+        // Unless they are ignored
+        assertEquals(0.72222222 + 0.3333333, new UsageReplay(150.0, 0.0, true).replay(path).energy_Wh, 1e-5);
+        assertEquals((0.72222222 + 0.3333333) / 2, new UsageReplay(75.0, 0.0, true).replay(path).energy_Wh, 1e-5);
+    }
+
+    @Test
+    public void replayRecordingsInParallel() throws IOException {
+        List<String> paths = new ArrayList<String>();
+        for (int i = 0; i < 5; i++) {
+            paths.add(record(String.format("samples-%d.ccs", i)));
+        }
+
+        List<UsageReplay.Result> results = new UsageReplay(150.0, 0.0).replayAll(paths, 3);
+        assertEquals(5, results.size());
+        for (int i = 0; i < 5; i++) {
+            assertEquals(paths.get(i), results.get(i).path);
+            assertEquals(0.72222222 + 0.3333333, results.get(i).energy_Wh, 1e-5);
+        }
+    }
+}
@@ -0,0 +1,378 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.tvial.ccspark.plugin;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.spark.scheduler.SparkListenerJobStart;
+import org.apache.spark.scheduler.StageInfo;
+import org.apache.spark.scheduler.TaskLocation;
+import org.apache.spark.sql.execution.ui.SparkListenerSQLExecutionEnd;
+import org.apache.spark.sql.execution.ui.SparkListenerSQLExecutionStart;
+import org.apache.spark.storage.RDDInfo;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.github.tvial.ccspark.aggregation.SQLExecutionUsage;
+import io.github.tvial.ccspark.aggregation.UsagePoint;
+import io.github.tvial.ccspark.journal.EnergyJournalReader;
+import io.github.tvial.ccspark.journal.JournalRecord;
+import io.github.tvial.ccspark.model.ExecutorUsageMetrics;
+import io.github.tvial.ccspark.model.ExecutorUsageMetricsBatch;
+import io.github.tvial.ccspark.model.StageUsage;
+import io.github.tvial.ccspark.model.ThreadCategory;
+import io.github.tvial.ccspark.model.ThreadCategoryUsage;
+import scala.Option;
+import scala.collection.JavaConverters;
+
+
+public class CCSparkDriverPluginTests {
+    final static int MESSAGES_PER_SENDER = 100000;
+
+    private static ExecutorUsageMetrics metrics(String executorId, double energy_Wh) {
+        ExecutorUsageMetrics metrics = new ExecutorUsageMetrics(0.5, energy_Wh, 1000L);
+        metrics.executorId = executorId;
+        return metrics;
+    }
+
+    // Each sender plays an executor sending 0.001 Wh per message, with cumulative counters
+    private static void receiveConcurrently(CCSparkDriverPlugin plugin, int senders) throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for (int i = 0; i < senders; i++) {
+            String executorId = String.valueOf(i);
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+                for (int j = 1; j <= MESSAGES_PER_SENDER; j++) {
+                    ExecutorUsageMetrics message = counters(executorId, j, 0.001 * j);
+                    message.energy_Wh = 0.001;
+                    plugin.receive(message);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    @Test
+    public void computeOverheadFromMessages() {
+        CCSparkDriverPlugin plugin = new CCSparkDriverPlugin();
+        assertEquals(0.0, plugin.getOverheadPercent(), 1e-9);
+
+        ExecutorUsageMetrics first = metrics("1", 1.0);
+        first.pluginCpuNanos = 2000L;
+        first.processCpuNanos = 1000000L;
+        ExecutorUsageMetrics second = metrics("2", 1.0);
+        second.pluginCpuNanos = 3000L;
+        second.processCpuNanos = 1500000L;
+
+        ExecutorUsageMetricsBatch batch = new ExecutorUsageMetricsBatch();
+        batch.merge(second);
+        batch.merge(second);
+        batch.executorId = "2";
+
+        plugin.receive(first);
+        plugin.receive(batch);
+        plugin.drain();
+
+        assertEquals(100.0 * 8000L / 4000000L, plugin.getOverheadPercent(), 1e-9);
+    }
+
+    @Test
+    public void sumMemoryEnergy() {
+        CCSparkDriverPlugin plugin = new CCSparkDriverPlugin();
+
+        ExecutorUsageMetrics first = metrics("1", 1.0);
+        first.memoryEnergy_Wh = 0.25;
+        ExecutorUsageMetrics second = metrics("2", 2.0);
+        second.memoryEnergy_Wh = 0.5;
+
+        plugin.receive(first);
+        plugin.receive(second);
+        plugin.receive(metrics("3", 1.0));
+        plugin.drain();
+
+        assertEquals(4.0, plugin.getAggregator().getTotalEnergy(), 1e-9);
+        assertEquals(0.75, plugin.getMemoryEnergy(), 1e-9);
+    }
+
+    @Test
+    public void journalReadings(@TempDir Path journalPath) throws IOException {
+        CCSparkDriverPlugin plugin = new CCSparkDriverPlugin();
+        Map<String, String> extraConf = new HashMap<String, String>();
+        extraConf.put(CCSparkDriverPlugin.JOURNAL_PATH_KEY, journalPath.toString());
+        plugin.openJournal(extraConf);
+
+        ExecutorUsageMetrics first = metrics("1", 1.0);
+        first.endMillis = 1699999999000L;
+        ExecutorUsageMetrics second = metrics("2", 2.0);
+        second.endMillis = 1700000000000L;
+        plugin.receive(first);
+        plugin.receive(second);
+        plugin.drain();
+        plugin.closeJournal();
+        assertEquals(2L, plugin.getJournal().getWrittenCount());
+
+        List<JournalRecord> records = new ArrayList<JournalRecord>();
+        new EnergyJournalReader(journalPath.toString()).read(records::add);
+        assertEquals(2, records.size());
+        assertEquals("2", records.get(1).executorId);
+        assertEquals(2.0, records.get(1).energy_Wh);
+        assertEquals(1700000000000L, records.get(1).timestampMillis);
+    }
+
+    @Test
+    public void stampHistoryWithReadingTime() {
+        CCSparkDriverPlugin plugin = new CCSparkDriverPlugin();
+        long readingMillis = System.currentTimeMillis() - 60000L;
+
+        ExecutorUsageMetrics reading = metrics("1", 1.0);
+        reading.endMillis = readingMillis;
+        plugin.receive(reading);
+        plugin.drain();
+
+        List<UsagePoint> points = plugin.getHistory().getSeries("1", readingMillis - 1000L, readingMillis + 1000L);
+        assertEquals(1, points.size());
+        long offset = readingMillis - points.get(0).timestampMillis;
+        assertTrue(offset >= 0L && offset < 1000L, String.format("%d ms", offset));
+    }
+
+    private static SparkListenerSQLExecutionStart sqlStart(long executionId, long rootExecutionId, String description) {
+        return new SparkListenerSQLExecutionStart(
+            executionId, Option.apply((Object)rootExecutionId), description, "", "", null, 1000L * executionId,
+            scala.collection.immutable.Map$.MODULE$.<String, String>empty(), new scala.collection.immutable.HashSet<String>()
+        );
+    }
+
+    private static SparkListenerJobStart jobStart(int jobId, long executionId, long rootExecutionId, int... stageIds) {
+        List<StageInfo> stages = new ArrayList<StageInfo>();
+        for (int stageId : stageIds) {
+            stages.add(new StageInfo(
+                stageId, 0, "stage " + stageId, 1, JavaConverters.asScalaBufferConverter(new ArrayList<RDDInfo>()).asScala(),
+                JavaConverters.asScalaBufferConverter(new ArrayList<Object>()).asScala(), "", null,
+                JavaConverters.asScalaBufferConverter(new ArrayList<scala.collection.Seq<TaskLocation>>()).asScala(),
+                Option.empty(), 0, false, 0
+            ));
+        }
+
+        Properties properties = new Properties();
+        properties.setProperty(SQLExecutionListener.EXECUTION_ID_KEY, String.valueOf(executionId));
+        properties.setProperty(SQLExecutionListener.EXECUTION_ROOT_ID_KEY, String.valueOf(rootExecutionId));
+        return new SparkListenerJobStart(jobId, 1000L * jobId, JavaConverters.asScalaBufferConverter(stages).asScala(), properties);
+    }
+
+    private static ExecutorUsageMetrics metrics(String executorId, double energy_Wh, StageUsage... stages) {
+        ExecutorUsageMetrics metrics = metrics(executorId, energy_Wh);
+        metrics.stages = stages;
+        return metrics;
+    }
+
+    private static StageUsage stage(int stageId, double energy_Wh) {
+        StageUsage stage = new StageUsage(stageId, 0);
+        stage.energy_Wh = energy_Wh;
+        return stage;
+    }
+
+    @Test
+    public void attributeEnergyToSQLExecutions() {
+        CCSparkDriverPlugin plugin = new CCSparkDriverPlugin();
+        SQLExecutionListener listener = new SQLExecutionListener(plugin.getSQLAggregator());
+        assertTrue(SQLExecutionListener.isSQLAvailable());
+
+        listener.onOtherEvent(sqlStart(1L, 1L, "SELECT 1"));
+        listener.onJobStart(jobStart(0, 1L, 1L, 0));
+        // A short query, over before the batch carrying its energy arrives
+        listener.onOtherEvent(new SparkListenerSQLExecutionEnd(1L, 1500L, Option.empty()));
+        listener.onOtherEvent(sqlStart(2L, 2L, "SELECT 2"));
+        listener.onJobStart(jobStart(1, 2L, 2L, 1));
+        // Nested in execution 2
+        listener.onOtherEvent(sqlStart(3L, 2L, "INSERT"));
+        listener.onJobStart(jobStart(2, 3L, 2L, 2, 3));
+        // Not a SQL job
+        listener.onJobStart(new SparkListenerJobStart(3, 3000L, JavaConverters.asScalaBufferConverter(new ArrayList<StageInfo>()).asScala(), new Properties()));
+
+        plugin.receive(metrics("1", 2.0, stage(0, 0.5), stage(1, 1.0)));
+        plugin.receive(metrics("2", 1.0, stage(3, 0.75)));
+        plugin.drain();
+
+        List<SQLExecutionUsage> usages = plugin.getSQLAggregator().getExecutionUsages();
+        assertEquals(2, usages.size());
+        assertEquals(2L, usages.get(0).executionId);
+        assertEquals(1.75, usages.get(0).energy_Wh, 1e-9);
+        assertEquals(SQLExecutionUsage.RUNNING, usages.get(0).endMillis);
+        assertEquals("SELECT 1", usages.get(1).description);
+        assertEquals(0.5, usages.get(1).energy_Wh, 1e-9);
+        assertEquals(1500L, usages.get(1).endMillis);
+        assertEquals(0.75, plugin.getSQLAggregator().getUnattributedEnergy(), 1e-9);
+    }
+
+    private static ExecutorUsageMetrics counters(String executorId, long sequence, double cumulativeEnergy_Wh) {
+        ExecutorUsageMetrics metrics = metrics(executorId, 0.0);
+        metrics.sequence = sequence;
+        metrics.setCumulativeCounters(cumulativeEnergy_Wh, 0L, 0L);
+        return metrics;
+    }
+
+    @Test
+    public void receiveCumulativeCounters() {
+        CCSparkDriverPlugin plugin = new CCSparkDriverPlugin();
+
+        plugin.receive(counters("1", 1L, 1.0));
+        // Message 2 is lost, message 3 makes up for it
+        ExecutorUsageMetrics third = counters("1", 3L, 3.5);
+        third.energy_Wh = 1.5;
+        plugin.receive(third);
+        plugin.receive(counters("1", 3L, 3.5));
+        plugin.receive(counters("1", 2L, 2.0));
+        plugin.receive(counters("2", 1L, 0.5));
+        plugin.drain();
+
+        assertEquals(4.0, plugin.getAggregator().getTotalEnergy(), 1e-9);
+        assertEquals(3.5, plugin.getAggregator().getEnergyByExecutor().get("1"), 1e-9);
+        assertEquals(1L, plugin.getCounterTracker().getGapCount());
+        assertEquals(2L, plugin.getCounterTracker().getDuplicateCount());
+        // Message 2 never got its breakdown
+        assertEquals(1.0, plugin.getCounterTracker().getRecoveredEnergy(), 1e-9);
+    }
+
+    @Test
+    public void aggregateThreadCategories() {
+        CCSparkDriverPlugin plugin = new CCSparkDriverPlugin();
+
+        for (String executorId : new String[] { "1", "2" }) {
+            ExecutorUsageMetrics message = metrics(executorId, 1.0);
+            message.threads = new ThreadCategoryUsage();
+            message.threads.cpuTimes[ThreadCategory.TASK.ordinal()] = 80L;
+            message.threads.energies_Wh[ThreadCategory.TASK.ordinal()] = 0.8;
+            message.threads.cpuTimes[ThreadCategory.GC.ordinal()] = 20L;
+            message.threads.energies_Wh[ThreadCategory.GC.ordinal()] = 0.2;
+            plugin.receive(message);
+        }
+        plugin.receive(metrics("3", 1.0));
+        plugin.drain();
+
+        ThreadCategoryUsage total = plugin.getThreadAggregator().getTotal();
+        assertEquals(160L, total.getCpuTime(ThreadCategory.TASK));
+        assertEquals(1.6, total.getEnergy_Wh(ThreadCategory.TASK), 1e-9);
+        assertEquals(0.4, total.getEnergy_Wh(ThreadCategory.GC), 1e-9);
+    }
+
+    @Test
+    public void receiveSingleAndBatchedMetrics() {
+        CCSparkDriverPlugin plugin = new CCSparkDriverPlugin();
+
+        ExecutorUsageMetricsBatch batch = new ExecutorUsageMetricsBatch();
+        batch.merge(metrics("2", 2.0));
+        batch.merge(metrics("2", 0.5));
+        batch.executorId = "2";
+
+        plugin.receive(metrics("1", 1.0));
+        plugin.receive(batch);
+        plugin.receive("not a metric");
+        plugin.drain();
+
+        assertEquals(3.5, plugin.getAggregator().getTotalEnergy(), 1e-9);
+        assertEquals(2.5, plugin.getAggregator().getEnergyByExecutor().get("2"), 1e-9);
+    }
+
+    @Test
+    public void aggregateStageUsage() {
+        CCSparkDriverPlugin plugin = new CCSparkDriverPlugin();
+
+        StageUsage heavy = new StageUsage(3, 0);
+        heavy.energy_Wh = 2.0;
+        heavy.recordsRead = 1000000L;
+        StageUsage light = new StageUsage(4, 0);
+        light.energy_Wh = 0.5;
+
+        ExecutorUsageMetrics first = metrics("1", 2.5);
+        first.stages = new StageUsage[] { heavy, light };
+        ExecutorUsageMetrics second = metrics("2", 2.0);
+        second.stages = new StageUsage[] { heavy };
+
+        plugin.receive(first);
+        plugin.receive(second);
+        plugin.drain();
+
+        List<StageUsage> stages = plugin.getStageAggregator().getStageUsages();
+        assertEquals(2, stages.size());
+        assertEquals(3, stages.get(0).stageId);
+        assertEquals(4.0, stages.get(0).energy_Wh, 1e-9);
+        assertEquals(2.0, stages.get(0).getEnergyPerMillionRecords_Wh(), 1e-9);
+        assertEquals(4, stages.get(1).stageId);
+    }
+
+    @Test
+    public void aggregateInBackground() {
+        CCSparkDriverPlugin plugin = new CCSparkDriverPlugin();
+        plugin.startAggregation();
+
+        for (int i = 0; i < 10; i++) {
+            plugin.receive(counters("1", i + 1, i + 1.0));
+        }
+        plugin.stopAggregation();
+
+        // Nothing is left in the queue once stopped
+        assertEquals(0, plugin.getQueue().size());
+        assertEquals(10.0, plugin.getAggregator().getTotalEnergy(), 1e-9);
+        assertEquals(0L, plugin.getQueue().getDroppedCount());
+    }
+
+    @Test
+    public void receiveFromConcurrentSenders() throws InterruptedException {
+        for (int senders : new int[] { 1, 4, 16 }) {
+            CCSparkDriverPlugin plugin = new CCSparkDriverPlugin();
+            plugin.startAggregation();
+            receiveConcurrently(plugin, senders);
+            plugin.stopAggregation();
+
+            // Every message is either aggregated or dropped, and nothing stays queued
+            long messages = (long)senders * MESSAGES_PER_SENDER;
+            assertEquals(messages, plugin.getAggregator().getMessageCount() + plugin.getQueue().getDroppedCount());
+            assertEquals(0, plugin.getQueue().size());
+
+            // As when executors shut down, a last message per executor makes up for any drop: no energy is lost
+            for (int i = 0; i < senders; i++) {
+                plugin.receive(counters(String.valueOf(i), MESSAGES_PER_SENDER + 1, 0.001 * (MESSAGES_PER_SENDER + 1)));
+            }
+            plugin.drain();
+            assertEquals(senders, plugin.getAggregator().getExecutorCount());
+            assertEquals(senders * 0.001 * (MESSAGES_PER_SENDER + 1), plugin.getAggregator().getTotalEnergy(), 1e-6);
+        }
+    }
+}
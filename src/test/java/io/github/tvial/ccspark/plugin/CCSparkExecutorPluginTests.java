@@ -17,12 +17,36 @@
 package io.github.tvial.ccspark.plugin;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.HashMap;
 
+import org.apache.spark.TaskContext;
+import org.apache.spark.executor.TaskMetrics;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import com.codahale.metrics.MetricRegistry;
+
+import io.github.tvial.ccspark.model.ExecutorUsageMetrics;
+import io.github.tvial.ccspark.model.Sample;
+import io.github.tvial.ccspark.model.StageUsage;
+import io.github.tvial.ccspark.monitoring.AdaptiveSamplingScheduler;
+import io.github.tvial.ccspark.monitoring.FrequencyScaledEnergyModel;
+import io.github.tvial.ccspark.monitoring.TDPEnergyModel;
+import io.github.tvial.ccspark.monitoring.TDPSource;
+import io.github.tvial.ccspark.monitoring.TaskEnergyTracker;
+import io.github.tvial.ccspark.monitoring.UsageMetricsSink;
+import io.github.tvial.ccspark.monitoring.UsageMonitor;
+import io.github.tvial.ccspark.sampling.InMemorySampleProvider;
+import io.github.tvial.ccspark.sampling.RecordingSampleProvider;
+import io.github.tvial.ccspark.sampling.SampleProvider;
 import io.github.tvial.ccspark.plugin.CCSparkExecutorPlugin;
 
 public class CCSparkExecutorPluginTests {
@@ -30,8 +54,10 @@ public class CCSparkExecutorPluginTests {
     public void overrideTDP() {
         HashMap<String, String> conf = new HashMap<String, String>();
         conf.put("cpu.tdp", "-100");
-        double tdp = new CCSparkExecutorPlugin().getCPUTDP(conf);
+        CCSparkExecutorPlugin plugin = new CCSparkExecutorPlugin();
+        double tdp = plugin.getCPUTDP(conf);
         assertEquals(-100.0, tdp);
+        assertEquals(TDPSource.CONFIGURED, plugin.getTDPSource());
     }
 
     @Test
@@ -40,4 +66,86 @@ public class CCSparkExecutorPluginTests {
         double tdp = new CCSparkExecutorPlugin().getCPUTDP(conf);
         assertTrue(tdp > 0.0);
     }
+
+    @Test
+    public void chooseEnergyModel() {
+        HashMap<String, String> conf = new HashMap<String, String>();
+        CCSparkExecutorPlugin plugin = new CCSparkExecutorPlugin();
+        assertInstanceOf(TDPEnergyModel.class, plugin.getEnergyModel(conf, 100.0));
+
+        conf.put("model", "frequency");
+        assertInstanceOf(FrequencyScaledEnergyModel.class, plugin.getEnergyModel(conf, 100.0));
+    }
+
+    @Test
+    public void registerTDPMetrics() {
+        HashMap<String, String> conf = new HashMap<String, String>();
+        conf.put("cpu.tdp", "42");
+        CCSparkExecutorPlugin plugin = new CCSparkExecutorPlugin();
+        MetricRegistry registry = new MetricRegistry();
+
+        plugin.registerTDPMetrics(registry, plugin.getCPUTDP(conf));
+
+        assertEquals(42.0, registry.getGauges().get("cpu.tdp").getValue());
+        assertEquals("configured", registry.getGauges().get("cpu.tdpSource").getValue());
+    }
+
+    @Test
+    public void keepUnknownCgroupTimes() {
+        assertEquals(-1L, CCSparkExecutorPlugin.toMillis(-1L));
+        assertEquals(0L, CCSparkExecutorPlugin.toMillis(999L));
+        assertEquals(1234L, CCSparkExecutorPlugin.toMillis(1234567L));
+    }
+
+    @Test
+    public void recordSamplesPerApplication(@TempDir Path recordPath) throws IOException {
+        HashMap<String, String> conf = new HashMap<String, String>();
+        conf.put("sampling.recordPath", recordPath.toString());
+        CCSparkExecutorPlugin plugin = new CCSparkExecutorPlugin();
+        SampleProvider provider = new InMemorySampleProvider(new Sample[0]);
+
+        SampleProvider first = plugin.recordSamples(provider, "app-1", "1", conf);
+        SampleProvider second = plugin.recordSamples(provider, "app-2", "1", conf);
+        assertInstanceOf(RecordingSampleProvider.class, first);
+        assertInstanceOf(RecordingSampleProvider.class, second);
+        assertTrue(Files.exists(recordPath.resolve("samples-app-1-1.ccs")));
+        assertTrue(Files.exists(recordPath.resolve("samples-app-2-1.ccs")));
+
+        // The same executor of the same application again: the first recording is kept
+        long size = Files.size(recordPath.resolve("samples-app-1-1.ccs"));
+        assertSame(provider, plugin.recordSamples(provider, "app-1", "1", conf));
+        assertEquals(size, Files.size(recordPath.resolve("samples-app-1-1.ccs")));
+        first.close();
+        second.close();
+    }
+
+    @Test
+    public void recordTaskEndWithoutTaskContext() throws InterruptedException {
+        UsageMetricsSink sink = new UsageMetricsSink() {
+            public void send(ExecutorUsageMetrics usage) {
+            }
+        };
+        TaskEnergyTracker tracker = new TaskEnergyTracker();
+        AdaptiveSamplingScheduler scheduler = new AdaptiveSamplingScheduler(new UsageMonitor(() -> null, sink, 100.0), 1000L, 8000L, 0.1);
+        CCSparkExecutorPlugin plugin = new CCSparkExecutorPlugin(tracker, scheduler);
+
+        plugin.taskStarted(7L, 3, 0, TaskMetrics.empty());
+        // As in Spark, the end hooks run once the TaskContext is unset
+        assertNull(TaskContext.get());
+        plugin.onTaskSucceeded();
+
+        // Each task is ended by the thread that ran it
+        Thread other = new Thread(() -> {
+            plugin.taskStarted(8L, 3, 0, TaskMetrics.empty());
+            plugin.onTaskFailed(null);
+        });
+        other.start();
+        other.join();
+
+        tracker.attribute(0L, System.currentTimeMillis() + 1L, 1.0);
+        StageUsage[] stages = tracker.drainStageUsage();
+        assertEquals(2, stages[0].taskCount);
+        assertEquals(0, tracker.getRunningTaskCount());
+        scheduler.shutdown();
+    }
 }
@@ -0,0 +1,134 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package io.github.tvial.ccspark.sampling;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.github.tvial.ccspark.model.CPUScheduling;
+import io.github.tvial.ccspark.model.ProcessScheduling;
+import io.github.tvial.ccspark.model.Sample;
+
+
+class CPUFrequencySampleProviderTests {
+    @TempDir
+    Path cpuPath;
+
+    private static InMemorySampleProvider emptySamples(int count) {
+        Sample[] samples = new Sample[count];
+        for (int i = 0; i < count; i++) {
+            samples[i] = new Sample(0L, new CPUScheduling(0L, 0L, 0L), new ProcessScheduling(0L, 0L, 0L, 0L));
+        }
+        return new InMemorySampleProvider(samples);
+    }
+
+    private void writeCore(int core, long currentKHz, long maxKHz) throws IOException {
+        Path cpufreq = cpuPath.resolve("cpu" + core).resolve("cpufreq");
+        Files.createDirectories(cpufreq);
+        Files.write(cpufreq.resolve("scaling_cur_freq"), (currentKHz + "\n").getBytes(StandardCharsets.US_ASCII));
+        Files.write(cpufreq.resolve("cpuinfo_max_freq"), (maxKHz + "\n").getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    void sampleMeanFrequency() throws IOException {
+        writeCore(0, 1200000L, 3800000L);
+        writeCore(1, 3000000L, 3800000L);
+        // Offline core, and other entries of the directory
+        Files.createDirectories(cpuPath.resolve("cpu2"));
+        Files.createDirectories(cpuPath.resolve("cpufreq"));
+
+        // Without base frequency, the turbo one is the reference
+        CPUFrequencySampleProvider provider = new CPUFrequencySampleProvider(emptySamples(2), cpuPath.toString(), 0L);
+        Sample sample = provider.sample();
+        assertEquals(2100000L, sample.cpuFrequencyKHz);
+        assertEquals(3800000L, sample.baseCpuFrequencyKHz);
+
+        writeCore(0, 3800000L, 3800000L);
+        sample = provider.sample();
+        assertEquals(3400000L, sample.cpuFrequencyKHz);
+        provider.close();
+    }
+
+    @Test
+    void useBaseFrequency() throws IOException {
+        writeCore(0, 2000000L, 3800000L);
+        writeCore(1, 2000000L, 3800000L);
+        for (int core = 0; core < 2; core++) {
+            Files.write(
+                cpuPath.resolve("cpu" + core).resolve("cpufreq").resolve("base_frequency"), "2100000\n".getBytes(StandardCharsets.US_ASCII)
+            );
+        }
+
+        CPUFrequencySampleProvider provider = new CPUFrequencySampleProvider(emptySamples(1), cpuPath.toString(), 0L);
+        assertEquals(2100000L, provider.sample().baseCpuFrequencyKHz);
+        provider.close();
+
+        // The configuration comes first
+        provider = new CPUFrequencySampleProvider(emptySamples(1), cpuPath.toString(), 2400000L);
+        assertEquals(2400000L, provider.sample().baseCpuFrequencyKHz);
+        provider.close();
+    }
+
+    @Test
+    void fallBackWithoutCpufreq() throws IOException {
+        Files.createDirectories(cpuPath.resolve("cpu0"));
+        InMemorySampleProvider delegate = emptySamples(1);
+
+        assertSame(delegate, CPUFrequencySampleProvider.withFallback(delegate, cpuPath.toString(), 0L));
+        assertSame(delegate, CPUFrequencySampleProvider.withFallback(delegate, cpuPath.resolve("missing").toString(), 0L));
+
+        writeCore(1, 1200000L, 3800000L);
+        assertInstanceOf(CPUFrequencySampleProvider.class, CPUFrequencySampleProvider.withFallback(delegate, cpuPath.toString(), 0L));
+    }
+
+    private boolean hasOpenFileUnder(Path path) throws IOException {
+        File[] descriptors = new File("/proc/self/fd").listFiles();
+        for (File descriptor : descriptors) {
+            try {
+                if (Files.readSymbolicLink(descriptor.toPath()).startsWith(path)) {
+                    return true;
+                }
+            }
+            catch (IOException e) {
+                // Closed in the meantime
+            }
+        }
+        return false;
+    }
+
+    @Test
+    void closeFilesWhenUnavailable() throws IOException {
+        writeCore(0, 1200000L, 3800000L);
+        writeCore(1, 3000000L, 3800000L);
+        // The first core is read before the second one fails
+        Files.write(cpuPath.resolve("cpu1").resolve("cpufreq").resolve("scaling_cur_freq"), "n/a\n".getBytes(StandardCharsets.US_ASCII));
+        InMemorySampleProvider delegate = emptySamples(1);
+
+        assertSame(delegate, CPUFrequencySampleProvider.withFallback(delegate, cpuPath.toString(), 0L));
+        assertFalse(hasOpenFileUnder(cpuPath.toRealPath()));
+    }
+}
@@ -0,0 +1,164 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+
+package io.github.tvial.ccspark.sampling;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.github.tvial.ccspark.model.CPUScheduling;
+import io.github.tvial.ccspark.model.ProcessScheduling;
+import io.github.tvial.ccspark.model.Sample;
+
+
+class CgroupSampleProviderTests {
+    @TempDir
+    Path root;
+
+    private static void write(Path path, String content) throws IOException {
+        Files.createDirectories(path.getParent());
+        Files.write(path, content.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static String cpuStat(long usageMicros, long throttledPeriods, long throttledMicros) {
+        return String.format(
+            "usage_usec %d\nuser_usec %d\nsystem_usec 0\nnr_periods 50\nnr_throttled %d\nthrottled_usec %d\nnr_bursts 0\nburst_usec 0\n",
+            usageMicros, usageMicros, throttledPeriods, throttledMicros
+        );
+    }
+
+    // A host of 4 cores, and an executor in a cgroup of the pod
+    private Path writeCgroup(String cpuMax) throws IOException {
+        write(root.resolve("proc/cgroup"), "12:cpuset:/\n0::/kubepods/pod1/executor\n");
+        write(root.resolve("proc/stat"), "cpu  10 0 10 100\ncpu0 1 0 1 10\ncpu1 1 0 1 10\ncpu2 1 0 1 10\ncpu3 1 0 1 10\nintr 0\n");
+        Path cgroup = root.resolve("cgroup/kubepods/pod1/executor");
+        write(cgroup.resolve("cpu.max"), cpuMax);
+        write(cgroup.resolve("cpu.stat"), cpuStat(1000L, 0L, 0L));
+        return cgroup;
+    }
+
+    private CgroupSampleProvider provider(SampleProvider delegate) throws IOException {
+        return new CgroupSampleProvider(
+            delegate, root.resolve("proc/cgroup").toString(), root.resolve("cgroup").toString(), root.resolve("proc/stat").toString()
+        );
+    }
+
+    private static Sample sample(long timestampMillis) {
+        return new Sample(timestampMillis, new CPUScheduling(1000L, 0L, 1000L), new ProcessScheduling(100L, 0L, 0L, 0L));
+    }
+
+    @Test
+    void parseQuota() throws IOException {
+        assertEquals(1.5, CgroupSampleProvider.parseQuotaCores("150000 100000\n"), 1e-9);
+        assertEquals(CgroupSampleProvider.NO_QUOTA, CgroupSampleProvider.parseQuotaCores("max 100000"), 1e-9);
+        assertThrows(IOException.class, () -> CgroupSampleProvider.parseQuotaCores("max"));
+    }
+
+    @Test
+    void sampleAgainstQuota() throws IOException {
+        Path cgroup = writeCgroup("150000 100000\n");
+        long now = System.nanoTime();
+        CgroupSampleProvider provider = provider(new InMemorySampleProvider(new Sample[] { sample(1000L), sample(3000L) }));
+
+        assertTrue(provider.hasQuota());
+        assertEquals(4, provider.getHostCores());
+        assertEquals(1.5 / 4, provider.getHostShare(), 1e-9);
+
+        Sample before = provider.sample(now + 1000000000L);
+        write(cgroup.resolve("cpu.stat"), cpuStat(1501000L, 7L, 250000L));
+        Sample after = provider.sample(now + 3000000000L);
+
+        // 2 s of 1.5 cores, in clock ticks, of which the cgroup used half
+        assertEquals(300.0, after.cpu.totalSince(before.cpu), 1.0);
+        assertEquals(150L, after.process.totalSince(before.process));
+        assertEquals(1501000L, provider.getUsageMicros());
+        assertEquals(7L, provider.getThrottledPeriods());
+        assertEquals(250000L, provider.getThrottledMicros());
+        provider.close();
+    }
+
+    @Test
+    void skipHostCPUUnderQuota() throws IOException {
+        writeCgroup("150000 100000\n");
+        Path process = root.resolve("proc/self/stat");
+        write(process, "42 (java) S 1 1 1 0 -1 4194368 100 0 0 0 20 5 0 0 20 0 50 0 100 0 0\n");
+        DirectProcFileSystemSampleProvider delegate = new DirectProcFileSystemSampleProvider(
+            root.resolve("proc/stat").toString(), process.toString()
+        );
+        CgroupSampleProvider provider = provider(delegate);
+
+        provider.sample();
+        assertEquals(Files.size(process), delegate.getBytesRead());
+        // The usage of the cgroup, rather than the 25 ticks of the process
+        write(root.resolve("cgroup/kubepods/pod1/executor/cpu.stat"), cpuStat(20000L, 0L, 0L));
+        assertEquals(2L, provider.sample().process.total());
+        provider.close();
+    }
+
+    @Test
+    void keepHostCPUWithoutQuota() throws IOException {
+        writeCgroup("max 100000\n");
+        CgroupSampleProvider provider = provider(new InMemorySampleProvider(new Sample[] { sample(0L) }));
+
+        assertFalse(provider.hasQuota());
+        assertEquals(4.0, provider.getQuotaCores(), 1e-9);
+        assertEquals(1.0, provider.getHostShare(), 1e-9);
+        assertEquals(2000L, provider.sample().cpu.total());
+        assertEquals(0L, provider.getThrottledPeriods());
+        provider.close();
+    }
+
+    @Test
+    void useRootInCgroupNamespace() throws IOException {
+        write(root.resolve("proc/cgroup"), "0::/\n");
+        write(root.resolve("cgroup/cpu.stat"), cpuStat(1000L, 0L, 0L));
+        assertEquals(root.resolve("cgroup").toString(), CgroupSampleProvider.resolveCgroupPath(
+            root.resolve("proc/cgroup").toString(), root.resolve("cgroup").toString()
+        ));
+
+        // Only cgroup v1
+        write(root.resolve("proc/cgroup"), "4:cpu,cpuacct:/kubepods\n");
+        assertThrows(IOException.class, () -> CgroupSampleProvider.resolveCgroupPath(
+            root.resolve("proc/cgroup").toString(), root.resolve("cgroup").toString()
+        ));
+    }
+
+    @Test
+    void fallBackWithoutCgroup() throws IOException {
+        InMemorySampleProvider delegate = new InMemorySampleProvider(new Sample[0]);
+        assertSame(delegate, CgroupSampleProvider.withFallback(
+            delegate, root.resolve("proc/cgroup").toString(), root.resolve("cgroup").toString()
+        ));
+
+        writeCgroup("max 100000\n");
+        assertInstanceOf(CgroupSampleProvider.class, CgroupSampleProvider.withFallback(
+            delegate, root.resolve("proc/cgroup").toString(), root.resolve("cgroup").toString()
+        ));
+    }
+}
@@ -0,0 +1,120 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.tvial.ccspark.sampling;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.github.tvial.ccspark.model.CPUScheduling;
+import io.github.tvial.ccspark.model.ProcessScheduling;
+import io.github.tvial.ccspark.model.Sample;
+
+
+class DescendantProcessSampleProviderTests {
+    final static long ROOT_PID = 1000L;
+
+    @TempDir
+    Path procPath;
+
+    private static Sample sample(long userTime, long childrenUserTime) {
+        return new Sample(0L, new CPUScheduling(0L, 0L, 0L), new ProcessScheduling(userTime, 0L, childrenUserTime, 0L));
+    }
+
+    private void writeProcess(long pid, String name, long parentPid, long userTime, long systemTime) throws IOException {
+        Path process = procPath.resolve(String.valueOf(pid));
+        Files.createDirectories(process);
+        Files.write(process.resolve("stat"), String.format(
+            "%d (%s) S %d %d %d 0 -1 4194368 100 0 0 0 %d %d 0 0 20 0 1 0 100 0 0\n", pid, name, parentPid, pid, pid, userTime, systemTime
+        ).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void removeProcess(long pid) throws IOException {
+        Path process = procPath.resolve(String.valueOf(pid));
+        Files.delete(process.resolve("stat"));
+        Files.delete(process);
+    }
+
+    @Test
+    void countLiveDescendants() throws IOException {
+        writeProcess(ROOT_PID, "java", 1, 5000, 500);
+        writeProcess(1001, "python3 -m pyspark.daemon", 1000, 100, 0);
+        writeProcess(1002, "python3 -m pyspark.daemon", 1001, 50, 0);
+        writeProcess(1003, "cat", 1000, 20, 10);
+        writeProcess(2000, "sshd", 1, 900, 100);
+        Files.createDirectories(procPath.resolve("self"));
+
+        DescendantProcessSampleProvider provider = new DescendantProcessSampleProvider(
+            new InMemorySampleProvider(new Sample[] { sample(5000, 0), sample(5100, 0), sample(5200, 40), sample(5300, 40) }),
+            procPath.toString(),
+            ROOT_PID
+        );
+
+        // Baseline
+        Sample first = provider.sample();
+        assertEquals(0L, first.process.descendantTime);
+        assertEquals(3, provider.getDescendantCount());
+
+        writeProcess(1001, "python3 -m pyspark.daemon", 1000, 130, 0);
+        writeProcess(1002, "python3 -m pyspark.daemon", 1001, 80, 5);
+        writeProcess(1003, "cat", 1000, 25, 10);
+        writeProcess(2000, "sshd", 1, 1900, 100);
+
+        Sample second = provider.sample();
+        assertEquals(30L + 35L + 5L, second.process.descendantTime);
+
+        // 1003 is reaped by the executor: its 40 ticks move to the children times, 35 of which were either
+        // counted or predate the first sample
+        removeProcess(1003);
+        writeProcess(1004, "python3 -m pyspark.daemon", 1001, 12, 0);
+
+        Sample third = provider.sample();
+        assertEquals(70L + 12L - 35L, third.process.descendantTime);
+        assertEquals(5L + 12L, third.process.totalSince(second.process) - 100L);
+        assertEquals(3, provider.getDescendantCount());
+
+        provider.close();
+    }
+
+    @Test
+    void sampleOwnDescendants() throws Exception {
+        long pid = Long.valueOf(ManagementFactory.getRuntimeMXBean().getName().split("@")[0]);
+        DescendantProcessSampleProvider provider = new DescendantProcessSampleProvider(
+            new InMemorySampleProvider(new Sample[] { sample(0, 0), sample(0, 0) }), "/proc", pid
+        );
+
+        Process child = new ProcessBuilder("sleep", "5").start();
+        try {
+            provider.sample();
+            assertTrue(provider.getDescendantCount() >= 1);
+            assertTrue(provider.sample().process.descendantTime >= 0L);
+        }
+        finally {
+            child.destroy();
+            child.waitFor();
+            provider.close();
+        }
+    }
+}
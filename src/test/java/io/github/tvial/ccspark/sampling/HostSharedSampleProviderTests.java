@@ -0,0 +1,170 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package io.github.tvial.ccspark.sampling;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.github.tvial.ccspark.model.CPUScheduling;
+import io.github.tvial.ccspark.model.Sample;
+
+
+class HostSharedSampleProviderTests {
+    final static long NO_TIMER = 3600000L;
+
+    @TempDir
+    Path sharedPath;
+
+    private Path writeCPU(long userTime, long nicedTime, long systemTime) throws IOException {
+        Path path = sharedPath.resolve("stat");
+        Files.write(path, String.format(
+            "cpu  %d %d %d 4000 0 0 0 0 0 0\ncpu0 1 2 3 4 0 0 0 0 0 0\n", userTime, nicedTime, systemTime
+        ).getBytes(StandardCharsets.US_ASCII));
+        return path;
+    }
+
+    private Path writeProcess(String name, long userTime, long systemTime) throws IOException {
+        Path path = sharedPath.resolve(name);
+        Files.write(path, String.format(
+            "42 (java) S 1 1 1 0 -1 4194368 100 0 0 0 %d %d 0 0 20 0 50 0 100 0 0\n", userTime, systemTime
+        ).getBytes(StandardCharsets.US_ASCII));
+        return path;
+    }
+
+    private HostSharedSampleProvider provider(Path cpu, Path process, long publishPeriodMillis) throws IOException {
+        return new HostSharedSampleProvider(sharedPath.toString(), cpu.toString(), process.toString(), publishPeriodMillis);
+    }
+
+    @Test
+    void shareHostCounters() throws IOException {
+        Path cpu = writeCPU(100L, 10L, 50L);
+        HostSharedSampleProvider leader = provider(cpu, writeProcess("leader", 20L, 5L), NO_TIMER);
+        HostSharedSampleProvider follower = provider(cpu, writeProcess("follower", 7L, 3L), NO_TIMER);
+        assertTrue(leader.isLeader());
+        assertFalse(follower.isLeader());
+
+        Sample leaderSample = leader.sample();
+        Sample followerSample = follower.sample();
+        assertEquals(new CPUScheduling(100L, 10L, 50L), leaderSample.cpu);
+        assertEquals(new CPUScheduling(100L, 10L, 50L), followerSample.cpu);
+        assertEquals(20L, leaderSample.process.userTime);
+        assertEquals(7L, followerSample.process.userTime);
+
+        // Published with the next counters, not with the TDP
+        writeCPU(200L, 20L, 100L);
+        assertEquals(new CPUScheduling(100L, 10L, 50L), follower.sample().cpu);
+        leader.publishTDP(95.0, 1L);
+        assertEquals(new CPUScheduling(100L, 10L, 50L), follower.sample().cpu);
+        long now = System.currentTimeMillis();
+        leader.publish(now);
+        assertEquals(new CPUScheduling(200L, 20L, 100L), follower.sample(now).cpu);
+        HostSharedSampleProvider.SharedTDP shared = follower.getSharedTDP().get();
+        assertEquals(95.0, shared.tdp);
+        assertEquals(1L, shared.source);
+
+        follower.close();
+        leader.close();
+    }
+
+    @Test
+    void projectCountersToSampleTime() throws IOException {
+        long start = System.currentTimeMillis();
+        Path cpu = writeCPU(100L, 10L, 50L);
+        HostSharedSampleProvider leader = provider(cpu, writeProcess("leader", 20L, 5L), NO_TIMER);
+        HostSharedSampleProvider follower = provider(cpu, writeProcess("follower", 7L, 3L), NO_TIMER);
+
+        leader.publish(start + 1000L);
+        writeCPU(200L, 20L, 100L);
+        leader.publish(start + 1250L);
+
+        // Half a period after the last publication, at the rate of the last period
+        Sample sample = follower.sample(start + 1375L);
+        assertEquals(new CPUScheduling(250L, 25L, 125L), sample.cpu);
+        assertEquals(start + 1375L, sample.timestampMillis);
+        assertEquals(7L, sample.process.userTime);
+
+        // The host goes idle: the counters stay where the projection took them
+        leader.publish(start + 1500L);
+        assertEquals(new CPUScheduling(250L, 25L, 125L), follower.sample(start + 1500L).cpu);
+        writeCPU(300L, 30L, 150L);
+        leader.publish(start + 1750L);
+        assertEquals(new CPUScheduling(300L, 30L, 150L), follower.sample(start + 1750L).cpu);
+
+        follower.close();
+        leader.close();
+    }
+
+    @Test
+    void reuseHolders() throws IOException {
+        Path cpu = writeCPU(100L, 10L, 50L);
+        HostSharedSampleProvider leader = provider(cpu, writeProcess("leader", 20L, 5L), NO_TIMER);
+
+        Sample first = leader.sample();
+        Sample second = leader.sample();
+        assertNotSame(first, second);
+        assertSame(first, leader.sample());
+
+        leader.close();
+    }
+
+    @Test
+    void ignoreTornCounters() throws IOException {
+        Path cpu = writeCPU(100L, 10L, 50L);
+        HostSharedSampleProvider leader = provider(cpu, writeProcess("leader", 20L, 5L), NO_TIMER);
+        HostSharedSampleProvider follower = provider(cpu, writeProcess("follower", 7L, 3L), NO_TIMER);
+
+        // A checksum that does not match: the follower reads the counters itself
+        writeCPU(300L, 30L, 150L);
+        RandomAccessFile shared = new RandomAccessFile(sharedPath.resolve(HostSharedSampleProvider.SHARED_FILE).toFile(), "rw");
+        shared.seek(HostSharedSampleProvider.CHECKSUM_OFFSET);
+        shared.writeLong(0L);
+        shared.close();
+
+        assertEquals(new CPUScheduling(300L, 30L, 150L), follower.sample().cpu);
+        assertFalse(follower.getSharedTDP().isPresent());
+
+        follower.close();
+        leader.close();
+    }
+
+    @Test
+    void takeOverFromDeadLeader() throws IOException, InterruptedException {
+        Path cpu = writeCPU(100L, 10L, 50L);
+        HostSharedSampleProvider leader = provider(cpu, writeProcess("leader", 20L, 5L), NO_TIMER);
+        HostSharedSampleProvider follower = provider(cpu, writeProcess("follower", 7L, 3L), 10L);
+        assertFalse(follower.isLeader());
+
+        leader.close();
+        writeCPU(200L, 20L, 100L);
+        Thread.sleep(10 * HostSharedSampleProvider.STALE_PERIODS + 50);
+
+        assertEquals(new CPUScheduling(200L, 20L, 100L), follower.sample().cpu);
+        assertTrue(follower.isLeader());
+        follower.close();
+    }
+}
@@ -0,0 +1,105 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.tvial.ccspark.sampling;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.github.tvial.ccspark.model.CPUScheduling;
+import io.github.tvial.ccspark.model.ProcessScheduling;
+import io.github.tvial.ccspark.model.Sample;
+
+
+class MemorySampleProviderTests {
+    @TempDir
+    Path procPath;
+
+    private static InMemorySampleProvider emptySamples(int count) {
+        Sample[] samples = new Sample[count];
+        for (int i = 0; i < count; i++) {
+            samples[i] = new Sample(0L, new CPUScheduling(0L, 0L, 0L), new ProcessScheduling(0L, 0L, 0L, 0L));
+        }
+        return new InMemorySampleProvider(samples);
+    }
+
+    private Path writeStatus(long rssKB, Long swapKB) throws IOException {
+        StringBuilder status = new StringBuilder()
+            .append("Name:\tjava\n")
+            .append("State:\tS (sleeping)\n")
+            .append("VmPeak:\t 9000000 kB\n")
+            .append("VmRSS:\t ").append(rssKB).append(" kB\n")
+            .append("RssAnon:\t  100000 kB\n");
+        if (swapKB != null) {
+            status.append("VmSwap:\t ").append(swapKB).append(" kB\n");
+        }
+        status.append("Threads:\t42\n");
+
+        Path path = procPath.resolve("status");
+        Files.write(path, status.toString().getBytes(StandardCharsets.UTF_8));
+        return path;
+    }
+
+    private Path writeMeminfo(long totalKB) throws IOException {
+        Path path = procPath.resolve("meminfo");
+        Files.write(path, String.format(
+            "MemTotal:       %d kB\nMemFree:         1000000 kB\nMemAvailable:    2000000 kB\n", totalKB
+        ).getBytes(StandardCharsets.UTF_8));
+        return path;
+    }
+
+    @Test
+    void sampleMemory() throws IOException {
+        Path status = writeStatus(2048, 16L);
+        Path meminfo = writeMeminfo(16384000L);
+
+        MemorySampleProvider provider = new MemorySampleProvider(emptySamples(2), status.toString(), meminfo.toString());
+
+        Sample sample = provider.sample();
+        assertEquals(2048L * 1024, sample.rssBytes);
+        assertEquals(16L * 1024, sample.swapBytes);
+        assertEquals(16384000L * 1024, sample.memTotalBytes);
+
+        // Re-read from the same open file
+        writeStatus(4096, null);
+        sample = provider.sample();
+        assertEquals(4096L * 1024, sample.rssBytes);
+        assertEquals(Sample.UNKNOWN_MEMORY, sample.swapBytes);
+        assertEquals(16384000L * 1024, sample.memTotalBytes);
+
+        assertTrue(provider.getBytesRead() > 0L);
+        provider.close();
+    }
+
+    @Test
+    void sampleMemoryOfThisJVM() throws IOException {
+        MemorySampleProvider provider = new MemorySampleProvider(emptySamples(1));
+
+        Sample sample = provider.sample();
+        assertTrue(sample.rssBytes > 0L);
+        assertTrue(sample.memTotalBytes > sample.rssBytes);
+
+        provider.close();
+    }
+}
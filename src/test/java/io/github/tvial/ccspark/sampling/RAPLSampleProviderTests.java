@@ -0,0 +1,112 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.tvial.ccspark.sampling;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.github.tvial.ccspark.model.CPUScheduling;
+import io.github.tvial.ccspark.model.ProcessScheduling;
+import io.github.tvial.ccspark.model.Sample;
+
+
+class RAPLSampleProviderTests {
+    final static String POWERCAP_PATH = "src/test/resources/powercap";
+
+    @TempDir
+    Path powercapCopy;
+
+    private static Sample emptySample() {
+        return new Sample(0L, new CPUScheduling(0L, 0L, 0L), new ProcessScheduling(0L, 0L, 0L, 0L));
+    }
+
+    private static InMemorySampleProvider emptySamples(int count) {
+        Sample[] samples = new Sample[count];
+        for (int i = 0; i < count; i++) {
+            samples[i] = emptySample();
+        }
+        return new InMemorySampleProvider(samples);
+    }
+
+    private void copyPowercap() throws IOException {
+        Path source = Paths.get(POWERCAP_PATH);
+        try (Stream<Path> paths = Files.walk(source)) {
+            for (Path path : (Iterable<Path>)paths::iterator) {
+                Path target = powercapCopy.resolve(source.relativize(path).toString());
+                if (Files.isDirectory(path)) {
+                    Files.createDirectories(target);
+                }
+                else {
+                    Files.copy(path, target);
+                }
+            }
+        }
+    }
+
+    private void setEnergy(String zone, long energy) throws IOException {
+        Files.write(powercapCopy.resolve(zone).resolve("energy_uj"), String.format("%d\n", energy).getBytes());
+    }
+
+    @Test
+    void sampleEnergyCounters() throws IOException {
+        copyPowercap();
+        RAPLSampleProvider provider = new RAPLSampleProvider(emptySamples(2), powercapCopy.toString());
+
+        Sample first = provider.sample();
+        assertEquals(0L, first.packageEnergyMicroJoules);
+        assertEquals(0L, first.dramEnergyMicroJoules);
+
+        setEnergy("intel-rapl:0", 13000000L);
+        setEnergy("intel-rapl:0:0", 9000000L);
+        setEnergy("intel-rapl:0:1", 3500000L);
+        setEnergy("intel-rapl:1", 8250000L);
+
+        // Core zone is not counted, as it is part of the package
+        Sample second = provider.sample();
+        assertEquals(1250000L, second.packageEnergyMicroJoules);
+        assertEquals(500000L, second.dramEnergyMicroJoules);
+    }
+
+    @Test
+    void sampleEnergyCountersWrappingAround() throws IOException {
+        copyPowercap();
+        setEnergy("intel-rapl:0", 262143000000L);
+        RAPLSampleProvider provider = new RAPLSampleProvider(emptySamples(1), powercapCopy.toString());
+
+        setEnergy("intel-rapl:0", 1000000L);
+        Sample sample = provider.sample();
+        assertEquals(262143328850L - 262143000000L + 1000000L, sample.packageEnergyMicroJoules);
+    }
+
+    @Test
+    void fallBackWhenRAPLIsMissing() {
+        SampleProvider delegate = emptySamples(1);
+
+        assertSame(delegate, RAPLSampleProvider.withFallback(delegate, "hope/this/is/invalid!"));
+        assertInstanceOf(RAPLSampleProvider.class, RAPLSampleProvider.withFallback(delegate, POWERCAP_PATH));
+    }
+}
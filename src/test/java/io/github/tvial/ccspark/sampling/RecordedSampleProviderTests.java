@@ -0,0 +1,133 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package io.github.tvial.ccspark.sampling;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.github.tvial.ccspark.model.CPUScheduling;
+import io.github.tvial.ccspark.model.ProcessScheduling;
+import io.github.tvial.ccspark.model.Sample;
+
+
+class RecordedSampleProviderTests {
+    @TempDir
+    Path recordingPath;
+
+    private static Sample[] samples(int count) {
+        Sample[] samples = new Sample[count];
+        for (int i = 0; i < count; i++) {
+            samples[i] = new Sample(1000L * i, new CPUScheduling(100L * i, 10L * i, 50L * i), new ProcessScheduling(20L * i, 5L * i, i, 0L));
+            samples[i].process.descendantTime = 2L * i;
+            samples[i].packageEnergyMicroJoules = 1000000L * i;
+            samples[i].rssBytes = 1024L * (i + 1);
+        }
+        return samples;
+    }
+
+    private Path record(Sample[] samples) throws IOException {
+        Path path = recordingPath.resolve("samples-1.ccs");
+        RecordingSampleProvider provider = new RecordingSampleProvider(new InMemorySampleProvider(samples), path.toString());
+        for (int i = 0; i < samples.length; i++) {
+            provider.sample();
+        }
+        provider.close();
+        return path;
+    }
+
+    @Test
+    void streamRecordedSamples() throws IOException {
+        Sample[] samples = samples(3);
+        Path path = record(samples);
+        assertEquals(SampleRecording.HEADER_BYTES + 3 * 8 * SampleRecording.FIELDS, Files.size(path));
+
+        RecordedSampleProvider provider = new RecordedSampleProvider(path.toString());
+        for (Sample expected : samples) {
+            Sample sample = provider.sample();
+            assertEquals(expected.timestampMillis, sample.timestampMillis);
+            assertEquals(expected.cpu, sample.cpu);
+            assertEquals(expected.process, sample.process);
+            assertEquals(expected.packageEnergyMicroJoules, sample.packageEnergyMicroJoules);
+            assertEquals(Sample.UNKNOWN_ENERGY, sample.dramEnergyMicroJoules);
+            assertEquals(expected.rssBytes, sample.rssBytes);
+            assertEquals(Sample.UNKNOWN_MEMORY, sample.memTotalBytes);
+        }
+        assertThrows(EOFException.class, provider::sample);
+        provider.close();
+    }
+
+    @Test
+    void loadRecording() throws IOException {
+        Path path = record(samples(4));
+
+        // A record cut short by a dying executor is ignored
+        RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw");
+        file.setLength(file.length() - 10);
+        file.close();
+
+        long[] values = SampleRecording.load(path.toString());
+        assertEquals(3 * SampleRecording.FIELDS, values.length);
+
+        Sample sample = SampleRecording.newSample();
+        SampleRecording.fill(values, 2 * SampleRecording.FIELDS, sample);
+        assertEquals(2000L, sample.timestampMillis);
+        assertEquals(40L, sample.process.userTime);
+        assertEquals(4L, sample.process.descendantTime);
+    }
+
+    @Test
+    void readOlderRecording() throws IOException {
+        // Only the timestamp and the CPU times, as if written by an earlier version
+        Path path = recordingPath.resolve("old.ccs");
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(path.toFile()));
+        out.writeInt(SampleRecording.MAGIC);
+        out.writeInt(SampleRecording.VERSION);
+        out.writeInt(4);
+        for (long value : new long[] { 1000L, 10L, 20L, 30L }) {
+            out.writeLong(value);
+        }
+        out.close();
+
+        Sample sample = new RecordedSampleProvider(path.toString()).sample();
+        assertEquals(1000L, sample.timestampMillis);
+        assertEquals(new CPUScheduling(10L, 20L, 30L), sample.cpu);
+        assertEquals(Sample.UNKNOWN_FREQUENCY, sample.cpuFrequencyKHz);
+
+        long[] values = SampleRecording.load(path.toString());
+        assertEquals(SampleRecording.FIELDS, values.length);
+        assertEquals(Sample.UNKNOWN_ENERGY, values[9]);
+    }
+
+    @Test
+    void rejectOtherFiles() throws IOException {
+        Path path = recordingPath.resolve("other");
+        Files.write(path, "timestamp,load\n".getBytes("UTF-8"));
+
+        assertThrows(IOException.class, () -> SampleRecording.load(path.toString()));
+        assertThrows(IOException.class, () -> new RecordedSampleProvider(path.toString()));
+    }
+}
@@ -20,15 +20,21 @@ import static java.nio.file.Files.newBufferedReader;
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
 import java.nio.file.Paths;
 
 import org.junit.jupiter.api.Test;
 
 import io.github.tvial.ccspark.model.CPUScheduling;
 import io.github.tvial.ccspark.model.ProcessScheduling;
+import io.github.tvial.ccspark.model.Sample;
 import io.github.tvial.ccspark.sampling.ProcFileSystemSampleProvider;
 
 
@@ -80,4 +86,104 @@ class SampleProviderTests {
             reader.close();
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    void countBytesRead() throws IOException {
+        ProcFileSystemSampleProvider provider = new ProcFileSystemSampleProvider(
+            "src/test/resources/proc_stat.txt",
+            "src/test/resources/proc_pid_stat.txt"
+        );
+        long fileBytes = Files.size(Paths.get("src/test/resources/proc_stat.txt")) + Files.size(Paths.get("src/test/resources/proc_pid_stat.txt"));
+
+        provider.sample();
+        provider.sample();
+        assertEquals(2 * fileBytes, provider.getBytesRead());
+    }
+
+    @Test
+    void sampleWithDirectParser() throws IOException {
+        DirectProcFileSystemSampleProvider provider = new DirectProcFileSystemSampleProvider(
+            "src/test/resources/proc_stat.txt",
+            "src/test/resources/proc_pid_stat.txt"
+        );
+
+        try {
+            Sample first = provider.sample();
+            assertEquals(new CPUScheduling(15734714L, 1244708L, 5143147L), first.cpu);
+            assertEquals(new ProcessScheduling(175L, 107L, 59079L, 4776L), first.process);
+
+            Sample second = provider.sample();
+            Sample third = provider.sample();
+            assertNotSame(first, second);
+            assertSame(first, third);
+
+            // Only the head of /proc/stat is read
+            assertTrue(provider.getBytesRead() < 3 * (DirectProcFileSystemSampleProvider.CPU_HEAD_CAPACITY + 1024));
+        }
+        finally {
+            provider.close();
+        }
+    }
+
+    @Test
+    void sampleCoresWithDirectParser() throws IOException {
+        DirectProcFileSystemSampleProvider provider = new DirectProcFileSystemSampleProvider(
+            "src/test/resources/proc_stat.txt",
+            "src/test/resources/proc_pid_stat.txt",
+            true
+        );
+
+        try {
+            Sample sample = provider.sample();
+            assertEquals(new CPUScheduling(15734714L, 1244708L, 5143147L), sample.cpu);
+            assertEquals(8, sample.cores.count);
+            assertEquals(0, sample.cores.coreIds[0]);
+            assertEquals(1987937L + 146781L + 643300L, sample.cores.busyTimes[0]);
+            assertEquals(18714253L + 42940L, sample.cores.idleTimes[0]);
+            assertEquals(7, sample.cores.coreIds[7]);
+            assertEquals(1914284L + 145876L + 624992L, sample.cores.busyTimes[7]);
+        }
+        finally {
+            provider.close();
+        }
+    }
+
+    @Test
+    void getProcessSchedulingWithSpacesInCommandName() throws IOException {
+        ProcFileReader reader = new ProcFileReader("src/test/resources/proc_pid_stat_spaces.txt", 16);
+
+        try {
+            ProcessScheduling actualScheduling = new ProcessScheduling(0L, 0L, 0L, 0L);
+            reader.read();
+            DirectProcFileSystemSampleProvider.parseProcessScheduling(reader, actualScheduling);
+            assertEquals(new ProcessScheduling(175L, 107L, 59079L, 4776L), actualScheduling);
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    void sampleProcWithoutGarbage() throws IOException {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        DirectProcFileSystemSampleProvider provider = new DirectProcFileSystemSampleProvider();
+
+        try {
+            for (int i = 0; i < 20000; i++) {
+                provider.sample();
+            }
+
+            long threadId = Thread.currentThread().getId();
+            long before = threads.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < 10000; i++) {
+                provider.sample();
+            }
+            long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+            assertTrue(allocated < 10000, String.format("%d bytes allocated", allocated));
+        }
+        finally {
+            provider.close();
+        }
+    }
+}
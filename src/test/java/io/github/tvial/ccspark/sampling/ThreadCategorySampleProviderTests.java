@@ -0,0 +1,125 @@
+/*
+    Copyright 2024, Thomas VIAL
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.tvial.ccspark.sampling;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.github.tvial.ccspark.model.CPUScheduling;
+import io.github.tvial.ccspark.model.ProcessScheduling;
+import io.github.tvial.ccspark.model.Sample;
+import io.github.tvial.ccspark.model.ThreadCategory;
+
+
+class ThreadCategorySampleProviderTests {
+    @TempDir
+    Path taskPath;
+
+    private static InMemorySampleProvider emptySamples(int count) {
+        Sample[] samples = new Sample[count];
+        for (int i = 0; i < count; i++) {
+            samples[i] = new Sample(0L, new CPUScheduling(0L, 0L, 0L), new ProcessScheduling(0L, 0L, 0L, 0L));
+        }
+        return new InMemorySampleProvider(samples);
+    }
+
+    private void writeThread(int tid, String name, long userTime, long systemTime) throws IOException {
+        Path thread = taskPath.resolve(String.valueOf(tid));
+        Files.createDirectories(thread);
+        Files.write(thread.resolve("comm"), (name + "\n").getBytes(StandardCharsets.UTF_8));
+        Files.write(thread.resolve("stat"), String.format(
+            "%d (%s) S 1 1 1 0 -1 4194368 100 0 0 0 %d %d 0 0 20 0 50 0 100 0 0\n", tid, name, userTime, systemTime
+        ).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void removeThread(int tid) throws IOException {
+        Path thread = taskPath.resolve(String.valueOf(tid));
+        Files.delete(thread.resolve("comm"));
+        Files.delete(thread.resolve("stat"));
+        Files.delete(thread);
+    }
+
+    private static long cpuTime(Sample sample, ThreadCategory category) {
+        return sample.threadCpuTimes[category.ordinal()];
+    }
+
+    @Test
+    void sampleCpuTimePerCategory() throws IOException {
+        writeThread(100, "java", 500, 100);
+        writeThread(101, "Executor task l", 1000, 200);
+        writeThread(102, "GC Thread#0", 300, 10);
+
+        ThreadCategorySampleProvider provider = new ThreadCategorySampleProvider(emptySamples(3), taskPath.toString());
+
+        // Only counts from the first walk on
+        Sample first = provider.sample();
+        assertEquals(0L, cpuTime(first, ThreadCategory.TASK));
+        assertEquals(3, provider.getThreadCount());
+
+        writeThread(101, "Executor task l", 1100, 220);
+        writeThread(102, "GC Thread#0", 330, 10);
+        // New thread, counted from its start
+        writeThread(103, "C2 CompilerThre", 40, 2);
+
+        Sample second = provider.sample();
+        assertEquals(120L, cpuTime(second, ThreadCategory.TASK));
+        assertEquals(30L, cpuTime(second, ThreadCategory.GC));
+        assertEquals(42L, cpuTime(second, ThreadCategory.COMPILER));
+        assertEquals(0L, cpuTime(second, ThreadCategory.OTHER));
+        assertEquals(4, provider.getThreadCount());
+
+        // Names are only read once per thread
+        writeThread(101, "renamed", 1200, 220);
+        removeThread(102);
+
+        Sample third = provider.sample();
+        assertEquals(220L, cpuTime(third, ThreadCategory.TASK));
+        assertEquals(30L, cpuTime(third, ThreadCategory.GC));
+        assertEquals(3, provider.getThreadCount());
+        assertTrue(provider.getBytesRead() > 0L);
+
+        provider.close();
+    }
+
+    @Test
+    void sampleOwnThreads() throws IOException {
+        ThreadCategorySampleProvider provider = new ThreadCategorySampleProvider(emptySamples(2));
+
+        provider.sample();
+        long sum = 0L;
+        for (int i = 0; i < 1000000; i++) {
+            sum += i % 7;
+        }
+        Sample sample = provider.sample();
+
+        assertTrue(sum > 0L);
+        assertTrue(provider.getThreadCount() > 1);
+        for (long cpuTime : sample.threadCpuTimes) {
+            assertTrue(cpuTime >= 0L);
+        }
+
+        provider.close();
+    }
+}